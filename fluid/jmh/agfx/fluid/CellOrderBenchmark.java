@@ -0,0 +1,74 @@
+package agfx.fluid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Row-major against Morton cell order, for the passes that walk neighbors in store order. Cache misses per operation
+// come from the perf profiler, e.g. gradle jmh -PjmhArgs='CellOrderBenchmark -prof perfnorm'
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CellOrderBenchmark {
+
+    @Param({"sphere:10000", "sphere:100000", "teapot_10000"})
+    public String cloud;
+
+    @Param({"ROW_MAJOR", "MORTON"})
+    public SPH.CellOrder cells;
+
+    private SPH sph;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sph = Scenes.sph(cloud);
+        sph.setCellOrder(cells);
+        sph.update(Scenes.DT);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        sph.close();
+    }
+
+    @Benchmark
+    public SPH findNeighbors() {
+        sph.findNeighbors();
+        return sph;
+    }
+
+    @Benchmark
+    public SPH computeDensities() {
+        sph.computeDensities();
+        return sph;
+    }
+
+    @Benchmark
+    public SPH computeForces() {
+        sph.computeForces();
+        return sph;
+    }
+
+    // A zero time step keeps the state fixed, so every invocation does the same work
+    @Benchmark
+    public SPH update() {
+        sph.update(0);
+        return sph;
+    }
+
+}
@@ -0,0 +1,134 @@
+package agfx.fluid;
+
+import org.joml.Vector3d;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Kernel evaluations per second over separations spread inside the support radius. The evaluator batches take the
+// Vector API path when the fork runs with --add-modules jdk.incubator.vector, as gradle jmh does on JDK 16 and later.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(KernelBenchmark.COUNT)
+public class KernelBenchmark {
+
+    static final int COUNT = 1024;
+    private static final double H = 1.0 / 12;
+
+    private final Vector3d[] r = new Vector3d[COUNT];
+    private final Vector3d result = new Vector3d();
+    private final double[] dx = new double[COUNT], dy = new double[COUNT], dz = new double[COUNT], mass = new double[COUNT];
+    private final double[] spiky = new double[COUNT], viscosity = new double[COUNT], gradient = new double[COUNT], laplacian = new double[COUNT];
+    private final float[] dxf = new float[COUNT], dyf = new float[COUNT], dzf = new float[COUNT], massf = new float[COUNT];
+    private final float[] spikyf = new float[COUNT], viscosityf = new float[COUNT], gradientf = new float[COUNT], laplacianf = new float[COUNT];
+    private final KernelEvaluator scalar = new KernelEvaluator(H);
+    private final KernelEvaluator best = KernelEvaluator.of(H);
+
+    @Setup
+    public void setup() {
+        Random rng = new Random(28);
+        for (int i = 0; i < COUNT; ++i) {
+            Vector3d v = new Vector3d(rng.nextDouble(), rng.nextDouble(), rng.nextDouble()).sub(0.5, 0.5, 0.5);
+            r[i] = v.normalize(H * (0.05 + 0.95 * rng.nextDouble()));
+            dx[i] = r[i].x; dy[i] = r[i].y; dz[i] = r[i].z;
+            mass[i] = 1;
+            dxf[i] = (float) dx[i]; dyf[i] = (float) dy[i]; dzf[i] = (float) dz[i];
+            massf[i] = 1;
+        }
+    }
+
+    private void kernel(Kernel k, Blackhole bh) {
+        for (Vector3d v : r)
+            bh.consume(k.kernel(v, H));
+    }
+
+    private void gradient(Kernel k, Blackhole bh) {
+        for (Vector3d v : r)
+            bh.consume(k.gradient(v, H, result));
+    }
+
+    private void laplacian(Kernel k, Blackhole bh) {
+        for (Vector3d v : r)
+            bh.consume(k.laplacian(v, H));
+    }
+
+    @Benchmark public void poly6Kernel(Blackhole bh) { kernel(Kernel.POLY_6, bh); }
+    @Benchmark public void poly6Gradient(Blackhole bh) { gradient(Kernel.POLY_6, bh); }
+    @Benchmark public void poly6Laplacian(Blackhole bh) { laplacian(Kernel.POLY_6, bh); }
+    @Benchmark public void spikyKernel(Blackhole bh) { kernel(Kernel.SPIKY, bh); }
+    @Benchmark public void spikyGradient(Blackhole bh) { gradient(Kernel.SPIKY, bh); }
+    @Benchmark public void spikyLaplacian(Blackhole bh) { laplacian(Kernel.SPIKY, bh); }
+    @Benchmark public void viscosityKernel(Blackhole bh) { kernel(Kernel.VISCOSITY, bh); }
+    @Benchmark public void viscosityGradient(Blackhole bh) { gradient(Kernel.VISCOSITY, bh); }
+    @Benchmark public void viscosityLaplacian(Blackhole bh) { laplacian(Kernel.VISCOSITY, bh); }
+
+    // The density sum and force factors SPH takes per particle, through the Kernel interface and the evaluator
+
+    @Benchmark
+    public double densityKernel() {
+        double density = 0;
+        for (int i = 0; i < COUNT; ++i)
+            density += mass[i] * Kernel.POLY_6.kernel(r[i], H);
+        return density;
+    }
+
+    @Benchmark
+    public double densityScalar() {
+        return scalar.density(dx, dy, dz, mass, COUNT);
+    }
+
+    @Benchmark
+    public double densityBatch() {
+        return best.density(dx, dy, dz, mass, COUNT);
+    }
+
+    @Benchmark
+    public float densityFloat() {
+        return best.density(dxf, dyf, dzf, massf, COUNT);
+    }
+
+    @Benchmark
+    public void forceKernel(Blackhole bh) {
+        for (Vector3d v : r) {
+            bh.consume(Kernel.SPIKY.gradient(v, H, result));
+            bh.consume(Kernel.VISCOSITY.laplacian(v, H));
+            bh.consume(Kernel.POLY_6.gradient(v, H, result));
+            bh.consume(Kernel.POLY_6.laplacian(v, H));
+        }
+    }
+
+    @Benchmark
+    public double[] forceScalar() {
+        scalar.forceFactors(dx, dy, dz, COUNT, spiky, viscosity, gradient, laplacian);
+        return laplacian;
+    }
+
+    @Benchmark
+    public double[] forceBatch() {
+        best.forceFactors(dx, dy, dz, COUNT, spiky, viscosity, gradient, laplacian);
+        return laplacian;
+    }
+
+    @Benchmark
+    public float[] forceFloat() {
+        best.forceFactors(dxf, dyf, dzf, COUNT, spikyf, viscosityf, gradientf, laplacianf);
+        return laplacianf;
+    }
+
+}
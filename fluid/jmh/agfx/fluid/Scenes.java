@@ -0,0 +1,69 @@
+package agfx.fluid;
+
+import agfx.Cloud;
+import org.joml.Vector3d;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Random;
+
+// Benchmark scenes, described as either sphere:<count> or the name of a bundled cloud
+final class Scenes {
+    private Scenes() {}
+
+    static final double DT = 0.002;
+
+    static Cloud cloud(String spec) {
+        if (spec.startsWith("sphere:"))
+            return Cloud.sphere(0.5, new Vector3d(), Integer.parseInt(spec.substring(7)), new Random(28));
+        try (InputStream in = Scenes.class.getResourceAsStream("/clouds/" + spec + ".txt")) {
+            if (in == null) throw new IllegalArgumentException("No such cloud: " + spec);
+            return Cloud.load(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static double volume(String spec, Cloud cloud) {
+        if (spec.startsWith("sphere:"))
+            return 4 * Math.PI / 3 * 0.5 * 0.5 * 0.5;
+        Vector3d extent = new Vector3d(cloud.max).sub(cloud.min);
+        return extent.x * extent.y * extent.z;
+    }
+
+    // Four times the median distance to the nearest neighbor over a sample of points, which keeps the neighbor
+    // count about the same for filled spheres and for the surface samples in the bundled clouds
+    static double kernelRadius(Cloud cloud) {
+        Random rng = new Random(28);
+        Vector3d p = new Vector3d();
+        Vector3d q = new Vector3d();
+        double[] nearest = new double[Math.min(cloud.size(), 256)];
+        for (int i = 0; i < nearest.length; ++i) {
+            int pi = rng.nextInt(cloud.size());
+            cloud.getVertex(pi, p);
+            nearest[i] = Double.POSITIVE_INFINITY;
+            for (int qi = 0; qi < cloud.size(); ++qi)
+                if (qi != pi)
+                    nearest[i] = Math.min(nearest[i], p.distanceSquared(cloud.getVertex(qi, q)));
+        }
+        Arrays.sort(nearest);
+        return 4 * Math.sqrt(nearest[nearest.length / 2]);
+    }
+
+    // Main's scene, with h scaled to the spacing of the cloud
+    static SPH sph(String spec) {
+        Cloud cloud = cloud(spec);
+        int count = cloud.size();
+        double volume = volume(spec, cloud);
+        double h = kernelRadius(cloud);
+
+        SPH sph = new SPH(count, h, cloud.min, cloud.max);
+        Fluid water = new Fluid(0.01801528, 995.7, 101325, 25, 1498, 0.001);
+        sph.gravity.set(0, -9.8, 0);
+        sph.addParticles(cloud, water, water.restDensity / count * volume);
+        return sph;
+    }
+
+}
@@ -0,0 +1,59 @@
+package agfx.fluid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Wall time for each pressure solver to simulate the same stretch of Main's scene, each at its own stable step
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SolverBenchmark {
+
+    // Simulated seconds per invocation
+    static final double DURATION = 0.02;
+    // The cap on the adaptive step, well above what either solver takes once the scene is moving
+    static final double MAX_DT = 0.01;
+
+    @Param({"sphere:4000", "sphere:16384"})
+    public String cloud;
+
+    @Param({"EXPLICIT", "PCISPH"})
+    public String solver;
+
+    private SPH sph;
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        sph = Scenes.sph(cloud);
+        sph.setPressureSolver(SPH.PressureSolver.valueOf(solver));
+    }
+
+    @TearDown(Level.Invocation)
+    public void teardown() {
+        sph.close();
+    }
+
+    @Benchmark
+    public SPH simulate() {
+        while (sph.time() < DURATION)
+            sph.updateAdaptive(MAX_DT);
+        return sph;
+    }
+
+}
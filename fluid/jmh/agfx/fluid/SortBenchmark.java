@@ -0,0 +1,103 @@
+package agfx.fluid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// SPH.sort against the boxed parallelSort it replaced, on a store that has drifted by one step's worth of motion
+// since it was last sorted and on a fully shuffled one
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SortBenchmark {
+
+    public enum Order { DRIFTED, SHUFFLED }
+
+    @Param({"10000", "100000", "1000000"})
+    public int count;
+
+    @Param({"DRIFTED", "SHUFFLED"})
+    public Order order;
+
+    private SPH sph;
+    private double[] px, py, pz;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sph = Scenes.sph("sphere:" + count);
+        sph.sort();
+        ParticleStore s = sph.store;
+        int n = s.size;
+        Random rng = new Random(28);
+        if (order == Order.DRIFTED) {
+            // About what a particle moving at 1 m/s covers in a step
+            double d = 1 * Scenes.DT;
+            for (int r = 0; r < n; ++r) {
+                s.px[r] += d * (2 * rng.nextDouble() - 1);
+                s.py[r] += d * (2 * rng.nextDouble() - 1);
+                s.pz[r] += d * (2 * rng.nextDouble() - 1);
+            }
+        } else {
+            int[] shuffle = new int[n];
+            Arrays.setAll(shuffle, i -> i);
+            for (int i = n - 1; i > 0; --i) {
+                int j = rng.nextInt(i + 1);
+                int t = shuffle[i]; shuffle[i] = shuffle[j]; shuffle[j] = t;
+            }
+            s.permute(shuffle);
+        }
+        px = Arrays.copyOf(s.px, n);
+        py = Arrays.copyOf(s.py, n);
+        pz = Arrays.copyOf(s.pz, n);
+    }
+
+    // Only the positions decide the order, so putting them back restores the unsorted state
+    @Setup(Level.Invocation)
+    public void unsort() {
+        ParticleStore s = sph.store;
+        System.arraycopy(px, 0, s.px, 0, px.length);
+        System.arraycopy(py, 0, s.py, 0, py.length);
+        System.arraycopy(pz, 0, s.pz, 0, pz.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        sph.close();
+    }
+
+    @Benchmark
+    public SPH sort() {
+        sph.sort();
+        return sph;
+    }
+
+    // The previous implementation: a comparator recomputing both cells on every comparison
+    @Benchmark
+    public SPH parallelSort() {
+        ParticleStore s = sph.store;
+        Integer[] rows = new Integer[s.size];
+        Arrays.setAll(rows, Integer::valueOf);
+        Arrays.parallelSort(rows, Comparator.comparingLong(sph::cell));
+        s.permute(Arrays.stream(rows).mapToInt(Integer::intValue).toArray());
+        return sph;
+    }
+
+}
@@ -0,0 +1,93 @@
+package agfx.fluid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Each stage of SPH.update on its own, run against the state left by one full step
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmark {
+
+    @Param({"sphere:1000", "sphere:10000", "sphere:100000"})
+    public String cloud;
+
+    private SPH sph;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        sph = Scenes.sph(cloud);
+        sph.update(Scenes.DT);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() {
+        sph.close();
+    }
+
+    // A zero time step leaves the particles where they are, so the other stages keep seeing the same state
+    @Benchmark
+    public SPH integrate() {
+        sph.integrate(0);
+        return sph;
+    }
+
+    @Benchmark
+    public SPH removeUnstable() {
+        sph.removeUnstable();
+        return sph;
+    }
+
+    @Benchmark
+    public SPH sort() {
+        sph.sort();
+        return sph;
+    }
+
+    @Benchmark
+    public SPH findNeighbors() {
+        sph.findNeighbors();
+        return sph;
+    }
+
+    @Benchmark
+    public SPH computeDensities() {
+        sph.computeDensities();
+        return sph;
+    }
+
+    @Benchmark
+    public SPH computeForces() {
+        sph.computeForces();
+        return sph;
+    }
+
+    @Benchmark
+    public SPH computeAccelerations() {
+        sph.computeAccelerations(0);
+        return sph;
+    }
+
+    @Benchmark
+    public SPH computeFused() {
+        sph.computeFused(0);
+        return sph;
+    }
+
+}
@@ -0,0 +1,56 @@
+package agfx.fluid;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// A full SPH.update step
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdateBenchmark {
+
+    @Param({"sphere:1000", "sphere:10000", "sphere:100000", "teapot_10000", "bunny1k10000", "cactus10000", "cube10000"})
+    public String cloud;
+
+    @Param({"STAGED", "SYMMETRIC", "FUSED"})
+    public String mode;
+
+    private SPH sph;
+
+    // Each iteration starts over so that every one measures the same stretch of the simulation
+    @Setup(Level.Iteration)
+    public void setup() {
+        sph = Scenes.sph(cloud);
+        if (mode.equals("SYMMETRIC"))
+            sph.setSymmetric(true);
+        else sph.setPipeline(SPH.Pipeline.valueOf(mode));
+    }
+
+    @TearDown(Level.Iteration)
+    public void teardown() {
+        sph.close();
+    }
+
+    @Benchmark
+    public SPH update() {
+        sph.update(Scenes.DT);
+        return sph;
+    }
+
+}
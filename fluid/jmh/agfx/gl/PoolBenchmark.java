@@ -0,0 +1,106 @@
+package agfx.gl;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Request, reclaim and compact churn on a pool that is kept about half full.
+// Allocation cost should not depend on the capacity: compare each benchmark across the capacity parameter.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PoolBenchmark {
+
+    private static final int BLOCK = 24;
+
+    @Param({"1024", "16384", "131072"})
+    public int capacity;
+
+    @Param({"256"})
+    public int churn;
+
+    private VertexPoolArray pool;
+    private int[] live;
+    private int count;
+    private Random rng;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        pool = new VertexPoolArray(capacity, BLOCK);
+        live = new int[capacity];
+        count = 0;
+        rng = new Random(28);
+        while (count < capacity / 2)
+            live[count++] = pool.request();
+    }
+
+    @TearDown(Level.Iteration)
+    public void teardown() {
+        pool.close();
+    }
+
+    private void reclaimRandom() {
+        for (int i = 0; i < churn; ++i) {
+            int j = rng.nextInt(count);
+            pool.reclaim(live[j]);
+            live[j] = live[--count];
+        }
+    }
+
+    private void refill() {
+        for (int i = 0; i < churn; ++i)
+            live[count++] = pool.request();
+    }
+
+    @Benchmark
+    public VertexPoolArray requestReclaim() {
+        reclaimRandom();
+        refill();
+        return pool;
+    }
+
+    // Requests churn blocks one at a time after the dense half of the pool, then hands them back
+    @Benchmark
+    public int[] requestSequential() {
+        int[] v = new int[churn];
+        for (int i = 0; i < churn; ++i)
+            v[i] = pool.request();
+        pool.reclaim(v);
+        return v;
+    }
+
+    @Benchmark
+    public int[] requestBulk() {
+        int[] v = pool.request(churn);
+        pool.reclaim(v);
+        return v;
+    }
+
+    @Benchmark
+    public Map<Integer, Integer> reclaimCompact() {
+        reclaimRandom();
+        Map<Integer, Integer> map = pool.compact();
+        for (int i = 0; i < count; ++i)
+            live[i] = map.getOrDefault(live[i], live[i]);
+        refill();
+        return map;
+    }
+
+}
@@ -0,0 +1,97 @@
+package agfx.fluid;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Batches over the widest double lanes the CPU has, with the scalar forms finishing each tail.
+// Only loaded through KernelEvaluator.of when jdk.incubator.vector is in the boot layer.
+final class VectorKernelEvaluator extends KernelEvaluator {
+
+    private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+
+    VectorKernelEvaluator(double h) {
+        super(h);
+    }
+
+    @Override
+    public boolean isVectorized() {
+        return true;
+    }
+
+    @Override
+    public int lanes() {
+        return Math.max(S.length(), F.length());
+    }
+
+    @Override
+    public double density(double[] dx, double[] dy, double[] dz, double[] mass, int n) {
+        DoubleVector sum = DoubleVector.zero(S);
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector x = DoubleVector.fromArray(S, dx, i);
+            DoubleVector y = DoubleVector.fromArray(S, dy, i);
+            DoubleVector z = DoubleVector.fromArray(S, dz, i);
+            DoubleVector w = DoubleVector.broadcast(S, h2).sub(x.mul(x).add(y.mul(y)).add(z.mul(z)));
+            sum = sum.add(DoubleVector.fromArray(S, mass, i).mul(w.mul(w).mul(w)));
+        }
+        return poly6 * (sum.reduceLanes(VectorOperators.ADD) + densitySum(dx, dy, dz, mass, i, n));
+    }
+
+    @Override
+    public void forceFactors(double[] dx, double[] dy, double[] dz, int n,
+                             double[] spiky, double[] viscosity, double[] gradient, double[] laplacian) {
+        int i = 0;
+        for (int bound = S.loopBound(n); i < bound; i += S.length()) {
+            DoubleVector x = DoubleVector.fromArray(S, dx, i);
+            DoubleVector y = DoubleVector.fromArray(S, dy, i);
+            DoubleVector z = DoubleVector.fromArray(S, dz, i);
+            DoubleVector d2 = x.mul(x).add(y.mul(y)).add(z.mul(z));
+            DoubleVector r = d2.sqrt();
+            DoubleVector a = DoubleVector.broadcast(S, h).sub(r);
+            DoubleVector b = DoubleVector.broadcast(S, h2).sub(d2);
+            a.mul(spikyGradient).mul(a).div(r).intoArray(spiky, i);
+            a.mul(viscosityLaplacian).intoArray(viscosity, i);
+            b.mul(poly6Gradient).mul(b).intoArray(gradient, i);
+            d2.sub(h2).mul(poly6Gradient).mul(d2.mul(7).sub(3 * h2)).intoArray(laplacian, i);
+        }
+        forceFactors(dx, dy, dz, i, n, spiky, viscosity, gradient, laplacian);
+    }
+
+    @Override
+    public float density(float[] dx, float[] dy, float[] dz, float[] mass, int n) {
+        FloatVector sum = FloatVector.zero(F);
+        int i = 0;
+        for (int bound = F.loopBound(n); i < bound; i += F.length()) {
+            FloatVector x = FloatVector.fromArray(F, dx, i);
+            FloatVector y = FloatVector.fromArray(F, dy, i);
+            FloatVector z = FloatVector.fromArray(F, dz, i);
+            FloatVector w = FloatVector.broadcast(F, h2f).sub(x.mul(x).add(y.mul(y)).add(z.mul(z)));
+            sum = sum.add(FloatVector.fromArray(F, mass, i).mul(w.mul(w).mul(w)));
+        }
+        return poly6f * (sum.reduceLanes(VectorOperators.ADD) + densitySum(dx, dy, dz, mass, i, n));
+    }
+
+    @Override
+    public void forceFactors(float[] dx, float[] dy, float[] dz, int n,
+                             float[] spiky, float[] viscosity, float[] gradient, float[] laplacian) {
+        int i = 0;
+        for (int bound = F.loopBound(n); i < bound; i += F.length()) {
+            FloatVector x = FloatVector.fromArray(F, dx, i);
+            FloatVector y = FloatVector.fromArray(F, dy, i);
+            FloatVector z = FloatVector.fromArray(F, dz, i);
+            FloatVector d2 = x.mul(x).add(y.mul(y)).add(z.mul(z));
+            FloatVector r = d2.sqrt();
+            FloatVector a = FloatVector.broadcast(F, hf).sub(r);
+            FloatVector b = FloatVector.broadcast(F, h2f).sub(d2);
+            a.mul(spikyGradientf).mul(a).div(r).intoArray(spiky, i);
+            a.mul(viscosityLaplacianf).intoArray(viscosity, i);
+            b.mul(poly6Gradientf).mul(b).intoArray(gradient, i);
+            d2.sub(h2f).mul(poly6Gradientf).mul(d2.mul(7).sub(3 * h2f)).intoArray(laplacian, i);
+        }
+        forceFactors(dx, dy, dz, i, n, spiky, viscosity, gradient, laplacian);
+    }
+
+}
@@ -0,0 +1,227 @@
+import agfx.Cloud;
+import agfx.fluid.Fluid;
+import agfx.fluid.FrameRecorder;
+import agfx.fluid.SPH;
+import agfx.fluid.VoxelSDF;
+import org.joml.Vector3d;
+
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+// Steps the simulation as fast as possible without a window or an OpenGL context
+public final class Headless {
+    private Headless() {}
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: Headless [options]",
+            "  --cloud=sphere:<count>|<file>  particles to start from, a text or binary (.cloud) file (sphere:16384)",
+            "  --steps=<n>                    steps to run (1000)",
+            "  --dt=<seconds>                 time step, or the largest one with --adaptive (0.002)",
+            "  --adaptive                     step by the stable time step from the CFL, viscosity and force limits",
+            "  --courant=<c>                  safety factor on the CFL condition of --adaptive (0.4)",
+            "  --eos=IDEAL_GAS|TAIT           equation of state, TAIT driven by the fluid's speed of sound (IDEAL_GAS)",
+            "  --solver=EXPLICIT|PCISPH       pressure from the equation of state, or iterated to incompressibility (EXPLICIT)",
+            "  --tolerance=<fraction>         mean density error PCISPH iterates down to (0.01)",
+            "  --iterations=<n>               most PCISPH iterations per step (50)",
+            "  --h=<meters>                   kernel radius (0.0833)",
+            "  --skin=<meters>                Verlet skin, 0 to rebuild neighbors every step (0)",
+            "  --symmetric                    evaluate each pair once over half neighbor lists",
+            "  --pipeline=STAGED|FUSED        how the per-step passes are scheduled (STAGED)",
+            "  --cells=ROW_MAJOR|MORTON       cell order of the sort and the neighbor search (ROW_MAJOR)",
+            "  --precision-check              sum densities with the float kernels too on report steps, and print how far off they are",
+            "  --boundary=<file>              static boundary particles, e.g. terrain, as a text or binary (.cloud) file",
+            "  --erosion=<rate>:<capacity>[:<kg>]  carry sediment eroded from and deposited onto the boundary, starting",
+            "                                 with the given loose sediment on each boundary particle (none, 0 kg)",
+            "  --sediment-diffusivity=<m^2/s> how fast carried sediment spreads between particles (0)",
+            "  --collider=<file>              a solid the fluid flows around, from a cloud of surface points with normals",
+            "  --collider-cell=<meters>       voxel size of the collider's distance field (h / 2)",
+            "  --open                         no walls, particles leave the cloud's bounds freely (implies --cells=MORTON)",
+            "  --dump=<n>                     write every nth frame, 0 for none (0)",
+            "  --out=<dir>                    where frames are written (frames)",
+            "  --record=<file>                stream frames to a binary file on a background thread",
+            "  --every=<n>                    record every nth step (10)",
+            "  --compression=NONE|QUANTIZED|DELTA  how recorded frames are encoded (DELTA)",
+            "  --policy=BLOCK|DROP            whether a slow writer stalls the simulation or loses frames (BLOCK)",
+            "  --checkpoint=<file>            save the full state every --checkpoint-every steps and at the end",
+            "  --checkpoint-every=<n>         steps between checkpoints, 0 for only at the end (0)",
+            "  --restore=<file>               continue from a checkpoint instead of starting from --cloud",
+            "  --report=<n>                   print throughput every n steps (100)");
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + arg);
+            int eq = arg.indexOf('=');
+            if (eq < 0) options.put(arg.substring(2), "true");
+            else options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    private static Cloud load(String spec) throws IOException {
+        if (spec.startsWith("sphere:"))
+            return Cloud.sphere(0.5, new Vector3d(0, 0, 0), Integer.parseInt(spec.substring(7)), new Random(28));
+        if (spec.endsWith(".cloud"))
+            return Cloud.map(Paths.get(spec));
+        try (InputStream in = new FileInputStream(spec)) {
+            return Cloud.load(in);
+        }
+    }
+
+    // Frames use the same text format as the bundled clouds, so they can be loaded back with Cloud.load
+    private static void dump(SPH sph, Path file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            Vector3d pos = new Vector3d();
+            Vector3d normal = new Vector3d();
+            for (SPH.Particle p : (Iterable<SPH.Particle>) sph.particles()::iterator) {
+                p.getPos(pos);
+                p.getNormal(normal);
+                out.write(pos.x + " " + pos.y + " " + pos.z + " " + normal.x + " " + normal.y + " " + normal.z);
+                out.newLine();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = parse(args);
+        if (options.containsKey("help")) {
+            System.out.println(USAGE);
+            return;
+        }
+        int steps = Integer.parseInt(options.getOrDefault("steps", "1000"));
+        double dt = Double.parseDouble(options.getOrDefault("dt", "0.002"));
+        double h = Double.parseDouble(options.getOrDefault("h", Double.toString(1.0 / 12)));
+        int dump = Integer.parseInt(options.getOrDefault("dump", "0"));
+        int report = Integer.parseInt(options.getOrDefault("report", "100"));
+        Path out = Paths.get(options.getOrDefault("out", "frames"));
+        Path checkpoint = options.containsKey("checkpoint") ? Paths.get(options.get("checkpoint")) : null;
+        int checkpointEvery = Integer.parseInt(options.getOrDefault("checkpoint-every", "0"));
+        boolean adaptive = options.containsKey("adaptive");
+
+        SPH sph;
+        if (options.containsKey("restore")) {
+            // The checkpoint carries its own configuration, so the setup options are ignored
+            sph = SPH.restore(Paths.get(options.get("restore")));
+        } else {
+            Cloud cloud = load(options.getOrDefault("cloud", "sphere:" + (1 << 14)));
+            int count = cloud.size();
+            double volume = 4*Math.PI/3 * 0.5*0.5*0.5;
+
+            sph = new SPH(count, h, cloud.min, cloud.max);
+            Fluid water = new Fluid(0.01801528, 995.7, 101325, 25, 1498, 0.001);
+            sph.gravity.set(0, -9.8, 0);
+            sph.setVerletSkin(Double.parseDouble(options.getOrDefault("skin", "0")));
+            sph.setSymmetric(options.containsKey("symmetric"));
+            sph.setPipeline(SPH.Pipeline.valueOf(options.getOrDefault("pipeline", "STAGED")));
+            sph.setCellOrder(SPH.CellOrder.valueOf(options.getOrDefault("cells", "ROW_MAJOR")));
+            sph.setWalls(!options.containsKey("open"));
+            if (options.containsKey("precision-check"))
+                sph.setPrecisionCheck(report);
+            sph.setEquationOfState(SPH.EquationOfState.valueOf(options.getOrDefault("eos", "IDEAL_GAS")));
+            sph.setCourant(Double.parseDouble(options.getOrDefault("courant", "0.4")));
+            sph.setPressureSolver(SPH.PressureSolver.valueOf(options.getOrDefault("solver", "EXPLICIT")));
+            sph.setSolverTolerance(Double.parseDouble(options.getOrDefault("tolerance", "0.01")));
+            sph.setMaxIterations(Integer.parseInt(options.getOrDefault("iterations", "50")));
+            sph.addParticles(cloud, water, water.restDensity / count * volume);
+            if (options.containsKey("boundary"))
+                sph.addBoundary(load(options.get("boundary")));
+            if (options.containsKey("erosion")) {
+                String[] erosion = options.get("erosion").split(":");
+                int sediment = sph.addChannel("sediment", Double.parseDouble(options.getOrDefault("sediment-diffusivity", "0")));
+                sph.setErosion(sediment, Double.parseDouble(erosion[0]), Double.parseDouble(erosion[1]));
+                double bed = erosion.length > 2 ? Double.parseDouble(erosion[2]) : 0;
+                for (int i = 0; i < sph.boundarySize(); ++i)
+                    sph.setBoundarySediment(i, bed);
+            }
+        }
+        // Colliders are not part of a checkpoint, so they are added to a restored simulation too
+        if (options.containsKey("collider")) {
+            double cell = Double.parseDouble(options.getOrDefault("collider-cell", Double.toString(sph.getKernelRadius() / 2)));
+            sph.addCollider(VoxelSDF.of(load(options.get("collider")), cell));
+        }
+        try {
+            CompletableFuture<Path> saved = CompletableFuture.completedFuture(null);
+
+            FrameRecorder recorder = null;
+            if (options.containsKey("record")) {
+                recorder = new FrameRecorder(Paths.get(options.get("record")),
+                        Integer.parseInt(options.getOrDefault("every", "10")),
+                        FrameRecorder.Compression.valueOf(options.getOrDefault("compression", "DELTA")),
+                        FrameRecorder.Policy.valueOf(options.getOrDefault("policy", "BLOCK")));
+                sph.addStepListener(recorder);
+            }
+
+            if (dump > 0)
+                Files.createDirectories(out);
+
+            long start = System.nanoTime();
+            long last = start;
+            long particleSteps = 0;
+            long window = 0;
+            double startTime = sph.time();
+            double lastTime = startTime;
+            long lastIterations = sph.iterations();
+            for (int step = 1; step <= steps; ++step) {
+                if (adaptive)
+                    sph.updateAdaptive(dt);
+                else sph.update(dt);
+                if (checkpoint != null && (step == steps || checkpointEvery > 0 && step % checkpointEvery == 0))
+                    saved = sph.checkpoint().writeAsync(checkpoint);
+                particleSteps += sph.store.size();
+                window += sph.store.size();
+
+                if (dump > 0 && step % dump == 0) {
+                    // Frames are written outside of the timed region
+                    long paused = System.nanoTime();
+                    dump(sph, out.resolve(String.format("frame_%06d.txt", step)));
+                    long resumed = System.nanoTime();
+                    start += resumed - paused;
+                    last += resumed - paused;
+                }
+
+                if (report > 0 && step % report == 0) {
+                    long now = System.nanoTime();
+                    double seconds = (now - last) / 1e9;
+                    System.out.printf("step %d: %.4f simulated s/s, %.1f steps/s, mean dt %.3g s, %.3g particle-steps/s, %d particles, %d removed as unstable%n",
+                            step, (sph.time() - lastTime) / seconds, report / seconds, (sph.time() - lastTime) / report,
+                            window / seconds, sph.store.size(), sph.unstable());
+                    if (sph.getPressureSolver() == SPH.PressureSolver.PCISPH)
+                        System.out.printf("  %.1f solver iterations/step, last step %d iterations to density error %.2e mean, %.2e max%n",
+                                (double) (sph.iterations() - lastIterations) / report, sph.lastIterations(),
+                                sph.lastDensityError(), sph.lastMaxDensityError());
+                    if (sph.getPrecisionCheck() > 0)
+                        System.out.printf("  float densities within %.2e of double (worst so far %.2e)%n", sph.lastPrecisionError(), sph.maxPrecisionError());
+                    last = now;
+                    lastTime = sph.time();
+                    lastIterations = sph.iterations();
+                    window = 0;
+                }
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d steps in %.3f s: %.4f simulated s/s (%.4f s simulated), %.1f steps/s, %.3g particle-steps/s, neighbor rebuilds %.1f%%%n",
+                    steps, seconds, (sph.time() - startTime) / seconds, sph.time() - startTime, steps / seconds,
+                    particleSteps / seconds, 100 * sph.rebuildFrequency());
+            if (checkpoint != null)
+                System.out.printf("checkpoint at step %d saved to %s%n", sph.steps(), saved.join());
+            if (recorder != null) {
+                recorder.close();
+                System.out.printf("recorded %d frames (%d dropped), %.3g MB at %.3g MB/s, simulation blocked %.3f s%n",
+                        recorder.framesWritten(), recorder.framesDropped(), recorder.bytesWritten() / 1e6,
+                        recorder.throughput() / 1e6, recorder.blockedSeconds());
+            }
+        } finally {
+            sph.close();
+        }
+    }
+
+}
@@ -1,7 +1,10 @@
 import agfx.Cloud;
 import agfx.fluid.Fluid;
 import agfx.fluid.SPH;
+import agfx.fluid.SimulationThread;
+import agfx.gl.GLBufferBackend;
 import agfx.gl.Program;
+import agfx.gl.RenderBuffer;
 import agfx.gl.Utils;
 import org.joml.Matrix4d;
 import org.joml.Vector2d;
@@ -18,7 +21,6 @@ import org.lwjgl.system.MemoryUtil;
 import java.io.File;
 import java.io.IOException;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.util.Optional;
 import java.util.Random;
 import java.util.Stack;
@@ -38,6 +40,8 @@ public final class Main {
 
     private static final int WIDTH = 256;
     private static final int HEIGHT = 256;
+    // Simulation steps allowed between two rendered frames, 0 for no limit
+    private static final int MAX_STEPS_PER_FRAME = 4;
 
     public static void main(String[] args) {
         Stack<AutoCloseable> cleanup = new Stack<>();
@@ -80,8 +84,8 @@ public final class Main {
             cleanup.push(GL::destroy);
 
             Cloud cloud = Cloud.sphere(0.5, new Vector3d(0, 0, 0), 1 << 14, new Random(28));
-            // Cloud cloud = Cloud.load(new FileInputStream("res/clouds/teapot_10000.txt"));
-            int count = cloud.points.size();
+            // Cloud cloud = Cloud.map(Paths.get("build/clouds/teapot_10000.cloud"));
+            int count = cloud.size();
 
             Vector3dc extent = new Vector3d(cloud.max).sub(cloud.min);
             double h = 1.0 / 12;
@@ -91,10 +95,12 @@ public final class Main {
             Fluid water = new Fluid(0.01801528, 995.7, 101325, 25, 1498, 0.001);
             sph.gravity.set(0, -9.8, 0);
 
-            for (Cloud.Point point : cloud.points) {
+            Vector3d vertex = new Vector3d();
+            Vector3d normal = new Vector3d();
+            for (int i = 0; i < count; ++i) {
                 SPH.Particle p = sph.addParticle(water, water.restDensity / count * volume);
-                p.pos.set(point.vertex);
-                p.normal.set(point.normal).negate();
+                p.setPos(cloud.getVertex(i, vertex));
+                p.setNormal(cloud.getNormal(i, normal).negate());
                 p.pack();
             }
 
@@ -102,16 +108,16 @@ public final class Main {
             cleanup.push(() -> glDeleteVertexArrays(vao));
             glBindVertexArray(vao);
 
-            int vbo = glGenBuffers();
-            cleanup.push(() -> glDeleteBuffers(vbo));
-            glBindBuffer(GL_ARRAY_BUFFER, vbo);
-            glVertexAttribPointer(0, 3, GL_FLOAT, false, 6 * Utils.sizeof(GL_FLOAT), 0);
-            glEnableVertexAttribArray(0);
-            glVertexAttribPointer(1, 3, GL_FLOAT, false, 6 * Utils.sizeof(GL_FLOAT), 12);
-            glEnableVertexAttribArray(1);
+            GLBufferBackend backend = new GLBufferBackend(() -> {
+                glVertexAttribPointer(0, 3, GL_FLOAT, false, 6 * Utils.sizeof(GL_FLOAT), 0);
+                glEnableVertexAttribArray(0);
+                glVertexAttribPointer(1, 3, GL_FLOAT, false, 6 * Utils.sizeof(GL_FLOAT), 12);
+                glEnableVertexAttribArray(1);
+            });
+            RenderBuffer vertices = new RenderBuffer(backend,
+                    GLBufferBackend.supportsPersistent() ? RenderBuffer.Strategy.PERSISTENT : RenderBuffer.Strategy.ORPHAN);
+            cleanup.push(vertices);
             glCheckError();
-            IntBuffer indices = MemoryUtil.memAllocInt(count);
-            cleanup.push(() -> MemoryUtil.memFree(indices));
 
             Program program = new Program();
             cleanup.push(program);
@@ -133,14 +139,27 @@ public final class Main {
             glCullFace(GL_BACK);
             glEnable(GL_BLEND);
             glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+            // The largest step; the stable one is usually smaller
             double dt = 0.002;
 
+            // Stepping off the GL thread, so a slow step never stalls a frame and vsync never throttles the steps
+            SimulationThread simulation = new SimulationThread(sph, dt);
+            simulation.setAdaptive(true);
+            simulation.setMaxStepsPerFrame(MAX_STEPS_PER_FRAME);
+            simulation.setPaused(true);
+            simulation.start();
+            cleanup.push(simulation);
+
+            long reported = System.nanoTime();
+            long reportedSteps = 0;
+            long reportedFrames = 0;
+            double reportedTime = 0;
+            long rendered = 0;
+
             glfwShowWindow(window);
             while (!glfwWindowShouldClose(window)) {
                 glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
-                if (glfwGetWindowAttrib(window, GLFW_HOVERED) != 0 && glfwGetMouseButton(window, GLFW_MOUSE_BUTTON_1) == GLFW_RELEASE)
-                    sph.update(dt);
-                glBufferData(GL_ARRAY_BUFFER, sph.pool.buffer(), GL_DYNAMIC_DRAW);
+                simulation.setPaused(glfwGetWindowAttrib(window, GLFW_HOVERED) == 0 || glfwGetMouseButton(window, GLFW_MOUSE_BUTTON_1) != GLFW_RELEASE);
 
                 Matrix4d mvp = new Matrix4d();
                 mvp.setOrtho(-1, 1, -1, 1, 0, 10);
@@ -151,11 +170,22 @@ public final class Main {
                 mvp.get(mvp_buf);
                 glUniformMatrix4fv(u_mvp, false, mvp_buf);
 
-                indices.clear();
-                sph.pool.streamUsed().forEach(indices::put);
-                indices.flip();
-
-                glDrawElements(GL_POINTS, indices);
+                SimulationThread.Frame frame = simulation.latest();
+                vertices.draw(frame.vertices, frame.count);
+                ++rendered;
+
+                long now = System.nanoTime();
+                if (now - reported >= 1_000_000_000L) {
+                    double seconds = (now - reported) / 1e9;
+                    long steps = simulation.steps();
+                    System.out.printf("%.4f simulated s/s, sim %.1f Hz, render %.1f Hz, step %d%n",
+                            (frame.time - reportedTime) / seconds, (steps - reportedSteps) / seconds,
+                            (rendered - reportedFrames) / seconds, frame.step);
+                    reported = now;
+                    reportedTime = frame.time;
+                    reportedSteps = steps;
+                    reportedFrames = rendered;
+                }
 
                 glfwSwapBuffers(window);
                 glfwPollEvents();
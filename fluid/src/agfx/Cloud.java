@@ -1,94 +1,232 @@
 package agfx;
 
-import agfx.gl.Utils;
 import org.joml.Vector3d;
 import org.joml.Vector3dc;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.LinkedHashSet;
-import java.util.NoSuchElementException;
-import java.util.Objects;
 import java.util.Random;
-import java.util.Scanner;
-import java.util.Set;
 
+// Points with normals, packed as records of six float32 or float64 components: vertex xyz then normal xyz
 public class Cloud {
 
-    public static Cloud load(InputStream in) throws NoSuchElementException, IllegalStateException {
-        Scanner scan = new Scanner(in);
-        Set<Point> points = new LinkedHashSet<>();
-        while (scan.hasNext()) {
-            double x = scan.nextDouble();
-            double y = scan.nextDouble();
-            double z = scan.nextDouble();
-            Vector3d vertex = new Vector3d(x, y, z);
-
-            x = scan.nextDouble();
-            y = scan.nextDouble();
-            z = scan.nextDouble();
-            Vector3d normal = new Vector3d(x, y, z);
-
-            points.add(new Point(vertex, normal));
+    // Binary layout, little endian:
+    //   int magic, int version, int bytes per component (4 or 8), int reserved,
+    //   long count, double[3] min, double[3] max, then count records
+    public static final int MAGIC = 0x444C4341; // "ACLD"
+    public static final int VERSION = 1;
+    public static final int HEADER = 72;
+    public static final int COMPONENTS = 6;
+
+    public static Cloud map(Path file) throws IOException, IllegalArgumentException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC) throw new IllegalArgumentException("Not a binary cloud: " + file);
+            if (header.getInt(4) != VERSION) throw new IllegalArgumentException("Unsupported cloud version " + header.getInt(4));
+            int precision = header.getInt(8);
+            if (precision != Float.BYTES && precision != Double.BYTES)
+                throw new IllegalArgumentException("Unsupported component size " + precision);
+            long count = header.getLong(16);
+            long length = count * COMPONENTS * precision;
+            if (length > Integer.MAX_VALUE || HEADER + length > channel.size())
+                throw new IllegalArgumentException("Truncated or oversized cloud: " + count + " points");
+
+            // The mapping stays valid after the channel is closed
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, HEADER, length).order(ByteOrder.LITTLE_ENDIAN);
+            Vector3d min = new Vector3d(header.getDouble(24), header.getDouble(32), header.getDouble(40));
+            Vector3d max = new Vector3d(header.getDouble(48), header.getDouble(56), header.getDouble(64));
+            return new Cloud(data, precision, (int) count, min, max);
         }
-        return new Cloud(points);
     }
 
-    public static Cloud sphere(double r, Vector3dc center, int count, Random rng) {
-        Set<Point> points = new LinkedHashSet<>();
-        while (points.size() < count) {
-            Vector3d vertex = new Vector3d(2*r*rng.nextDouble() - r,2*r*rng.nextDouble() - r, 2*r*rng.nextDouble() - r).add(center);
-            if (vertex.distanceSquared(center) <= r*r)
-                points.add(new Point(vertex, vertex.sub(center, new Vector3d()).normalize()));
+    // Legacy text format: whitespace separated vertex and normal components, six per point
+    public static Cloud load(InputStream in) throws IOException, IllegalArgumentException {
+        byte[] text = in.readAllBytes();
+        double[] values = new double[1024];
+        int n = 0;
+        int i = 0;
+        while (true) {
+            while (i < text.length && text[i] <= ' ')
+                ++i;
+            if (i == text.length)
+                break;
+            int start = i;
+            while (i < text.length && text[i] > ' ')
+                ++i;
+            if (n == values.length)
+                values = Arrays.copyOf(values, n * 2);
+            values[n++] = parseDouble(text, start, i);
         }
-        return new Cloud(points);
-    }
+        if (n % COMPONENTS != 0)
+            throw new IllegalArgumentException("Expected " + COMPONENTS + " values per point, found " + n + " values");
 
-    public static class Point {
-
-        public final Vector3dc vertex;
-        public final Vector3dc normal;
+        ByteBuffer data = ByteBuffer.allocate(n * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        data.asDoubleBuffer().put(values, 0, n);
+        return new Cloud(data, Double.BYTES, n / COMPONENTS);
+    }
 
-        private Point(Vector3dc v, Vector3dc n) {
-            vertex = v;
-            normal = n;
+    private static final double[] POW10 = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Exact for the plain decimals in the bundled clouds, where the digits fit in a double and the power of ten is
+    // itself exact; anything else goes through Double.parseDouble
+    static double parseDouble(byte[] text, int from, int to) throws NumberFormatException {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (text[i] == '-' || text[i] == '+'))
+            negative = text[i++] == '-';
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean any = false;
+        for (; i < to && text[i] >= '0' && text[i] <= '9'; ++i, any = true) {
+            if (mantissa != 0 || text[i] != '0')
+                ++digits;
+            mantissa = mantissa * 10 + (text[i] - '0');
         }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(vertex, normal);
+        if (i < to && text[i] == '.') {
+            for (++i; i < to && text[i] >= '0' && text[i] <= '9'; ++i, any = true) {
+                if (mantissa != 0 || text[i] != '0')
+                    ++digits;
+                mantissa = mantissa * 10 + (text[i] - '0');
+                --scale;
+            }
+        }
+        if (any && i < to && (text[i] == 'e' || text[i] == 'E')) {
+            int j = i + 1;
+            boolean negExp = false;
+            if (j < to && (text[j] == '-' || text[j] == '+'))
+                negExp = text[j++] == '-';
+            int exp = 0;
+            int expStart = j;
+            for (; j < to && text[j] >= '0' && text[j] <= '9' && exp < 10000; ++j)
+                exp = exp * 10 + (text[j] - '0');
+            if (j > expStart) {
+                scale += negExp ? -exp : exp;
+                i = j;
+            }
         }
+        if (!any || i != to || digits > 15 || scale < -22 || scale > 22)
+            return Double.parseDouble(new String(text, from, to - from, StandardCharsets.US_ASCII));
+        double value = scale < 0 ? mantissa / POW10[-scale] : mantissa * POW10[scale];
+        return negative ? -value : value;
+    }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof Point) {
-                Point p = ((Point) obj);
-                return vertex.equals(p.vertex, Utils.EPSILON) && normal.equals(p.vertex, Utils.EPSILON);
-            } else return false;
+    public static Cloud sphere(double r, Vector3dc center, int count, Random rng) {
+        ByteBuffer data = ByteBuffer.allocate(count * COMPONENTS * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        Vector3d vertex = new Vector3d();
+        Vector3d normal = new Vector3d();
+        while (data.hasRemaining()) {
+            vertex.set(2*r*rng.nextDouble() - r,2*r*rng.nextDouble() - r, 2*r*rng.nextDouble() - r).add(center);
+            if (vertex.distanceSquared(center) <= r*r) {
+                vertex.sub(center, normal).normalize();
+                data.putDouble(vertex.x).putDouble(vertex.y).putDouble(vertex.z);
+                data.putDouble(normal.x).putDouble(normal.y).putDouble(normal.z);
+            }
         }
+        data.flip();
+        return new Cloud(data, Double.BYTES, count);
     }
 
-    public final Set<Point> points;
+    private final ByteBuffer data;
+    private final int precision;
+    private final int count;
     public final Vector3dc min;
     public final Vector3dc max;
 
-    public Cloud(Collection<Point> data) {
-        points = Collections.unmodifiableSet(new LinkedHashSet<>(data));
+    private Cloud(ByteBuffer data, int precision, int count, Vector3dc min, Vector3dc max) {
+        this.data = data;
+        this.precision = precision;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+    }
 
-        Vector3d min = new Vector3d();
-        Vector3d max = new Vector3d();
-        points.forEach(p -> {
-            min.min(p.vertex);
-            max.max(p.vertex);
-        });
+    private Cloud(ByteBuffer data, int precision, int count) {
+        this.data = data;
+        this.precision = precision;
+        this.count = count;
+
+        Vector3d min = new Vector3d(count > 0 ? Double.POSITIVE_INFINITY : 0);
+        Vector3d max = new Vector3d(count > 0 ? Double.NEGATIVE_INFINITY : 0);
+        Vector3d v = new Vector3d();
+        for (int i = 0; i < count; ++i) {
+            getVertex(i, v);
+            min.min(v);
+            max.max(v);
+        }
         this.min = min;
         this.max = max;
     }
 
-    public Cloud(Point... data) {
-        this(Arrays.asList(data));
+    public int size() {
+        return count;
+    }
+
+    // Bytes per component, Float.BYTES or Double.BYTES
+    public int precision() {
+        return precision;
+    }
+
+    public double get(int point, int component) {
+        int index = (point * COMPONENTS + component) * precision;
+        return precision == Double.BYTES ? data.getDouble(index) : data.getFloat(index);
+    }
+
+    public Vector3d getVertex(int point, Vector3d dest) {
+        return dest.set(get(point, 0), get(point, 1), get(point, 2));
+    }
+
+    public Vector3d getNormal(int point, Vector3d dest) {
+        return dest.set(get(point, 3), get(point, 4), get(point, 5));
+    }
+
+    // Copies one component of points [from, from + len) straight out of the packed records into dst
+    public void copy(int component, int from, int len, double[] dst, int offset) {
+        int stride = COMPONENTS * precision;
+        int index = (from * COMPONENTS + component) * precision;
+        if (precision == Double.BYTES) {
+            for (int i = 0; i < len; ++i, index += stride)
+                dst[offset + i] = data.getDouble(index);
+        } else {
+            for (int i = 0; i < len; ++i, index += stride)
+                dst[offset + i] = data.getFloat(index);
+        }
+    }
+
+    public void write(Path file, int precision) throws IOException, IllegalArgumentException {
+        if (precision != Float.BYTES && precision != Double.BYTES)
+            throw new IllegalArgumentException("Unsupported component size " + precision);
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(precision).putInt(0).putLong(count);
+        header.putDouble(min.x()).putDouble(min.y()).putDouble(min.z());
+        header.putDouble(max.x()).putDouble(max.y()).putDouble(max.z());
+        header.flip();
+
+        ByteBuffer records = ByteBuffer.allocate(count * COMPONENTS * precision).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count; ++i) {
+            for (int c = 0; c < COMPONENTS; ++c) {
+                if (precision == Double.BYTES) records.putDouble(get(i, c));
+                else records.putFloat((float) get(i, c));
+            }
+        }
+        records.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining())
+                channel.write(header);
+            while (records.hasRemaining())
+                channel.write(records);
+        }
     }
 
 }
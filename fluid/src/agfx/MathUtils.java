@@ -0,0 +1,16 @@
+package agfx;
+
+public final class MathUtils {
+
+    private MathUtils() {}
+
+    public static final double EPSILON;
+
+    static {
+        double e = 1;
+        while (1 + 0.5*e != 1)
+            e *= 0.5;
+        EPSILON = e;
+    }
+
+}
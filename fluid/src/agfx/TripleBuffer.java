@@ -0,0 +1,52 @@
+package agfx;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Hands the latest of a stream of values from one writer thread to one reader thread without either ever waiting.
+// The writer fills the back buffer and swaps it into the middle; the reader swaps the middle to the front only when
+// something newer was put there. Neither touches the buffer the other one holds.
+public class TripleBuffer<T> {
+
+    // Set in the middle index when it holds a value the reader has not taken yet
+    private static final int FRESH = 4;
+
+    private final T[] buffers;
+    private final AtomicInteger middle = new AtomicInteger(1);
+    // Owned by the writer and the reader respectively
+    private int back = 2;
+    private int front = 0;
+
+    @SuppressWarnings("unchecked")
+    public TripleBuffer(Supplier<T> factory) {
+        buffers = (T[]) new Object[] {factory.get(), factory.get(), factory.get()};
+    }
+
+    // For the writer to fill before publishing
+    public T back() {
+        return buffers[back];
+    }
+
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & ~FRESH;
+    }
+
+    public boolean hasNew() {
+        return (middle.get() & FRESH) != 0;
+    }
+
+    // For the reader: the latest published value, or the one it already holds if nothing newer was published
+    public T front() {
+        if (hasNew())
+            front = middle.getAndSet(front) & ~FRESH;
+        return buffers[front];
+    }
+
+    // All three, e.g. to free them once both threads are done
+    public List<T> all() {
+        return Arrays.asList(buffers.clone());
+    }
+
+}
@@ -0,0 +1,120 @@
+package agfx.fluid;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// Static boundary particles (Akinci et al. 2012), e.g. terrain. They are never integrated or re-sorted: the cell
+// table over them is built once, and so is each one's volume, from the boundary particles around it. Fluid particles
+// read them, and only the sediment they exchange ever flows the other way.
+class BoundaryStore {
+
+    // Cell coordinates are offset into 21 unsigned bits each
+    private static final int BIAS = 1 << 20;
+
+    int size;
+    double[] px = new double[0], py = new double[0], pz = new double[0];
+    // 1 / sum of poly6 over the boundary neighbors including itself; times a fluid's rest density, the mass it
+    // stands in for
+    double[] volume = new double[0];
+    // Loose sediment resting on each one, in kilograms, all that erosion can take from it
+    double[] sediment = new double[0];
+
+    private final CellHash cells = new CellHash();
+    private double cellSize;
+    private boolean built = true;
+
+    int size() {
+        return size;
+    }
+
+    boolean isBuilt() {
+        return built;
+    }
+
+    void add(double x, double y, double z) {
+        if (size == px.length) {
+            int capacity = Math.max(16, 2 * size);
+            px = Arrays.copyOf(px, capacity);
+            py = Arrays.copyOf(py, capacity);
+            pz = Arrays.copyOf(pz, capacity);
+            sediment = Arrays.copyOf(sediment, capacity);
+        }
+        px[size] = x;
+        py[size] = y;
+        pz[size] = z;
+        ++size;
+        built = false;
+    }
+
+    private static long key(int ix, int iy, int iz) {
+        return ((long) (ix + BIAS) << 42) | ((long) (iy + BIAS) << 21) | (iz + BIAS);
+    }
+
+    private int cell(double x) {
+        return Math.max(-BIAS, Math.min(BIAS - 1, (int) Math.floor(x / cellSize)));
+    }
+
+    // Sorts the particles by cell, indexes the cells and works out the volumes, all for cells of the kernel radius
+    void build(KernelEvaluator kernel) {
+        int n = size;
+        cellSize = kernel.h;
+        long[] keys = new long[n];
+        for (int b = 0; b < n; ++b)
+            keys[b] = key(cell(px[b]), cell(py[b]), cell(pz[b]));
+        int[] order = IntStream.range(0, n).boxed().sorted((a, b) -> Long.compare(keys[a], keys[b])).mapToInt(i -> i).toArray();
+        long[] sorted = new long[n];
+        double[] x = new double[n], y = new double[n], z = new double[n];
+        double[] loose = new double[n];
+        for (int i = 0; i < n; ++i) {
+            sorted[i] = keys[order[i]];
+            x[i] = px[order[i]];
+            y[i] = py[order[i]];
+            z[i] = pz[order[i]];
+            loose[i] = sediment[order[i]];
+        }
+        px = x;
+        py = y;
+        pz = z;
+        sediment = loose;
+        cells.build(sorted, n);
+
+        volume = new double[n];
+        double h2 = kernel.h * kernel.h;
+        IntStream.range(0, n).parallel().forEach(b -> {
+            NeighborList.Block near = new NeighborList.Block(64);
+            near(px[b], py[b], pz[b], kernel.h, near);
+            double sum = 0;
+            for (int i = 0; i < near.size; ++i) {
+                int k = near.data[i];
+                double dx = px[b] - px[k], dy = py[b] - py[k], dz = pz[b] - pz[k];
+                double d2 = dx*dx + dy*dy + dz*dz;
+                if (d2 < h2)
+                    sum += kernel.poly6(d2);
+            }
+            volume[b] = 1 / sum;
+        });
+        built = true;
+    }
+
+    // Appends every boundary particle within r of the point, as far as the cells are concerned; callers filter by
+    // distance themselves
+    void near(double x, double y, double z, double r, NeighborList.Block out) {
+        if (size == 0)
+            return;
+        int x0 = cell(x - r), x1 = cell(x + r);
+        int y0 = cell(y - r), y1 = cell(y + r);
+        int z0 = cell(z - r), z1 = cell(z + r);
+        for (int iz = z0; iz <= z1; ++iz) {
+            for (int iy = y0; iy <= y1; ++iy) {
+                for (int ix = x0; ix <= x1; ++ix) {
+                    int c = cells.find(key(ix, iy, iz));
+                    if (c < 0)
+                        continue;
+                    for (int b = cells.start(c), end = cells.end(c); b < end; ++b)
+                        out.add(b);
+                }
+            }
+        }
+    }
+
+}
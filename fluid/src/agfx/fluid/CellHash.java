@@ -0,0 +1,83 @@
+package agfx.fluid;
+
+import java.util.Arrays;
+
+// Open addressing table from the key of each occupied cell to its run of rows in the sorted store, sized by the
+// number of occupied cells rather than by the volume of the domain
+class CellHash {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private long[] keys = new long[0];
+    private int[] start = new int[0];
+    private int[] end = new int[0];
+    private int mask;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return keys.length;
+    }
+
+    // Indexes the runs of equal keys in sorted[0, n)
+    void build(long[] sorted, int n) {
+        int cells = 0;
+        for (int i = 0; i < n; ++i)
+            if (i == 0 || sorted[i] != sorted[i - 1])
+                ++cells;
+        // At most half full, so probes stay short
+        int capacity = Integer.highestOneBit(Math.max(2, cells) * 2 - 1) << 1;
+        if (keys.length < capacity) {
+            keys = new long[capacity];
+            start = new int[capacity];
+            end = new int[capacity];
+        }
+        Arrays.fill(keys, EMPTY);
+        mask = keys.length - 1;
+        size = cells;
+
+        for (int i = 0; i < n; ) {
+            int j = i + 1;
+            while (j < n && sorted[j] == sorted[i])
+                ++j;
+            int h = slot(sorted[i]);
+            keys[h] = sorted[i];
+            start[h] = i;
+            end[h] = j;
+            i = j;
+        }
+    }
+
+    // Where the key is, or the empty slot it would go in
+    private int slot(long key) {
+        int h = mix(key) & mask;
+        while (keys[h] != EMPTY && keys[h] != key)
+            h = (h + 1) & mask;
+        return h;
+    }
+
+    // The slot holding the key, or -1 if no row lies in that cell
+    int find(long key) {
+        int h = slot(key);
+        return keys[h] == EMPTY ? -1 : h;
+    }
+
+    int start(int slot) {
+        return start[slot];
+    }
+
+    int end(int slot) {
+        return end[slot];
+    }
+
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+}
@@ -0,0 +1,351 @@
+package agfx.fluid;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// A copy of everything SPH.update depends on, so that a restored simulation continues bit for bit where the
+// original left off. Taking one only copies arrays; encoding and writing can happen on another thread.
+public final class Checkpoint {
+
+    // File layout, little endian: int magic, int version, the configuration, the run's counters, the fluids table,
+    // the scalar channels and erosion settings, then each column over the live rows, the Verlet reference positions
+    // and lists if they are valid, the boundary particle positions and sediment, the sediment exchange still to be
+    // settled with the boundary lists it was found over, and finally the words of the pool's used bitset
+    public static final int MAGIC = 0x4B484341; // "ACHK"
+    public static final int VERSION = 1;
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "checkpoint-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    int capacity;
+    double kernelRadius;
+    double[] min = new double[3];
+    double[] max = new double[3];
+    double[] gravity = new double[3];
+    double skin;
+    boolean symmetric;
+    SPH.Pipeline pipeline;
+    SPH.CellOrder cellOrder;
+    boolean walls;
+    int precisionCheck;
+    SPH.EquationOfState equationOfState;
+    double courant;
+    double time;
+    SPH.PressureSolver pressureSolver;
+    double solverTolerance;
+    int maxIterations;
+    int blockSize;
+    long steps;
+    long rebuilds;
+    // Only reported, but a restored run keeps counting from where the original was
+    long unstable, emitted, absorbed, iterations;
+    int lastUnstable, lastIterations;
+    double lastDensityError, lastMaxDensityError, lastPrecisionError, maxPrecisionError;
+    boolean listsValid;
+    Fluid[] fluids;
+    String[] channels;
+    double[] diffusivity;
+    int sediment;
+    double erosionRate, erosionCapacity;
+
+    int size;
+    double[][] columns;
+    int[] fluid;
+    int[] slot;
+    double[] refX, refY, refZ;
+    int[] offsets, indices;
+    int boundarySize;
+    double[] boundaryX, boundaryY, boundaryZ;
+    double[] boundarySediment;
+    int exchangeRows;
+    int[] exchangeOffsets, exchangeIndices;
+    double[] exchange;
+    long[] used;
+
+    Checkpoint() {}
+
+    public int size() {
+        return size;
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    public double time() {
+        return time;
+    }
+
+    // Only where the buffer starts: the columns are the bulk of a checkpoint, and it doubles for anything past them
+    private int sizeHint() {
+        return (int) Math.min(Integer.MAX_VALUE, 4096 + (long) size * (columns.length + 2) * Double.BYTES);
+    }
+
+    // Written to a sibling file first and moved into place, so a crash mid-write never clobbers the last good one
+    public void write(Path file) throws IOException {
+        Encoder b = new Encoder(sizeHint());
+        b.putInt(MAGIC).putInt(VERSION);
+        b.putInt(capacity).putDouble(kernelRadius);
+        b.putDouble(min[0]).putDouble(min[1]).putDouble(min[2]);
+        b.putDouble(max[0]).putDouble(max[1]).putDouble(max[2]);
+        b.putDouble(gravity[0]).putDouble(gravity[1]).putDouble(gravity[2]);
+        b.putDouble(skin).put((byte) (symmetric ? 1 : 0)).put((byte) pipeline.ordinal()).put((byte) cellOrder.ordinal()).put((byte) (walls ? 1 : 0)).put((byte) (listsValid ? 1 : 0));
+        b.put((byte) equationOfState.ordinal()).putDouble(courant).putDouble(time);
+        b.put((byte) pressureSolver.ordinal()).putDouble(solverTolerance).putInt(maxIterations);
+        b.putInt(blockSize).putLong(steps).putLong(rebuilds);
+        b.putInt(precisionCheck);
+        b.putLong(unstable).putLong(emitted).putLong(absorbed).putLong(iterations).putInt(lastUnstable).putInt(lastIterations);
+        b.putDouble(lastDensityError).putDouble(lastMaxDensityError).putDouble(lastPrecisionError).putDouble(maxPrecisionError);
+
+        b.putInt(fluids.length);
+        for (Fluid f : fluids) {
+            b.putDouble(f.molarMass).putDouble(f.restDensity).putDouble(f.restPressure);
+            b.putDouble(f.viscosity).putDouble(f.speedOfSound).putDouble(f.cohesion);
+        }
+
+        b.putInt(channels.length);
+        for (int i = 0; i < channels.length; ++i) {
+            byte[] name = channels[i].getBytes(StandardCharsets.UTF_8);
+            b.putInt(name.length).put(name).putDouble(diffusivity[i]);
+        }
+        b.putInt(sediment).putDouble(erosionRate).putDouble(erosionCapacity);
+
+        b.putInt(size).putInt(columns.length);
+        for (double[] column : columns)
+            b.putDoubles(column, size);
+        b.putInts(fluid, size);
+        b.putInts(slot, size);
+
+        if (listsValid) {
+            b.putDoubles(refX, size);
+            b.putDoubles(refY, size);
+            b.putDoubles(refZ, size);
+            b.putInts(offsets, size + 1);
+            b.putInt(offsets[size]);
+            b.putInts(indices, offsets[size]);
+        }
+
+        b.putInt(boundarySize);
+        b.putDoubles(boundaryX, boundarySize);
+        b.putDoubles(boundaryY, boundarySize);
+        b.putDoubles(boundaryZ, boundarySize);
+        b.putDoubles(boundarySediment, boundarySize);
+        b.putInt(exchangeRows);
+        if (exchangeRows > 0) {
+            b.putInts(exchangeOffsets, exchangeRows + 1);
+            b.putInts(exchangeIndices, exchangeOffsets[exchangeRows]);
+            b.putDoubles(exchange, exchangeOffsets[exchangeRows]);
+        }
+
+        b.putInt(used.length);
+        for (long word : used)
+            b.putLong(word);
+        ByteBuffer out = b.flip();
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining())
+                channel.write(out);
+            channel.force(false);
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // Writes on a background thread; checkpoints are written one at a time, in the order they were queued
+    public CompletableFuture<Path> writeAsync(Path file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                write(file);
+                return file;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, WRITER);
+    }
+
+    public static Checkpoint read(Path file) throws IOException, IllegalArgumentException {
+        ByteBuffer b;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            b = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (b.remaining() < 2 * Integer.BYTES || b.getInt() != MAGIC) throw new IllegalArgumentException("Not a checkpoint: " + file);
+        int version = b.getInt();
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported checkpoint version " + version);
+
+        Checkpoint c = new Checkpoint();
+        c.capacity = b.getInt();
+        c.kernelRadius = b.getDouble();
+        for (int i = 0; i < 3; ++i) c.min[i] = b.getDouble();
+        for (int i = 0; i < 3; ++i) c.max[i] = b.getDouble();
+        for (int i = 0; i < 3; ++i) c.gravity[i] = b.getDouble();
+        c.skin = b.getDouble();
+        c.symmetric = b.get() != 0;
+        c.pipeline = SPH.Pipeline.values()[b.get()];
+        c.cellOrder = SPH.CellOrder.values()[b.get()];
+        c.walls = b.get() != 0;
+        c.listsValid = b.get() != 0;
+        c.equationOfState = SPH.EquationOfState.values()[b.get()];
+        c.courant = b.getDouble();
+        c.time = b.getDouble();
+        c.pressureSolver = SPH.PressureSolver.values()[b.get()];
+        c.solverTolerance = b.getDouble();
+        c.maxIterations = b.getInt();
+        c.blockSize = b.getInt();
+        c.steps = b.getLong();
+        c.rebuilds = b.getLong();
+        c.precisionCheck = b.getInt();
+        c.unstable = b.getLong();
+        c.emitted = b.getLong();
+        c.absorbed = b.getLong();
+        c.iterations = b.getLong();
+        c.lastUnstable = b.getInt();
+        c.lastIterations = b.getInt();
+        c.lastDensityError = b.getDouble();
+        c.lastMaxDensityError = b.getDouble();
+        c.lastPrecisionError = b.getDouble();
+        c.maxPrecisionError = b.getDouble();
+
+        c.fluids = new Fluid[b.getInt()];
+        for (int i = 0; i < c.fluids.length; ++i)
+            c.fluids[i] = new Fluid(b.getDouble(), b.getDouble(), b.getDouble(), b.getDouble(), b.getDouble(), b.getDouble());
+
+        c.channels = new String[b.getInt()];
+        c.diffusivity = new double[c.channels.length];
+        for (int i = 0; i < c.channels.length; ++i) {
+            byte[] name = new byte[b.getInt()];
+            b.get(name);
+            c.channels[i] = new String(name, StandardCharsets.UTF_8);
+            c.diffusivity[i] = b.getDouble();
+        }
+        c.sediment = b.getInt();
+        c.erosionRate = b.getDouble();
+        c.erosionCapacity = b.getDouble();
+
+        int n = c.size = b.getInt();
+        c.columns = new double[b.getInt()][];
+        for (int i = 0; i < c.columns.length; ++i)
+            c.columns[i] = getDoubles(b, n);
+        c.fluid = getInts(b, n);
+        c.slot = getInts(b, n);
+
+        if (c.listsValid) {
+            c.refX = getDoubles(b, n);
+            c.refY = getDoubles(b, n);
+            c.refZ = getDoubles(b, n);
+            c.offsets = getInts(b, n + 1);
+            c.indices = getInts(b, b.getInt());
+        }
+
+        int boundary = c.boundarySize = b.getInt();
+        c.boundaryX = getDoubles(b, boundary);
+        c.boundaryY = getDoubles(b, boundary);
+        c.boundaryZ = getDoubles(b, boundary);
+        c.boundarySediment = getDoubles(b, boundary);
+        c.exchangeRows = b.getInt();
+        if (c.exchangeRows > 0) {
+            c.exchangeOffsets = getInts(b, c.exchangeRows + 1);
+            int pairs = c.exchangeOffsets[c.exchangeRows];
+            c.exchangeIndices = getInts(b, pairs);
+            c.exchange = getDoubles(b, pairs);
+        }
+
+        c.used = new long[b.getInt()];
+        for (int i = 0; i < c.used.length; ++i)
+            c.used[i] = b.getLong();
+        return c;
+    }
+
+    // A little endian buffer that grows as it is written, so the layout is spelled out only once, in write()
+    private static final class Encoder {
+        private ByteBuffer b;
+
+        Encoder(int capacity) {
+            b = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private ByteBuffer room(long bytes) {
+            if (b.remaining() < bytes) {
+                long needed = b.position() + bytes;
+                if (needed > Integer.MAX_VALUE) throw new IllegalStateException("Checkpoint too large: " + needed + " bytes");
+                ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * b.capacity())));
+                b.flip();
+                b = grown.order(ByteOrder.LITTLE_ENDIAN).put(b);
+            }
+            return b;
+        }
+
+        Encoder put(byte v) {
+            room(1).put(v);
+            return this;
+        }
+
+        Encoder put(byte[] v) {
+            room(v.length).put(v);
+            return this;
+        }
+
+        Encoder putInt(int v) {
+            room(Integer.BYTES).putInt(v);
+            return this;
+        }
+
+        Encoder putLong(long v) {
+            room(Long.BYTES).putLong(v);
+            return this;
+        }
+
+        Encoder putDouble(double v) {
+            room(Double.BYTES).putDouble(v);
+            return this;
+        }
+
+        void putDoubles(double[] src, int len) {
+            room((long) len * Double.BYTES).asDoubleBuffer().put(src, 0, len);
+            b.position(b.position() + len * Double.BYTES);
+        }
+
+        void putInts(int[] src, int len) {
+            room((long) len * Integer.BYTES).asIntBuffer().put(src, 0, len);
+            b.position(b.position() + len * Integer.BYTES);
+        }
+
+        ByteBuffer flip() {
+            b.flip();
+            return b;
+        }
+    }
+
+    private static double[] getDoubles(ByteBuffer b, int len) {
+        double[] dst = new double[len];
+        b.asDoubleBuffer().get(dst);
+        b.position(b.position() + len * Double.BYTES);
+        return dst;
+    }
+
+    private static int[] getInts(ByteBuffer b, int len) {
+        int[] dst = new int[len];
+        b.asIntBuffer().get(dst);
+        b.position(b.position() + len * Integer.BYTES);
+        return dst;
+    }
+
+}
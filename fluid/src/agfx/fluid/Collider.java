@@ -0,0 +1,59 @@
+package agfx.fluid;
+
+import org.joml.Vector3d;
+import org.joml.Vector3dc;
+
+// A solid that particles are kept out of, given as a signed distance: positive outside it, negative within
+@FunctionalInterface
+public interface Collider {
+
+    // The signed distance from the surface, with the unit outward normal of the surface written into normal wherever
+    // the distance is negative, even where the surface has no one direction out, e.g. at a sphere's center; elsewhere
+    // normal may be left as it was
+    double distance(double x, double y, double z, Vector3d normal);
+
+    // Everything on the far side of a plane, e.g. a floor under the point with an upward normal
+    static Collider plane(Vector3dc point, Vector3dc normal) {
+        Vector3d n = new Vector3d(normal).normalize();
+        double offset = n.dot(point);
+        return (x, y, z, dest) -> {
+            dest.set(n);
+            return n.x * x + n.y * y + n.z * z - offset;
+        };
+    }
+
+    static Collider sphere(Vector3dc center, double r) {
+        double cx = center.x(), cy = center.y(), cz = center.z();
+        return (x, y, z, dest) -> {
+            double dx = x - cx, dy = y - cy, dz = z - cz;
+            double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+            // Every way out of the center is as short, so it is up
+            if (d < r) {
+                if (d > 0)
+                    dest.set(dx / d, dy / d, dz / d);
+                else dest.set(0, 1, 0);
+            }
+            return d - r;
+        };
+    }
+
+    // Everything outside the box, holding particles within it like the domain walls do but anywhere in space
+    static Collider container(Vector3dc min, Vector3dc max) {
+        double x0 = min.x(), y0 = min.y(), z0 = min.z();
+        double x1 = max.x(), y1 = max.y(), z1 = max.z();
+        return (x, y, z, dest) -> {
+            // Inside, the nearest wall; outside, the distance back into the box
+            double ox = Math.max(x0 - x, x - x1), oy = Math.max(y0 - y, y - y1), oz = Math.max(z0 - z, z - z1);
+            double d;
+            if (ox <= 0 && oy <= 0 && oz <= 0)
+                d = Math.max(ox, Math.max(oy, oz));
+            else d = Math.sqrt(Math.max(0, ox) * Math.max(0, ox) + Math.max(0, oy) * Math.max(0, oy) + Math.max(0, oz) * Math.max(0, oz));
+            if (d > 0) {
+                dest.set(x < x0 ? x0 - x : x > x1 ? x1 - x : 0, y < y0 ? y0 - y : y > y1 ? y1 - y : 0,
+                        z < z0 ? z0 - z : z > z1 ? z1 - z : 0).normalize();
+            }
+            return -d;
+        };
+    }
+
+}
@@ -0,0 +1,85 @@
+package agfx.fluid;
+
+import org.joml.Vector3d;
+import org.joml.Vector3dc;
+
+import java.util.Random;
+
+// Adds particles of one fluid at a steady rate, spread over a shape and all moving with the same velocity
+public class Emitter {
+
+    @FunctionalInterface
+    public interface Shape {
+        void sample(Random rng, Vector3d dest);
+    }
+
+    // Particles spread over a small ball around the point, so that they never start out coincident
+    public static Shape point(Vector3dc center, double jitter) {
+        Vector3d c = new Vector3d(center);
+        return (rng, dest) -> {
+            do {
+                dest.set(rng.nextDouble() * 2 - 1, rng.nextDouble() * 2 - 1, rng.nextDouble() * 2 - 1);
+            } while (dest.lengthSquared() > 1);
+            dest.mul(jitter).add(c);
+        };
+    }
+
+    public static Shape disc(Vector3dc center, Vector3dc normal, double radius) {
+        Vector3d c = new Vector3d(center);
+        Vector3d n = new Vector3d(normal).normalize();
+        // Any two directions spanning the plane of the disc
+        Vector3d u = Math.abs(n.x) < 0.9 ? new Vector3d(1, 0, 0) : new Vector3d(0, 1, 0);
+        u.sub(new Vector3d(n).mul(u.dot(n))).normalize();
+        Vector3d v = new Vector3d(n).cross(u);
+        return (rng, dest) -> {
+            double r = radius * Math.sqrt(rng.nextDouble());
+            double a = 2 * Math.PI * rng.nextDouble();
+            dest.set(c).fma(r * Math.cos(a), u).fma(r * Math.sin(a), v);
+        };
+    }
+
+    public static Shape box(Vector3dc min, Vector3dc max) {
+        Vector3d lo = new Vector3d(min);
+        Vector3d extent = new Vector3d(max).sub(min);
+        return (rng, dest) -> dest.set(rng.nextDouble(), rng.nextDouble(), rng.nextDouble()).mul(extent).add(lo);
+    }
+
+    public final Shape shape;
+    public final Fluid fluid;
+    public final double mass;
+    public final Vector3d velocity;
+    private double rate;
+    private double pending;
+    private final Random rng;
+
+    public Emitter(Shape shape, Fluid f, double m, double particlesPerSecond, long seed) {
+        this.shape = shape;
+        fluid = f;
+        mass = m;
+        velocity = new Vector3d();
+        rng = new Random(seed);
+        setRate(particlesPerSecond);
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public void setRate(double particlesPerSecond) {
+        if (particlesPerSecond < 0) throw new IllegalArgumentException("Negative rate: " + particlesPerSecond);
+        rate = particlesPerSecond;
+    }
+
+    // Particles due over the next dt, carrying fractions over so the long run average matches the rate
+    int due(double dt) {
+        pending += rate * dt;
+        int n = (int) pending;
+        pending -= n;
+        return n;
+    }
+
+    void sample(Vector3d dest) {
+        shape.sample(rng, dest);
+    }
+
+}
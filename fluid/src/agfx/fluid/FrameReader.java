@@ -0,0 +1,127 @@
+package agfx.fluid;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static agfx.fluid.FrameRecorder.*;
+
+// Reads back the frames written by a FrameRecorder, in order
+public class FrameReader implements AutoCloseable {
+
+    public static class Frame {
+        public long step;
+        public Compression compression;
+        public int count;
+        public int[] slot;
+        // Indexed by FrameRecorder.POSITION, NORMAL, DENSITY and PRESSURE
+        public double[][] channels;
+    }
+
+    private final ReadableByteChannel in;
+    private final ByteBuffer header = ByteBuffer.allocate(CHUNK_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer payload = ByteBuffer.allocate(0);
+    private int[][] previous = new int[CHANNELS][0];
+
+    public FrameReader(Path file) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    public FrameReader(ReadableByteChannel in) throws IOException, IllegalArgumentException {
+        this.in = in;
+        ByteBuffer b = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        if (!read(b)) throw new EOFException("Missing frame stream header");
+        if (b.getInt(0) != MAGIC) throw new IllegalArgumentException("Not a frame stream");
+        if (b.getInt(4) != VERSION) throw new IllegalArgumentException("Unsupported frame stream version " + b.getInt(4));
+    }
+
+    // The next frame, or null at the end of the stream
+    public Frame next() throws IOException, IllegalArgumentException {
+        header.clear();
+        if (!read(header))
+            return null;
+        if (header.getInt(0) != CHUNK) throw new IllegalArgumentException("Corrupt frame chunk");
+        Frame f = new Frame();
+        f.compression = Compression.values()[header.getInt(4)];
+        f.step = header.getLong(8);
+        f.count = header.getInt(16);
+        int length = header.getInt(20);
+        if (payload.capacity() < length)
+            payload = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        payload.clear().limit(length);
+        if (!read(payload)) throw new EOFException("Truncated frame at step " + f.step);
+        payload.flip();
+
+        int n = f.count;
+        ByteBuffer b = payload;
+        f.slot = new int[n];
+        int maxSlot = -1;
+        for (int i = 0; i < n; ++i)
+            maxSlot = Math.max(maxSlot, f.slot[i] = b.getInt());
+        f.channels = new double[CHANNELS][n];
+        for (int c = 0; c < CHANNELS; ++c) {
+            double[] v = f.channels[c];
+            switch (f.compression) {
+                case NONE:
+                    for (int i = 0; i < n; ++i)
+                        v[i] = b.getDouble();
+                    break;
+                case QUANTIZED: {
+                    double min = b.getDouble();
+                    double scale = b.getDouble();
+                    for (int i = 0; i < n; ++i)
+                        v[i] = min + (b.getShort() & 0xFFFF) * scale;
+                    break;
+                }
+                case DELTA: {
+                    if (previous[c].length <= maxSlot)
+                        previous[c] = Arrays.copyOf(previous[c], Math.max(maxSlot + 1, previous[c].length * 2));
+                    int[] prev = previous[c];
+                    for (int i = 0; i < n; ++i) {
+                        int z = getVarint(b);
+                        int bits = prev[f.slot[i]] + ((z >>> 1) ^ -(z & 1));
+                        prev[f.slot[i]] = bits;
+                        v[i] = Float.intBitsToFloat(bits);
+                    }
+                    break;
+                }
+            }
+        }
+        return f;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // Fills the buffer, returning false if the stream ended before the first byte
+    private boolean read(ByteBuffer b) throws IOException {
+        int start = b.position();
+        while (b.hasRemaining()) {
+            if (in.read(b) < 0) {
+                if (b.position() == start)
+                    return false;
+                throw new EOFException("Truncated frame stream");
+            }
+        }
+        return true;
+    }
+
+    private static int getVarint(ByteBuffer b) {
+        int z = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte x = b.get();
+            z |= (x & 0x7F) << shift;
+            if (x >= 0)
+                return z;
+        }
+    }
+
+}
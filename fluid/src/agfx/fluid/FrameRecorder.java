@@ -0,0 +1,299 @@
+package agfx.fluid;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Records every nth step of positions, normals, density and pressure as a chunked binary stream.
+// The simulation thread only copies the store into one of two snapshot buffers; a background thread encodes and
+// writes them, so disk speed never shows up in the step time unless the policy asks to wait for it.
+public class FrameRecorder implements SPH.StepListener, AutoCloseable {
+
+    // Stream layout, little endian: int magic, int version, then per frame a chunk of
+    //   int chunk magic, int compression, long step, int count, int payload bytes,
+    //   then the payload: int[count] pool slots, followed by each channel encoded per the compression
+    public static final int MAGIC = 0x43455246; // "FREC"
+    public static final int CHUNK = 0x4D415246; // "FRAM"
+    public static final int VERSION = 1;
+    public static final int HEADER = 8;
+    public static final int CHUNK_HEADER = 24;
+
+    // Channels in the order they are written
+    public static final int CHANNELS = 8;
+    public static final int POSITION = 0;
+    public static final int NORMAL = 3;
+    public static final int DENSITY = 6;
+    public static final int PRESSURE = 7;
+
+    public enum Compression {
+        // float64 values
+        NONE,
+        // uint16 values spread over the range of each channel in the frame
+        QUANTIZED,
+        // float32 values as zig-zag varints of their difference in bits from the same pool slot in the previous frame
+        DELTA
+    }
+
+    public enum Policy {
+        // The simulation waits for the writer to free a buffer
+        BLOCK,
+        // Frames arriving while both buffers are still queued are skipped
+        DROP
+    }
+
+    static final class Snapshot {
+        long step;
+        int count;
+        int[] slot = new int[0];
+        double[][] channels = new double[CHANNELS][0];
+    }
+
+    private static final Snapshot END = new Snapshot();
+
+    private final WritableByteChannel out;
+    private final int every;
+    private final Compression compression;
+    private final Policy policy;
+    private final BlockingQueue<Snapshot> free = new ArrayBlockingQueue<>(2);
+    private final BlockingQueue<Snapshot> pending = new ArrayBlockingQueue<>(3);
+    private final Thread writer;
+    private volatile IOException failure;
+    private boolean closed;
+
+    // Owned by the writer thread
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+    private int[][] previous = new int[CHANNELS][0];
+
+    // Written by one thread each, read by anyone
+    private volatile long framesWritten;
+    private volatile long framesDropped;
+    private volatile long bytesWritten;
+    private volatile long writeNanos;
+    private volatile long blockedNanos;
+
+    public FrameRecorder(Path file, int every, Compression compression, Policy policy) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+                every, compression, policy);
+    }
+
+    // Takes ownership of the channel, which is closed with the recorder
+    public FrameRecorder(WritableByteChannel out, int every, Compression compression, Policy policy) throws IOException {
+        if (every < 1) throw new IllegalArgumentException("Frame interval must be positive: " + every);
+        this.out = out;
+        this.every = every;
+        this.compression = compression;
+        this.policy = policy;
+        free.add(new Snapshot());
+        free.add(new Snapshot());
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        write(header);
+
+        writer = new Thread(this::run, "frame-recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public long framesWritten() {
+        return framesWritten;
+    }
+
+    public long framesDropped() {
+        return framesDropped;
+    }
+
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    // Bytes per second while the writer was busy encoding and writing
+    public double throughput() {
+        return writeNanos == 0 ? 0 : bytesWritten / (writeNanos / 1e9);
+    }
+
+    // Time the simulation spent waiting on the writer under Policy.BLOCK
+    public double blockedSeconds() {
+        return blockedNanos / 1e9;
+    }
+
+    @Override
+    public void stepped(SPH sph) {
+        if (closed) throw new IllegalStateException("Recorder is closed");
+        if (failure != null) throw new UncheckedIOException(failure);
+        long step = sph.steps();
+        if (step % every != 0)
+            return;
+
+        Snapshot s;
+        if (policy == Policy.DROP) {
+            s = free.poll();
+            if (s == null) {
+                ++framesDropped;
+                return;
+            }
+        } else {
+            long start = System.nanoTime();
+            s = take(free);
+            blockedNanos += System.nanoTime() - start;
+        }
+
+        ParticleStore st = sph.store;
+        int n = st.size;
+        s.step = step;
+        s.count = n;
+        if (s.slot.length < n) {
+            s.slot = new int[n];
+            for (int c = 0; c < CHANNELS; ++c)
+                s.channels[c] = new double[n];
+        }
+        System.arraycopy(st.slot, 0, s.slot, 0, n);
+        System.arraycopy(st.px, 0, s.channels[POSITION], 0, n);
+        System.arraycopy(st.py, 0, s.channels[POSITION + 1], 0, n);
+        System.arraycopy(st.pz, 0, s.channels[POSITION + 2], 0, n);
+        System.arraycopy(st.nx, 0, s.channels[NORMAL], 0, n);
+        System.arraycopy(st.ny, 0, s.channels[NORMAL + 1], 0, n);
+        System.arraycopy(st.nz, 0, s.channels[NORMAL + 2], 0, n);
+        System.arraycopy(st.density, 0, s.channels[DENSITY], 0, n);
+        System.arraycopy(st.pressure, 0, s.channels[PRESSURE], 0, n);
+        pending.add(s);
+    }
+
+    // Waits for every queued frame to be written, then closes the channel
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        pending.add(END);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        out.close();
+        if (failure != null)
+            throw failure;
+    }
+
+    private static Snapshot take(BlockingQueue<Snapshot> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        for (Snapshot s = take(pending); s != END; s = take(pending)) {
+            if (failure == null) {
+                try {
+                    long start = System.nanoTime();
+                    long bytes = encode(s);
+                    write(buffer);
+                    writeNanos += System.nanoTime() - start;
+                    bytesWritten += bytes;
+                    ++framesWritten;
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            free.add(s);
+        }
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining())
+            out.write(bytes);
+    }
+
+    private long encode(Snapshot s) {
+        int n = s.count;
+        long bound = CHUNK_HEADER + (long) n * Integer.BYTES;
+        switch (compression) {
+            case NONE: bound += (long) CHANNELS * n * Double.BYTES; break;
+            case QUANTIZED: bound += CHANNELS * (2L * Double.BYTES + (long) n * Short.BYTES); break;
+            case DELTA: bound += (long) CHANNELS * n * 5; break;
+        }
+        if (bound > Integer.MAX_VALUE) throw new IllegalStateException("Frame too large: " + n + " particles");
+        if (buffer.capacity() < bound)
+            buffer = ByteBuffer.allocateDirect((int) bound).order(ByteOrder.LITTLE_ENDIAN);
+
+        ByteBuffer b = buffer;
+        b.clear();
+        b.putInt(CHUNK).putInt(compression.ordinal()).putLong(s.step).putInt(n).putInt(0);
+        int maxSlot = -1;
+        for (int i = 0; i < n; ++i) {
+            b.putInt(s.slot[i]);
+            maxSlot = Math.max(maxSlot, s.slot[i]);
+        }
+        for (int c = 0; c < CHANNELS; ++c) {
+            double[] v = s.channels[c];
+            switch (compression) {
+                case NONE:
+                    for (int i = 0; i < n; ++i)
+                        b.putDouble(v[i]);
+                    break;
+                case QUANTIZED: {
+                    double min = Double.POSITIVE_INFINITY;
+                    double max = Double.NEGATIVE_INFINITY;
+                    for (int i = 0; i < n; ++i) {
+                        min = Math.min(min, v[i]);
+                        max = Math.max(max, v[i]);
+                    }
+                    double scale = max > min ? (max - min) / 0xFFFF : 0;
+                    double inv = scale > 0 ? 1 / scale : 0;
+                    b.putDouble(n > 0 ? min : 0).putDouble(scale);
+                    for (int i = 0; i < n; ++i)
+                        b.putShort((short) Math.round((v[i] - min) * inv));
+                    break;
+                }
+                case DELTA: {
+                    if (previous[c].length <= maxSlot)
+                        previous[c] = Arrays.copyOf(previous[c], Math.max(maxSlot + 1, previous[c].length * 2));
+                    int[] prev = previous[c];
+                    for (int i = 0; i < n; ++i) {
+                        int bits = Float.floatToRawIntBits((float) v[i]);
+                        int d = bits - prev[s.slot[i]];
+                        prev[s.slot[i]] = bits;
+                        putVarint(b, (d << 1) ^ (d >> 31));
+                    }
+                    break;
+                }
+            }
+        }
+        b.putInt(CHUNK_HEADER - Integer.BYTES, b.position() - CHUNK_HEADER);
+        b.flip();
+        return b.limit();
+    }
+
+    private static void putVarint(ByteBuffer b, int z) {
+        while ((z & ~0x7F) != 0) {
+            b.put((byte) (z & 0x7F | 0x80));
+            z >>>= 7;
+        }
+        b.put((byte) z);
+    }
+
+}
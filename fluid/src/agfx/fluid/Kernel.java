@@ -12,8 +12,9 @@ public interface Kernel {
     static double iPow(double b, int exp) {
         double res = 1;
         while (exp > 0) {
-            // If lsb is 1, then multiply by b, otherwise multiply by one
-            res *= (exp % 2) * b + (1 - (exp % 2));
+            // Multiply in the powers of b matching the set bits of exp
+            if ((exp & 1) != 0)
+                res *= b;
             exp >>= 1;
             b *= b;
         }
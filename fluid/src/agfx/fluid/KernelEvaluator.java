@@ -0,0 +1,163 @@
+package agfx.fluid;
+
+import java.lang.reflect.Constructor;
+
+// The kernels of one radius with their constant factors worked out once, rather than through iPow on every pair.
+// Scalar forms take the squared distance, or the distance where the kernel needs it, so callers never build vectors;
+// gradients are returned as the factor to scale the offset by.
+public class KernelEvaluator {
+
+    // Set -Dagfx.fluid.scalar=true to keep the scalar batches even where the Vector API is available
+    private static final Constructor<? extends KernelEvaluator> VECTOR = vectorized();
+
+    public final double h;
+    final double h2;
+    final double poly6;
+    final double poly6Gradient;
+    final double spikyGradient;
+    final double viscosityLaplacian;
+    // The same, rounded once for the single precision batches
+    final float hf, h2f, poly6f, poly6Gradientf, spikyGradientf, viscosityLaplacianf;
+
+    public KernelEvaluator(double h) {
+        this.h = h;
+        h2 = h * h;
+        double h3 = h2 * h;
+        double h6 = h3 * h3;
+        double h9 = h6 * h3;
+        poly6 = 315 / (64 * Math.PI * h9);
+        poly6Gradient = -945 / (32 * Math.PI * h9);
+        spikyGradient = -45 / (Math.PI * h6);
+        viscosityLaplacian = 45 / (Math.PI * h6);
+        hf = (float) h;
+        h2f = (float) h2;
+        poly6f = (float) poly6;
+        poly6Gradientf = (float) poly6Gradient;
+        spikyGradientf = (float) spikyGradient;
+        viscosityLaplacianf = (float) viscosityLaplacian;
+    }
+
+    // Vectorized batches when the JVM was started with --add-modules jdk.incubator.vector, scalar ones otherwise
+    public static KernelEvaluator of(double h) {
+        if (VECTOR != null) {
+            try {
+                return VECTOR.newInstance(h);
+            } catch (ReflectiveOperationException ignored) {}
+        }
+        return new KernelEvaluator(h);
+    }
+
+    private static Constructor<? extends KernelEvaluator> vectorized() {
+        if (Boolean.getBoolean("agfx.fluid.scalar") || !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+            return null;
+        try {
+            return Class.forName("agfx.fluid.VectorKernelEvaluator").asSubclass(KernelEvaluator.class).getDeclaredConstructor(double.class);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public boolean isVectorized() {
+        return false;
+    }
+
+    // Batch lengths that are a multiple of this run without a scalar tail in either precision
+    public int lanes() {
+        return 1;
+    }
+
+    public double poly6(double d2) {
+        double x = h2 - d2;
+        return poly6 * x * x * x;
+    }
+
+    public double poly6Gradient(double d2) {
+        double x = h2 - d2;
+        return poly6Gradient * x * x;
+    }
+
+    public double poly6Laplacian(double d2) {
+        return poly6Gradient * (d2 - h2) * (7 * d2 - 3 * h2);
+    }
+
+    public double spikyGradient(double r) {
+        double x = h - r;
+        return spikyGradient * x * x / r;
+    }
+
+    public double viscosityLaplacian(double r) {
+        return viscosityLaplacian * (h - r);
+    }
+
+    // The batches take offsets already known to lie within h
+
+    // Sum of mass * poly6 over the batch
+    public double density(double[] dx, double[] dy, double[] dz, double[] mass, int n) {
+        return poly6 * densitySum(dx, dy, dz, mass, 0, n);
+    }
+
+    // Without the poly6 factor, which the batches apply once to the whole sum
+    final double densitySum(double[] dx, double[] dy, double[] dz, double[] mass, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; ++i) {
+            double x = h2 - (dx[i] * dx[i] + dy[i] * dy[i] + dz[i] * dz[i]);
+            sum += mass[i] * (x * x * x);
+        }
+        return sum;
+    }
+
+    // Every factor the force pass needs for each pair: spiky and poly6 gradients, viscosity and poly6 laplacians
+    public void forceFactors(double[] dx, double[] dy, double[] dz, int n,
+                             double[] spiky, double[] viscosity, double[] gradient, double[] laplacian) {
+        forceFactors(dx, dy, dz, 0, n, spiky, viscosity, gradient, laplacian);
+    }
+
+    final void forceFactors(double[] dx, double[] dy, double[] dz, int from, int to,
+                            double[] spiky, double[] viscosity, double[] gradient, double[] laplacian) {
+        for (int i = from; i < to; ++i) {
+            double d2 = dx[i] * dx[i] + dy[i] * dy[i] + dz[i] * dz[i];
+            double r = Math.sqrt(d2);
+            double x = h - r;
+            double y = h2 - d2;
+            spiky[i] = spikyGradient * x * x / r;
+            viscosity[i] = viscosityLaplacian * x;
+            gradient[i] = poly6Gradient * y * y;
+            laplacian[i] = poly6Gradient * (d2 - h2) * (7 * d2 - 3 * h2);
+        }
+    }
+
+    // Single precision batches, with twice the lanes of the double ones
+
+    public float density(float[] dx, float[] dy, float[] dz, float[] mass, int n) {
+        return poly6f * densitySum(dx, dy, dz, mass, 0, n);
+    }
+
+    final float densitySum(float[] dx, float[] dy, float[] dz, float[] mass, int from, int to) {
+        float sum = 0;
+        for (int i = from; i < to; ++i) {
+            float x = h2f - (dx[i] * dx[i] + dy[i] * dy[i] + dz[i] * dz[i]);
+            sum += mass[i] * (x * x * x);
+        }
+        return sum;
+    }
+
+    public void forceFactors(float[] dx, float[] dy, float[] dz, int n,
+                             float[] spiky, float[] viscosity, float[] gradient, float[] laplacian) {
+        forceFactors(dx, dy, dz, 0, n, spiky, viscosity, gradient, laplacian);
+    }
+
+    final void forceFactors(float[] dx, float[] dy, float[] dz, int from, int to,
+                            float[] spiky, float[] viscosity, float[] gradient, float[] laplacian) {
+        for (int i = from; i < to; ++i) {
+            float d2 = dx[i] * dx[i] + dy[i] * dy[i] + dz[i] * dz[i];
+            float r = (float) Math.sqrt(d2);
+            float x = hf - r;
+            float y = h2f - d2;
+            spiky[i] = spikyGradientf * x * x / r;
+            viscosity[i] = viscosityLaplacianf * x;
+            gradient[i] = poly6Gradientf * y * y;
+            laplacian[i] = poly6Gradientf * (d2 - h2f) * (7 * d2 - 3 * h2f);
+        }
+    }
+
+}
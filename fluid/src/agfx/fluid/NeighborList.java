@@ -0,0 +1,86 @@
+package agfx.fluid;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// Compressed neighbor lists: the neighbors of row r are indices[offsets[r]] .. indices[offsets[r+1]-1]
+class NeighborList {
+
+    private static final int BLOCK = 256;
+
+    @FunctionalInterface
+    interface Search {
+        void search(int row, Block out);
+    }
+
+    // Growable scratch list that one block of rows appends its neighbors, or anything else, to
+    static class Block {
+        int[] data;
+        int size;
+
+        Block() {
+            this(BLOCK * 32);
+        }
+
+        Block(int capacity) {
+            data = new int[Math.max(1, capacity)];
+        }
+
+        void add(int q) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = q;
+        }
+    }
+
+    int[] offsets = new int[1];
+    int[] indices = new int[0];
+    private Block[] blocks = new Block[0];
+
+    int start(int r) {
+        return offsets[r];
+    }
+
+    int end(int r) {
+        return offsets[r + 1];
+    }
+
+    int count(int r) {
+        return offsets[r + 1] - offsets[r];
+    }
+
+    void build(int n, Search search) {
+        if (offsets.length < n + 1)
+            offsets = new int[n + 1];
+        int nb = (n + BLOCK - 1) / BLOCK;
+        if (blocks.length < nb) {
+            int old = blocks.length;
+            blocks = Arrays.copyOf(blocks, nb);
+            for (int b = old; b < nb; ++b)
+                blocks[b] = new Block();
+        }
+
+        // Each block of rows gathers into its own buffer, recording per-row counts in offsets
+        IntStream.range(0, nb).parallel().forEach(b -> {
+            Block out = blocks[b];
+            out.size = 0;
+            for (int r = b * BLOCK, end = Math.min(n, r + BLOCK); r < end; ++r) {
+                int before = out.size;
+                search.search(r, out);
+                offsets[r + 1] = out.size - before;
+            }
+        });
+
+        offsets[0] = 0;
+        for (int r = 0; r < n; ++r)
+            offsets[r + 1] += offsets[r];
+        if (indices.length < offsets[n])
+            indices = new int[offsets[n] + offsets[n] / 4];
+
+        IntStream.range(0, nb).parallel().forEach(b -> {
+            Block out = blocks[b];
+            System.arraycopy(out.data, 0, indices, offsets[b * BLOCK], out.size);
+        });
+    }
+
+}
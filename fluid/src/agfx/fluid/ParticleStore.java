@@ -0,0 +1,189 @@
+package agfx.fluid;
+
+import java.util.Arrays;
+
+public class ParticleStore {
+
+    int size;
+
+    double[] px, py, pz;
+    double[] vx, vy, vz;
+    double[] ax, ay, az;
+    double[] fx, fy, fz;
+    double[] nx, ny, nz;
+    double[] density;
+    double[] pressure;
+    double[] mass;
+    Fluid[] fluid;
+    // Named scalars carried by each row, e.g. sediment concentration or temperature, one column per channel, and
+    // how fast each was changing as of the last force pass
+    double[][] scalar = new double[0][];
+    double[][] scalarRate = new double[0][];
+
+    // Row in the store to index in the vertex pool, and back again
+    int[] slot;
+    int[] row;
+
+    // Scratch arrays recycled by permute
+    private double[] spareD;
+    private int[] spareI;
+    private Fluid[] spareF;
+
+    public ParticleStore(int capacity) {
+        px = new double[capacity]; py = new double[capacity]; pz = new double[capacity];
+        vx = new double[capacity]; vy = new double[capacity]; vz = new double[capacity];
+        ax = new double[capacity]; ay = new double[capacity]; az = new double[capacity];
+        fx = new double[capacity]; fy = new double[capacity]; fz = new double[capacity];
+        nx = new double[capacity]; ny = new double[capacity]; nz = new double[capacity];
+        density = new double[capacity];
+        pressure = new double[capacity];
+        mass = new double[capacity];
+        fluid = new Fluid[capacity];
+        slot = new int[capacity];
+        row = new int[capacity];
+        Arrays.fill(row, -1);
+        spareD = new double[capacity];
+        spareI = new int[capacity];
+        spareF = new Fluid[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return px.length;
+    }
+
+    int channels() {
+        return scalar.length;
+    }
+
+    // A new channel, zero on every row
+    int addChannel() {
+        int c = scalar.length;
+        scalar = Arrays.copyOf(scalar, c + 1);
+        scalarRate = Arrays.copyOf(scalarRate, c + 1);
+        scalar[c] = new double[capacity()];
+        scalarRate[c] = new double[capacity()];
+        return c;
+    }
+
+    // Reallocates every column, keeping the live rows
+    void grow(int capacity) {
+        px = Arrays.copyOf(px, capacity); py = Arrays.copyOf(py, capacity); pz = Arrays.copyOf(pz, capacity);
+        vx = Arrays.copyOf(vx, capacity); vy = Arrays.copyOf(vy, capacity); vz = Arrays.copyOf(vz, capacity);
+        ax = Arrays.copyOf(ax, capacity); ay = Arrays.copyOf(ay, capacity); az = Arrays.copyOf(az, capacity);
+        fx = Arrays.copyOf(fx, capacity); fy = Arrays.copyOf(fy, capacity); fz = Arrays.copyOf(fz, capacity);
+        nx = Arrays.copyOf(nx, capacity); ny = Arrays.copyOf(ny, capacity); nz = Arrays.copyOf(nz, capacity);
+        density = Arrays.copyOf(density, capacity);
+        pressure = Arrays.copyOf(pressure, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        fluid = Arrays.copyOf(fluid, capacity);
+        for (int c = 0; c < scalar.length; ++c) {
+            scalar[c] = Arrays.copyOf(scalar[c], capacity);
+            scalarRate[c] = Arrays.copyOf(scalarRate[c], capacity);
+        }
+        slot = Arrays.copyOf(slot, capacity);
+        int old = row.length;
+        row = Arrays.copyOf(row, capacity);
+        Arrays.fill(row, old, capacity, -1);
+        spareD = new double[capacity];
+        spareI = new int[capacity];
+        spareF = new Fluid[capacity];
+    }
+
+    int add(Fluid f, double m, int s) {
+        int r = size++;
+        px[r] = py[r] = pz[r] = 0;
+        vx[r] = vy[r] = vz[r] = 0;
+        ax[r] = ay[r] = az[r] = 0;
+        fx[r] = fy[r] = fz[r] = 0;
+        nx[r] = ny[r] = nz[r] = 0;
+        density[r] = pressure[r] = 0;
+        mass[r] = m;
+        fluid[r] = f;
+        for (int c = 0; c < scalar.length; ++c)
+            scalar[c][r] = scalarRate[c][r] = 0;
+        slot[r] = s;
+        row[s] = r;
+        return r;
+    }
+
+    // Not counting the two per channel
+    static final int COLUMNS = 18;
+
+    // The double columns in a fixed order, then each channel and its rate; permute swaps the arrays, so this must be
+    // asked for again after sorting
+    double[][] columns() {
+        double[][] columns = Arrays.copyOf(new double[][] {px, py, pz, vx, vy, vz, ax, ay, az, fx, fy, fz, nx, ny, nz, density, pressure, mass},
+                COLUMNS + 2 * scalar.length);
+        for (int c = 0; c < scalar.length; ++c) {
+            columns[COLUMNS + 2 * c] = scalar[c];
+            columns[COLUMNS + 2 * c + 1] = scalarRate[c];
+        }
+        return columns;
+    }
+
+    // Velocities too, since the walls clamp an infinite position back inside but keep the infinite velocity
+    boolean isFinite(int r) {
+        return Double.isFinite(px[r]) && Double.isFinite(py[r]) && Double.isFinite(pz[r])
+                && Double.isFinite(vx[r]) && Double.isFinite(vy[r]) && Double.isFinite(vz[r]);
+    }
+
+    // Copies row src over row dst, leaving src untouched
+    void move(int src, int dst) {
+        px[dst] = px[src]; py[dst] = py[src]; pz[dst] = pz[src];
+        vx[dst] = vx[src]; vy[dst] = vy[src]; vz[dst] = vz[src];
+        ax[dst] = ax[src]; ay[dst] = ay[src]; az[dst] = az[src];
+        fx[dst] = fx[src]; fy[dst] = fy[src]; fz[dst] = fz[src];
+        nx[dst] = nx[src]; ny[dst] = ny[src]; nz[dst] = nz[src];
+        density[dst] = density[src];
+        pressure[dst] = pressure[src];
+        mass[dst] = mass[src];
+        fluid[dst] = fluid[src];
+        for (int c = 0; c < scalar.length; ++c) {
+            scalar[c][dst] = scalar[c][src];
+            scalarRate[c][dst] = scalarRate[c][src];
+        }
+        slot[dst] = slot[src];
+        row[slot[dst]] = dst;
+    }
+
+    // Reorders the rows so that row i afterwards holds what was in row order[i]
+    void permute(int[] order) {
+        px = gather(px, order); py = gather(py, order); pz = gather(pz, order);
+        vx = gather(vx, order); vy = gather(vy, order); vz = gather(vz, order);
+        ax = gather(ax, order); ay = gather(ay, order); az = gather(az, order);
+        fx = gather(fx, order); fy = gather(fy, order); fz = gather(fz, order);
+        nx = gather(nx, order); ny = gather(ny, order); nz = gather(nz, order);
+        density = gather(density, order);
+        pressure = gather(pressure, order);
+        mass = gather(mass, order);
+        for (int c = 0; c < scalar.length; ++c) {
+            scalar[c] = gather(scalar[c], order);
+            scalarRate[c] = gather(scalarRate[c], order);
+        }
+
+        Fluid[] f = spareF;
+        for (int i = 0; i < size; ++i)
+            f[i] = fluid[order[i]];
+        spareF = fluid;
+        fluid = f;
+
+        int[] s = spareI;
+        for (int i = 0; i < size; ++i)
+            row[s[i] = slot[order[i]]] = i;
+        spareI = slot;
+        slot = s;
+    }
+
+    private double[] gather(double[] src, int[] order) {
+        double[] dst = spareD;
+        for (int i = 0; i < size; ++i)
+            dst[i] = src[order[i]];
+        spareD = src;
+        return dst;
+    }
+
+}
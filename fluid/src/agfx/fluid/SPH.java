@@ -1,100 +1,933 @@
 package agfx.fluid;
 
-import agfx.gl.Utils;
+import agfx.Cloud;
+import agfx.MathUtils;
 import agfx.gl.VertexPoolArray;
 import org.joml.Vector3d;
 import org.joml.Vector3dc;
-import org.joml.Vector3f;
 import org.joml.Vector3i;
-import org.joml.Vector3ic;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.function.Function;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-import static org.lwjgl.opengl.GL11.GL_FLOAT;
-
 public class SPH {
     private static final double R = 8.3144598f;
 
-    public class Particle {
-        public final Fluid fluid;
-        public final Vector3d pos;
-        public final Vector3d vel;
-        public final double mass;
+    // Called on the simulation thread at the end of every update, once the store holds the new state
+    @FunctionalInterface
+    public interface StepListener {
+        void stepped(SPH sph);
+    }
 
-        protected int index;
+    public enum CellOrder {
+        // ix + iy * gx + iz * gx * gy, with a dense table of every cell in the grid
+        ROW_MAJOR,
+        // Interleaved bits of ix, iy and iz, so that cells close in space stay close in the store, with a hashed table
+        // of only the occupied cells
+        MORTON
+    }
 
-        public boolean fixed;
+    public enum EquationOfState {
+        // Pressure proportional to the density difference, with the stiffness of an ideal gas of the fluid's molar mass
+        IDEAL_GAS,
+        // Weakly compressible: B ((density / rest)^7 - 1), with B set by the fluid's speed of sound
+        TAIT
+    }
+
+    public enum PressureSolver {
+        // Pressure straight from the equation of state, so steps must be short enough for sound to cross a kernel
+        EXPLICIT,
+        // Predictive-corrective (Solenthaler and Pajarola 2009): pressures are iterated until the densities predicted
+        // for the next step are within the tolerance of rest, so only the flow itself limits the step
+        PCISPH
+    }
 
-        protected final List<Particle> neighbors;
-        public final Vector3d force;
-        public final Vector3d acc;
-        public final Vector3d normal;
-        public double density;
-        public double pressure;
+    public enum Pipeline {
+        // One parallel pass over every particle per stage
+        STAGED,
+        // Density, force and acceleration in a single pass over cache-sized blocks of cell-sorted particles
+        FUSED
+    }
 
-        protected Particle(Fluid f, double m, int i) {
-            fluid = f;
-            pos = new Vector3d();
-            vel = new Vector3d();
-            mass = m;
+    public class Particle {
+        protected final int index;
 
+        protected Particle(int i) {
             index = i;
+        }
 
-            neighbors = new ArrayList<>();
-            force = new Vector3d();
-            acc = new Vector3d();
-            normal = new Vector3d();
+        private int row() {
+            return store.row[index];
         }
 
-        public void pack() {
-            Vector3f v = new Vector3f();
-            pool.put(index, 0, v.set(pos)::get);
-            pool.put(index, 12, v.set(normal)::get);
+        public Fluid fluid() {
+            return store.fluid[row()];
+        }
+
+        public double mass() {
+            return store.mass[row()];
+        }
+
+        public double density() {
+            return store.density[row()];
+        }
+
+        public double pressure() {
+            return store.pressure[row()];
+        }
+
+        public Vector3d getPos(Vector3d dest) {
+            int r = row();
+            return dest.set(store.px[r], store.py[r], store.pz[r]);
+        }
+
+        public Particle setPos(Vector3dc v) {
+            int r = row();
+            store.px[r] = v.x(); store.py[r] = v.y(); store.pz[r] = v.z();
+            return this;
+        }
+
+        public Vector3d getVel(Vector3d dest) {
+            int r = row();
+            return dest.set(store.vx[r], store.vy[r], store.vz[r]);
+        }
+
+        public Particle setVel(Vector3dc v) {
+            int r = row();
+            store.vx[r] = v.x(); store.vy[r] = v.y(); store.vz[r] = v.z();
+            return this;
+        }
+
+        public Vector3d getAcc(Vector3d dest) {
+            int r = row();
+            return dest.set(store.ax[r], store.ay[r], store.az[r]);
         }
 
-        protected int cell() {
-            int ix = (int) Math.floor((pos.x - origin.x()) / kernelRadius);
-            int iy = (int) Math.floor((pos.y - origin.y()) / kernelRadius);
-            int iz = (int) Math.floor((pos.z - origin.z()) / kernelRadius);
-            return ix + iy * grid.x() + iz * grid.x() * grid.y();
+        public Vector3d getForce(Vector3d dest) {
+            int r = row();
+            return dest.set(store.fx[r], store.fy[r], store.fz[r]);
+        }
+
+        public Vector3d getNormal(Vector3d dest) {
+            int r = row();
+            return dest.set(store.nx[r], store.ny[r], store.nz[r]);
+        }
+
+        public Particle setNormal(Vector3dc v) {
+            int r = row();
+            store.nx[r] = v.x(); store.ny[r] = v.y(); store.nz[r] = v.z();
+            return this;
+        }
+
+        public double getScalar(int channel) {
+            return store.scalar[channel][row()];
+        }
+
+        public Particle setScalar(int channel, double value) {
+            store.scalar[channel][row()] = value;
+            return this;
+        }
+
+        public void pack() {
+            SPH.this.pack(row());
+            pool.markDirty(index, index + 1);
         }
     }
 
     public final VertexPoolArray pool;
-    public final Particle[] particles;
+    public final ParticleStore store;
     public final Vector3d gravity;
 
     private final double kernelRadius;
+    private final KernelEvaluator kernel;
     private final Vector3dc origin;
-    private final Vector3ic grid;
+    private final Vector3dc bound;
+    // As given, so that a restored simulation rebuilds exactly the same grid
+    private final Vector3dc max;
+
+    // The cell grid is sized to the neighbor search radius, which includes the Verlet skin
+    private double cellSize;
+    private final Vector3i grid;
+
+    // Without walls particles go anywhere and cells are indexed relative to the origin, within 2^20 cells either way
+    private static final int OPEN_BIAS = 1 << 20;
+    private boolean walls = true;
+
+    private final NeighborList neighbors;
+    // Row-major cells index a dense table over the whole grid; Morton cells go through a hash of the occupied ones
+    private CellOrder cellOrder = CellOrder.ROW_MAJOR;
+    private int[] cellStart = new int[0];
+    private int[] cellCount = new int[0];
+    private final CellHash cellHash = new CellHash();
+    private long[] cellOf;
+    // Set by sort while cellOf holds the cells of the sorted rows
+    private boolean keysSorted;
+    private long[] keyScratch;
+    private int[] order = new int[0], orderScratch;
+
+    // Verlet list state: positions when the lists were last built
+    private double skin;
+    private boolean listsValid;
+    private double[] refX, refY, refZ;
+    private long steps;
+    private long rebuilds;
+
+    // Evaluate each pair once over half neighbor lists
+    private boolean symmetric;
+    private Partials[] partials = new Partials[0];
+    // Row ranges the symmetric passes and the sediment exchange are split into, or 0 to size them by the threads
+    int partialTasks;
+
+    private Pipeline pipeline = Pipeline.STAGED;
+    private int blockSize = 512;
+    private final ThreadLocal<BlockScratch> blockScratch = ThreadLocal.withInitial(BlockScratch::new);
+    private final ThreadLocal<Pairs> pairs = ThreadLocal.withInitial(Pairs::new);
+
+    // Every this many steps the densities are also summed by the float kernels, to see how far they stray from double
+    private int precisionCheck;
+    private double lastPrecisionError;
+    private double maxPrecisionError;
+    private double[] nextVx = new double[0], nextVy, nextVz;
+
+    private EquationOfState equationOfState = EquationOfState.IDEAL_GAS;
+    // Safety factor on the CFL condition of the adaptive step
+    private double courant = 0.4;
+    // Simulated seconds over all updates
+    private double time;
+    private final Limits limits = new Limits();
+    // Whether limits still describe the store, as gathered by the last acceleration pass
+    private boolean limitsValid;
+
+    private PressureSolver pressureSolver = PressureSolver.EXPLICIT;
+    // Mean relative density error the solver iterates down to, and how many iterations it may take per step
+    private double solverTolerance = 0.01;
+    private int maxIterations = 50;
+    private static final int MIN_ITERATIONS = 3;
+    private int lastIterations;
+    private long iterations;
+    private double lastDensityError;
+    private double lastMaxDensityError;
+    // Solver state per row: where the next step puts each particle without pressure, and with it, the predicted
+    // density, the pressure acceleration, and the scale from density error to pressure
+    private double[] baseX = new double[0], baseY, baseZ, predX, predY, predZ;
+    private double[] pressureX, pressureY, pressureZ, pressureScale;
+    // Lattice sums by particle spacing
+    private final Map<Double, Double> latticeSums = new HashMap<>();
+
+    // Static boundary particles, and the ones within h + skin of each fluid row, rebuilt along with the fluid lists
+    private final BoundaryStore boundary = new BoundaryStore();
+    private final NeighborList boundaryNeighbors = new NeighborList();
+
+    private final List<StepListener> listeners = new ArrayList<>();
+
+    // Inflow and outflow
+    private final List<Emitter> emitters = new ArrayList<>();
+    private final List<Sink> sinks = new ArrayList<>();
+    private long emitted;
+    private long absorbed;
+
+    // Solids within the domain, e.g. terrain, independent of the walls and the grid
+    private final List<Collider> colliders = new ArrayList<>();
+
+    // Scalar channels by index, with how fast each diffuses through the fluid
+    private final List<String> channels = new ArrayList<>();
+    private double[] diffusivity = new double[0];
+    // The channel sediment is picked up into from the boundary and deposited back from, if any
+    private int sediment = -1;
+    private double erosionRate, erosionCapacity;
+    // What each fluid row took from each boundary particle in its list over the last force pass, in kg/s, negative
+    // where it deposited; the next integrate settles it with that step's dt. Rows past exchangeRows have none pending.
+    private double[] exchange = new double[0];
+    private int exchangeRows;
+    // Per task sums of what was taken from and given to each boundary particle, added up in task order so that the
+    // boundary comes out the same however the tasks were scheduled, and the share of each pickup that was there to take
+    private double[][] taken = new double[0][], given = new double[0][];
+    private double[] share = new double[0];
+
+    // Rows the integrate pass found non-finite, or inside a sink as ~row, gathered per block of rows
+    private static final int FLAG_BLOCK = 1024;
+    private NeighborList.Block[] flags = new NeighborList.Block[0];
+    private int flagged;
+    private int lastUnstable;
+    private long unstable;
 
     public SPH(int capacity, double h, Vector3dc min, Vector3dc max) {
-        pool = new VertexPoolArray(capacity, 2 * 3 * Utils.sizeof(GL_FLOAT));
-        particles = new Particle[capacity];
+        pool = new VertexPoolArray(capacity, 2 * 3 * Float.BYTES);
+        store = new ParticleStore(capacity);
         gravity = new Vector3d();
         kernelRadius = h;
+        kernel = KernelEvaluator.of(h);
         origin = new Vector3d(min);
         grid = new Vector3i().set(new Vector3d(max).sub(min).div(h).ceil());
-        System.out.println(h);
-        System.out.println(min);
-        System.out.println(max);
-        System.out.println(grid);
+        bound = new Vector3d(grid).mul(h).add(origin);
+        this.max = new Vector3d(max);
+        neighbors = new NeighborList();
+        cellOf = new long[capacity];
+        refX = new double[capacity];
+        refY = new double[capacity];
+        refZ = new double[capacity];
+        setVerletSkin(0);
+    }
+
+    // An open domain with no walls, whose memory scales with the particles rather than the space they cover
+    public SPH(int capacity, double h) {
+        this(capacity, h, new Vector3d(), new Vector3d());
+        setWalls(false);
+    }
+
+    public double getKernelRadius() {
+        return kernelRadius;
+    }
+
+    public double getVerletSkin() {
+        return skin;
+    }
+
+    // A positive skin caches neighbor lists out to h + skin until some particle has moved more than skin / 2
+    public void setVerletSkin(double delta) {
+        if (delta < 0) throw new IllegalArgumentException("Negative skin: " + delta);
+        skin = delta;
+        cellSize = kernelRadius + delta;
+        grid.set(new Vector3d(bound).sub(origin).div(cellSize).ceil());
+        allocateCells();
+    }
+
+    public CellOrder getCellOrder() {
+        return cellOrder;
+    }
+
+    public void setCellOrder(CellOrder order) {
+        if (!walls && order == CellOrder.ROW_MAJOR) throw new IllegalStateException("Row-major cells need walls to bound the grid");
+        cellOrder = order;
+        allocateCells();
+    }
+
+    public boolean hasWalls() {
+        return walls;
+    }
+
+    // Without walls nothing bounds the grid, so cells switch to the hashed Morton table
+    public void setWalls(boolean b) {
+        walls = b;
+        if (!walls)
+            cellOrder = CellOrder.MORTON;
+        allocateCells();
+    }
+
+    private void allocateCells() {
+        if (!walls) {
+            cellStart = cellCount = new int[0];
+        } else if (cellOrder == CellOrder.ROW_MAJOR) {
+            if (grid.x() >= 1 << 21 || grid.y() >= 1 << 21 || grid.z() >= 1 << 21 || (long) grid.x() * grid.y() * grid.z() > Integer.MAX_VALUE - 8)
+                throw new IllegalStateException("Grid " + grid + " too large for a dense cell table, use Morton cells");
+            cellStart = new int[grid.x() * grid.y() * grid.z()];
+            cellCount = new int[cellStart.length];
+        } else {
+            if (grid.x() > 1 << 21 || grid.y() > 1 << 21 || grid.z() > 1 << 21)
+                throw new IllegalStateException("Grid " + grid + " too large for 21 bit Morton coordinates");
+            cellStart = cellCount = new int[0];
+        }
+        listsValid = false;
+    }
+
+    private boolean half() {
+        return symmetric && pipeline == Pipeline.STAGED && pressureSolver == PressureSolver.EXPLICIT;
+    }
+
+    public boolean isSymmetric() {
+        return symmetric;
+    }
+
+    public void setSymmetric(boolean b) {
+        symmetric = b;
+        listsValid = false;
+    }
+
+    public Pipeline getPipeline() {
+        return pipeline;
+    }
+
+    // The fused pipeline always evaluates full neighbor lists, so it ignores the symmetric setting
+    public void setPipeline(Pipeline p) {
+        pipeline = p;
+        listsValid = false;
+    }
+
+    public int getPrecisionCheck() {
+        return precisionCheck;
+    }
+
+    public void setPrecisionCheck(int steps) {
+        if (steps < 0) throw new IllegalArgumentException("Negative interval: " + steps);
+        precisionCheck = steps;
+    }
+
+    // Largest relative density difference between the float and double kernel sums at the last check, and over all checks
+    public double lastPrecisionError() {
+        return lastPrecisionError;
+    }
+
+    public double maxPrecisionError() {
+        return maxPrecisionError;
+    }
+
+    public EquationOfState getEquationOfState() {
+        return equationOfState;
+    }
+
+    public void setEquationOfState(EquationOfState eos) {
+        equationOfState = eos;
+        limitsValid = false;
+    }
+
+    public double getCourant() {
+        return courant;
+    }
+
+    public void setCourant(double c) {
+        if (!(c > 0)) throw new IllegalArgumentException("Courant number must be positive: " + c);
+        courant = c;
+    }
+
+    public double time() {
+        return time;
+    }
+
+    // The largest step the current state allows: the CFL condition on the speed of sound plus the fastest particle,
+    // the viscous diffusion limit and the force limit on the largest acceleration, each with its usual safety factor.
+    // Under PCISPH only the fastest particle and viscosity limit it. Infinite for an empty store.
+    public double stableTimeStep() {
+        if (!limitsValid)
+            gatherLimits();
+        double h = kernelRadius;
+        // An incompressible solver has no pressure waves to outrun
+        double sound = pressureSolver == PressureSolver.EXPLICIT ? limits.sound : 0;
+        double dt = courant * h / (sound + Math.sqrt(limits.speed2));
+        if (limits.kinematic > 0)
+            dt = Math.min(dt, 0.125 * h * h / limits.kinematic);
+        // PCISPH's pressure accelerations grow as 1 / dt^2 by construction, so limiting the step by them would only
+        // ever shrink it further
+        if (limits.accel2 > 0 && pressureSolver == PressureSolver.EXPLICIT)
+            dt = Math.min(dt, 0.25 * Math.sqrt(h / Math.sqrt(limits.accel2)));
+        return dt;
+    }
+
+    // Steps by the stable time step, but no more than maxDt, and returns the step taken
+    public double updateAdaptive(double maxDt) {
+        double dt = Math.min(maxDt, stableTimeStep());
+        update(dt);
+        return dt;
+    }
+
+    public PressureSolver getPressureSolver() {
+        return pressureSolver;
+    }
+
+    // PCISPH runs its own staged passes over full neighbor lists, whatever the pipeline and symmetric settings, and
+    // replaces the equation of state with the pressures it solves for
+    public void setPressureSolver(PressureSolver solver) {
+        pressureSolver = solver;
+        listsValid = false;
+    }
+
+    public double getSolverTolerance() {
+        return solverTolerance;
+    }
+
+    public void setSolverTolerance(double tolerance) {
+        if (!(tolerance > 0)) throw new IllegalArgumentException("Tolerance must be positive: " + tolerance);
+        solverTolerance = tolerance;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public void setMaxIterations(int n) {
+        if (n < MIN_ITERATIONS) throw new IllegalArgumentException("At least " + MIN_ITERATIONS + " iterations: " + n);
+        maxIterations = n;
+    }
+
+    // Solver iterations in the last step and over all steps
+    public int lastIterations() {
+        return lastIterations;
+    }
+
+    public long iterations() {
+        return iterations;
+    }
+
+    // Mean and largest relative compression the solver left in the last step's predicted densities
+    public double lastDensityError() {
+        return lastDensityError;
+    }
+
+    public double lastMaxDensityError() {
+        return lastMaxDensityError;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int rows) {
+        if (rows <= 0) throw new IllegalArgumentException("Block size must be positive: " + rows);
+        blockSize = rows;
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    public long rebuilds() {
+        return rebuilds;
+    }
+
+    // Fraction of steps that rebuilt the neighbor lists
+    public double rebuildFrequency() {
+        return steps == 0 ? 0 : (double) rebuilds / steps;
+    }
+
+    public void addStepListener(StepListener l) {
+        listeners.add(l);
+    }
+
+    public void removeStepListener(StepListener l) {
+        listeners.remove(l);
+    }
+
+    public void addEmitter(Emitter e) {
+        emitters.add(e);
+    }
+
+    public void removeEmitter(Emitter e) {
+        emitters.remove(e);
+    }
+
+    public void addSink(Sink k) {
+        sinks.add(k);
+    }
+
+    public void removeSink(Sink k) {
+        sinks.remove(k);
+    }
+
+    // Particles that end a step within a collider are put back on its surface, keeping only the velocity and
+    // acceleration along it
+    public void addCollider(Collider c) {
+        colliders.add(c);
+    }
+
+    public void removeCollider(Collider c) {
+        colliders.remove(c);
+    }
+
+    // Particles added by emitters and removed by sinks so far
+    public long emitted() {
+        return emitted;
+    }
+
+    public long absorbed() {
+        return absorbed;
+    }
+
+    // Particles removed for a non-finite position or velocity by the last update, and in total
+    public int lastUnstable() {
+        return lastUnstable;
+    }
+
+    public long unstable() {
+        return unstable;
+    }
+
+    // Grows the store, the pool and every per-row array geometrically, so that adding one particle at a time stays
+    // amortized constant
+    public void ensureCapacity(int n) {
+        int capacity = store.capacity();
+        if (n <= capacity)
+            return;
+        capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(n, 2L * capacity));
+        store.grow(capacity);
+        pool.resize(capacity);
+        refX = Arrays.copyOf(refX, capacity);
+        refY = Arrays.copyOf(refY, capacity);
+        refZ = Arrays.copyOf(refZ, capacity);
     }
 
     public Particle addParticle(Fluid f, double m) {
+        ensureCapacity(store.size + 1);
         int i = pool.request();
-        return particles[i] = new Particle(f, m, i);
+        store.add(f, m, i);
+        listsValid = false;
+        limitsValid = false;
+        return new Particle(i);
+    }
+
+    // Adds every point of the cloud, copying positions and normals straight from its records into the store
+    public void addParticles(Cloud cloud, Fluid f, double m) {
+        int n = cloud.size();
+        int from = store.size;
+        ensureCapacity(from + n);
+        for (int v : pool.request(n))
+            store.add(f, m, v);
+        cloud.copy(0, 0, n, store.px, from);
+        cloud.copy(1, 0, n, store.py, from);
+        cloud.copy(2, 0, n, store.pz, from);
+        cloud.copy(3, 0, n, store.nx, from);
+        cloud.copy(4, 0, n, store.ny, from);
+        cloud.copy(5, 0, n, store.nz, from);
+        for (int r = from; r < store.size; ++r)
+            pack(r);
+        listsValid = false;
+        limitsValid = false;
+    }
+
+    // A static boundary particle, e.g. of terrain. Boundary particles are never moved; fluid within h of them is held
+    // off by the pressure and slowed by the viscosity they contribute, in proportion to the volume each stands in for
+    // (Akinci et al. 2012). They should be spaced about as closely as the fluid particles, and are indexed on the
+    // next update after any are added.
+    public void addBoundary(double x, double y, double z) {
+        boundary.add(x, y, z);
+        listsValid = false;
+    }
+
+    public void addBoundary(Cloud cloud) {
+        int n = cloud.size();
+        double[] x = new double[n], y = new double[n], z = new double[n];
+        cloud.copy(0, 0, n, x, 0);
+        cloud.copy(1, 0, n, y, 0);
+        cloud.copy(2, 0, n, z, 0);
+        for (int i = 0; i < n; ++i)
+            boundary.add(x[i], y[i], z[i]);
+        listsValid = false;
+    }
+
+    public int boundarySize() {
+        return boundary.size();
+    }
+
+    // In the order they are stored, which the first update after adding any sorts by cell
+    public Vector3d getBoundaryPos(int i, Vector3d dest) {
+        return dest.set(boundary.px[i], boundary.py[i], boundary.pz[i]);
+    }
+
+    // Loose sediment resting on the boundary particle, in kilograms, which is all erosion can pick up from it
+    public double getBoundarySediment(int i) {
+        return boundary.sediment[i];
+    }
+
+    public void setBoundarySediment(int i, double kg) {
+        if (i < 0 || i >= boundary.size()) throw new IndexOutOfBoundsException("No boundary particle " + i);
+        if (!(kg >= 0)) throw new IllegalArgumentException("Negative sediment: " + kg);
+        boundary.sediment[i] = kg;
+    }
+
+    // A named scalar carried by every particle, e.g. sediment concentration or temperature, zero on particles until
+    // set. It diffuses toward its neighbors' values at the given rate in m^2/s, within the force pass; each step
+    // applies the rates of change the previous one found, as positions do the accelerations. Returns the channel's
+    // index for Particle.getScalar and setScalar.
+    public int addChannel(String name, double diffusivity) {
+        if (channels.contains(name)) throw new IllegalArgumentException("Channel already exists: " + name);
+        if (!(diffusivity >= 0)) throw new IllegalArgumentException("Negative diffusivity: " + diffusivity);
+        channels.add(name);
+        this.diffusivity = Arrays.copyOf(this.diffusivity, channels.size());
+        this.diffusivity[channels.size() - 1] = diffusivity;
+        return store.addChannel();
+    }
+
+    // The index of the named channel, or -1 if there is none
+    public int channel(String name) {
+        return channels.indexOf(name);
+    }
+
+    public List<String> channels() {
+        return Collections.unmodifiableList(channels);
+    }
+
+    public double getDiffusivity(int channel) {
+        return diffusivity[channel];
+    }
+
+    // Sediment exchange between the fluid and the boundary particles, carried in the given channel as kilograms per
+    // kilogram of fluid, or none for a channel of -1. Fluid within reach of the boundary can carry up to capacity
+    // times its speed, and moves toward that at the given rate per second, scaled by how much of its kernel the
+    // boundary fills: below it, it picks sediment up from the boundary particles in reach, as far as they have any,
+    // and above it, it settles back onto them. The rate times the step should stay well below 1.
+    public void setErosion(int channel, double rate, double capacity) {
+        if (channel < -1 || channel >= channels.size()) throw new IllegalArgumentException("No channel " + channel);
+        if (!(rate >= 0) || !(capacity >= 0)) throw new IllegalArgumentException("Negative erosion rate or capacity: " + rate + ", " + capacity);
+        sediment = channel;
+        erosionRate = rate;
+        erosionCapacity = capacity;
+        // Anything still pending was worked out for the old settings, and dropping it drops both sides of it
+        exchangeRows = 0;
+    }
+
+    public int getErosionChannel() {
+        return sediment;
+    }
+
+    // Copies the complete simulation state; cheap enough to take between steps, with the writing left to the caller
+    public Checkpoint checkpoint() {
+        ParticleStore s = store;
+        int n = s.size;
+        Checkpoint c = new Checkpoint();
+        c.capacity = s.capacity();
+        c.kernelRadius = kernelRadius;
+        c.min = new double[] {origin.x(), origin.y(), origin.z()};
+        c.max = new double[] {max.x(), max.y(), max.z()};
+        c.gravity = new double[] {gravity.x, gravity.y, gravity.z};
+        c.skin = skin;
+        c.symmetric = symmetric;
+        c.pipeline = pipeline;
+        c.cellOrder = cellOrder;
+        c.walls = walls;
+        c.precisionCheck = precisionCheck;
+        c.equationOfState = equationOfState;
+        c.courant = courant;
+        c.time = time;
+        c.pressureSolver = pressureSolver;
+        c.solverTolerance = solverTolerance;
+        c.maxIterations = maxIterations;
+        c.blockSize = blockSize;
+        c.steps = steps;
+        c.rebuilds = rebuilds;
+        c.unstable = unstable;
+        c.emitted = emitted;
+        c.absorbed = absorbed;
+        c.iterations = iterations;
+        c.lastUnstable = lastUnstable;
+        c.lastIterations = lastIterations;
+        c.lastDensityError = lastDensityError;
+        c.lastMaxDensityError = lastMaxDensityError;
+        c.lastPrecisionError = lastPrecisionError;
+        c.maxPrecisionError = maxPrecisionError;
+        c.listsValid = listsValid;
+
+        Map<Fluid, Integer> fluids = new IdentityHashMap<>();
+        c.size = n;
+        c.columns = Arrays.stream(s.columns()).map(column -> Arrays.copyOf(column, n)).toArray(double[][]::new);
+        c.fluid = new int[n];
+        for (int r = 0; r < n; ++r)
+            c.fluid[r] = fluids.computeIfAbsent(s.fluid[r], f -> fluids.size());
+        c.fluids = new Fluid[fluids.size()];
+        fluids.forEach((f, i) -> c.fluids[i] = f);
+        c.slot = Arrays.copyOf(s.slot, n);
+        c.channels = channels.toArray(new String[0]);
+        c.diffusivity = diffusivity.clone();
+        c.sediment = sediment;
+        c.erosionRate = erosionRate;
+        c.erosionCapacity = erosionCapacity;
+
+        if (listsValid) {
+            c.refX = Arrays.copyOf(refX, n);
+            c.refY = Arrays.copyOf(refY, n);
+            c.refZ = Arrays.copyOf(refZ, n);
+            c.offsets = Arrays.copyOf(neighbors.offsets, n + 1);
+            c.indices = Arrays.copyOf(neighbors.indices, neighbors.offsets[n]);
+        }
+        c.boundarySize = boundary.size();
+        c.boundaryX = Arrays.copyOf(boundary.px, boundary.size());
+        c.boundaryY = Arrays.copyOf(boundary.py, boundary.size());
+        c.boundaryZ = Arrays.copyOf(boundary.pz, boundary.size());
+        c.boundarySediment = Arrays.copyOf(boundary.sediment, boundary.size());
+        c.exchangeRows = exchangeRows;
+        if (exchangeRows > 0) {
+            int pairs = boundaryNeighbors.offsets[exchangeRows];
+            c.exchangeOffsets = Arrays.copyOf(boundaryNeighbors.offsets, exchangeRows + 1);
+            c.exchangeIndices = Arrays.copyOf(boundaryNeighbors.indices, pairs);
+            c.exchange = Arrays.copyOf(exchange, pairs);
+        }
+        c.used = pool.getUsed().toLongArray();
+        return c;
+    }
+
+    public static SPH restore(Path file) throws IOException, IllegalArgumentException {
+        return restore(Checkpoint.read(file));
+    }
+
+    public static SPH restore(Checkpoint c) throws IllegalArgumentException {
+        int expected = ParticleStore.COLUMNS + 2 * c.channels.length;
+        if (c.columns.length != expected)
+            throw new IllegalArgumentException("Expected " + expected + " columns, found " + c.columns.length);
+        SPH sph = new SPH(c.capacity, c.kernelRadius, new Vector3d(c.min[0], c.min[1], c.min[2]), new Vector3d(c.max[0], c.max[1], c.max[2]));
+        sph.gravity.set(c.gravity[0], c.gravity[1], c.gravity[2]);
+        sph.setVerletSkin(c.skin);
+        sph.setSymmetric(c.symmetric);
+        sph.setPipeline(c.pipeline);
+        sph.setWalls(c.walls);
+        sph.setCellOrder(c.cellOrder);
+        sph.setPrecisionCheck(c.precisionCheck);
+        sph.setEquationOfState(c.equationOfState);
+        sph.setCourant(c.courant);
+        sph.setPressureSolver(c.pressureSolver);
+        sph.setSolverTolerance(c.solverTolerance);
+        sph.setMaxIterations(c.maxIterations);
+        sph.setBlockSize(c.blockSize);
+        for (int i = 0; i < c.channels.length; ++i)
+            sph.addChannel(c.channels[i], c.diffusivity[i]);
+        sph.setErosion(c.sediment, c.erosionRate, c.erosionCapacity);
+
+        ParticleStore s = sph.store;
+        int n = c.size;
+        for (int r = 0; r < n; ++r)
+            s.add(c.fluids[c.fluid[r]], 0, c.slot[r]);
+        double[][] columns = s.columns();
+        for (int i = 0; i < columns.length; ++i)
+            System.arraycopy(c.columns[i], 0, columns[i], 0, n);
+        sph.pool.setUsed(BitSet.valueOf(c.used));
+        for (int r = 0; r < n; ++r)
+            sph.pack(r);
+        sph.pool.markDirty(0, sph.pool.blocks());
+
+        if (c.listsValid) {
+            System.arraycopy(c.refX, 0, sph.refX, 0, n);
+            System.arraycopy(c.refY, 0, sph.refY, 0, n);
+            System.arraycopy(c.refZ, 0, sph.refZ, 0, n);
+            sph.neighbors.offsets = Arrays.copyOf(c.offsets, n + 1);
+            sph.neighbors.indices = c.indices.clone();
+        }
+        for (int i = 0; i < c.boundarySize; ++i)
+            sph.boundary.add(c.boundaryX[i], c.boundaryY[i], c.boundaryZ[i]);
+        // Already sorted, so building the boundary again keeps them in line with their positions
+        System.arraycopy(c.boundarySediment, 0, sph.boundary.sediment, 0, c.boundarySize);
+        // The boundary lists were built at the reference positions, so building them there again matches them exactly
+        if (c.listsValid)
+            sph.findBoundaryNeighbors(sph.refX, sph.refY, sph.refZ);
+        // Whatever the lists, the next integrate settles the exchange over the ones it was found with
+        if (c.exchangeRows > 0) {
+            sph.boundaryNeighbors.offsets = c.exchangeOffsets.clone();
+            sph.boundaryNeighbors.indices = c.exchangeIndices.clone();
+            sph.exchange = c.exchange.clone();
+            sph.exchangeRows = c.exchangeRows;
+        }
+        sph.listsValid = c.listsValid;
+        sph.steps = c.steps;
+        sph.time = c.time;
+        sph.rebuilds = c.rebuilds;
+        sph.unstable = c.unstable;
+        sph.emitted = c.emitted;
+        sph.absorbed = c.absorbed;
+        sph.iterations = c.iterations;
+        sph.lastUnstable = c.lastUnstable;
+        sph.lastIterations = c.lastIterations;
+        sph.lastDensityError = c.lastDensityError;
+        sph.lastMaxDensityError = c.lastMaxDensityError;
+        sph.lastPrecisionError = c.lastPrecisionError;
+        sph.maxPrecisionError = c.maxPrecisionError;
+        return sph;
     }
 
     public Stream<Particle> particles() {
-        // Assumes that the array is compact, which it should be after sorting for neighbors
-        return Arrays.stream(particles, 0, pool.used());
+        return IntStream.range(0, store.size).mapToObj(r -> new Particle(store.slot[r]));
+    }
+
+    private static int clamp(int i, int n) {
+        return i < 0 ? 0 : i >= n ? n - 1 : i;
+    }
+
+    // Particles resting on the upper walls belong to the last cell rather than wrapping into the next row
+    private int cellX(int r) {
+        return cellIndex(store.px[r] - origin.x(), grid.x());
+    }
+
+    private int cellY(int r) {
+        return cellIndex(store.py[r] - origin.y(), grid.y());
+    }
+
+    private int cellZ(int r) {
+        return cellIndex(store.pz[r] - origin.z(), grid.z());
+    }
+
+    private int cellIndex(double d, int n) {
+        double i = Math.floor(d / cellSize);
+        if (walls)
+            return clamp((int) i, n);
+        // Clamped before the cast, which would saturate and overflow the bias for far away particles
+        return (int) Math.max(-OPEN_BIAS, Math.min(OPEN_BIAS - 1, i)) + OPEN_BIAS;
+    }
+
+    // Cells along each axis, the whole range of Morton coordinates without walls
+    private int cells(int n) {
+        return walls ? n : 2 * OPEN_BIAS;
+    }
+
+    private long cellKey(int ix, int iy, int iz) {
+        if (cellOrder == CellOrder.MORTON)
+            return spread(ix) | spread(iy) << 1 | spread(iz) << 2;
+        return ix + iy * (long) grid.x() + iz * (long) grid.x() * grid.y();
+    }
+
+    // The low 21 bits of i, two zero bits after each
+    private static long spread(int i) {
+        long x = i & 0x1FFFFFL;
+        x = (x | x << 32) & 0x1F00000000FFFFL;
+        x = (x | x << 16) & 0x1F0000FF0000FFL;
+        x = (x | x << 8) & 0x100F00F00F00F00FL;
+        x = (x | x << 4) & 0x10C30C30C30C30C3L;
+        x = (x | x << 2) & 0x1249249249249249L;
+        return x;
+    }
+
+    protected long cell(int r) {
+        return cellKey(cellX(r), cellY(r), cellZ(r));
+    }
+
+    protected void pack(int r) {
+        int v = store.slot[r];
+        pool.putFloat(v, 0, (float) store.px[r]);
+        pool.putFloat(v, 4, (float) store.py[r]);
+        pool.putFloat(v, 8, (float) store.pz[r]);
+        pool.putFloat(v, 12, (float) store.nx[r]);
+        pool.putFloat(v, 16, (float) store.ny[r]);
+        pool.putFloat(v, 20, (float) store.nz[r]);
+    }
+
+    private static void clamp(double[] p, double[] v, double[] a, int r, double lo, double hi) {
+        if (p[r] < lo) {
+            p[r] = lo;
+            v[r] *= -0.99999;
+            a[r] = Math.max(0, a[r]);
+        }
+        if (p[r] > hi) {
+            p[r] = hi;
+            v[r] *= -0.99999;
+            a[r] = Math.min(0, a[r]);
+        }
+    }
+
+    private void collide(Collider c, int r, Vector3d normal) {
+        ParticleStore s = store;
+        double d = c.distance(s.px[r], s.py[r], s.pz[r], normal);
+        if (!(d < 0))
+            return;
+        s.px[r] -= normal.x * d;
+        s.py[r] -= normal.y * d;
+        s.pz[r] -= normal.z * d;
+        double v = s.vx[r] * normal.x + s.vy[r] * normal.y + s.vz[r] * normal.z;
+        if (v < 0) {
+            s.vx[r] -= normal.x * v;
+            s.vy[r] -= normal.y * v;
+            s.vz[r] -= normal.z * v;
+        }
+        double a = s.ax[r] * normal.x + s.ay[r] * normal.y + s.az[r] * normal.z;
+        if (a < 0) {
+            s.ax[r] -= normal.x * a;
+            s.ay[r] -= normal.y * a;
+            s.az[r] -= normal.z * a;
+        }
     }
 
     public void update(double dt) {
@@ -102,128 +935,1136 @@ public class SPH {
         // 1. Update particle positions
         // 2. Compute forces
         // 3. Compute new acceleration
+        integrate(dt);
+        removeUnstable();
+        emit(dt);
+        updateNeighbors();
+        if (pressureSolver == PressureSolver.PCISPH) {
+            computeDensities();
+            // Without pressure the force pass leaves only the other forces, which the solver adds its own to
+            Arrays.fill(store.pressure, 0, store.size, 0);
+            computeForces();
+            solvePressure(dt);
+            computeAccelerations(dt);
+        } else if (pipeline == Pipeline.FUSED) {
+            computeFused(dt);
+        } else {
+            if (half()) {
+                computeDensitiesSymmetric();
+                computeForcesSymmetric();
+            } else {
+                computeDensities();
+                computeForces();
+            }
+            computeAccelerations(dt);
+        }
+        // The sediment the force pass found is exchanged over the next step
+        if (sediment >= 0 && boundary.size() > 0)
+            exchangeRows = store.size;
+        if (!half() && precisionCheck > 0 && steps % precisionCheck == 0)
+            checkPrecision();
+        time += dt;
+        // Every live particle was packed this step, and the pool keeps them in its first blocks
+        pool.markDirty(0, store.size);
+        for (StepListener l : listeners)
+            l.stepped(this);
+    }
+
+    // Also flags the rows to remove, so that finding them costs no extra pass over the store
+    void integrate(double dt) {
+        exchangeSediment(dt);
+        ParticleStore s = store;
+        int n = s.size;
+        int nb = (n + FLAG_BLOCK - 1) / FLAG_BLOCK;
+        if (flags.length < nb) {
+            int old = flags.length;
+            flags = Arrays.copyOf(flags, nb);
+            for (int b = old; b < nb; ++b)
+                flags[b] = new NeighborList.Block(16);
+        }
+        Sink[] drains = sinks.toArray(new Sink[0]);
+        Collider[] solids = colliders.toArray(new Collider[0]);
+        IntStream.range(0, nb).parallel().forEach(b -> {
+            NeighborList.Block out = flags[b];
+            out.size = 0;
+            Vector3d normal = new Vector3d();
+            for (int i = b * FLAG_BLOCK, end = Math.min(n, i + FLAG_BLOCK); i < end; ++i) {
+                s.px[i] += (s.ax[i] * (dt / 2) + s.vx[i]) * dt;
+                s.py[i] += (s.ay[i] * (dt / 2) + s.vy[i]) * dt;
+                s.pz[i] += (s.az[i] * (dt / 2) + s.vz[i]) * dt;
+                for (int c = 0; c < s.channels(); ++c)
+                    s.scalar[c][i] += s.scalarRate[c][i] * dt;
+                if (walls) {
+                    clamp(s.px, s.vx, s.ax, i, origin.x(), bound.x());
+                    clamp(s.py, s.vy, s.ay, i, origin.y(), bound.y());
+                    clamp(s.pz, s.vz, s.az, i, origin.z(), bound.z());
+                }
+                for (Collider c : solids)
+                    collide(c, i, normal);
+                if (!s.isFinite(i)) {
+                    out.add(i);
+                    continue;
+                }
+                for (Sink k : drains) {
+                    if (k.contains(s.px[i], s.py[i], s.pz[i])) {
+                        out.add(~i);
+                        break;
+                    }
+                }
+            }
+        });
+        flagged = nb;
+    }
+
+    // Moves the sediment the last force pass exchanged between the fluid and the boundary over the step. Pickups
+    // from a boundary particle are scaled down wherever they would take more than it holds along with what was
+    // deposited on it in the same step, on both sides, so neither ever goes negative and nothing is made or lost.
+    private void exchangeSediment(double dt) {
+        int n = exchangeRows;
+        exchangeRows = 0;
+        if (n == 0 || boundary.size() == 0)
+            return;
+        BoundaryStore bs = boundary;
+        NeighborList lists = boundaryNeighbors;
+        int nb = bs.size();
+        int tasks = partialTasks > 0 ? partialTasks : Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), n / 1024));
+        if (taken.length != tasks || taken[0].length < nb) {
+            taken = new double[tasks][nb];
+            given = new double[tasks][nb];
+        }
+        if (share.length < nb)
+            share = new double[nb];
+        IntStream.range(0, tasks).parallel().forEach(t -> {
+            double[] up = taken[t], down = given[t];
+            Arrays.fill(up, 0, nb, 0);
+            Arrays.fill(down, 0, nb, 0);
+            for (int p = (int) ((long) n * t / tasks), end = (int) ((long) n * (t + 1) / tasks); p < end; ++p) {
+                for (int j = lists.start(p), last = lists.end(p); j < last; ++j) {
+                    double e = exchange[j];
+                    if (e > 0)
+                        up[lists.indices[j]] += e;
+                    else down[lists.indices[j]] -= e;
+                }
+            }
+        });
+        IntStream.range(0, nb).parallel().forEach(b -> {
+            double up = 0, down = 0;
+            for (int t = 0; t < tasks; ++t) {
+                up += taken[t][b];
+                down += given[t][b];
+            }
+            double available = bs.sediment[b] / dt + down;
+            if (up > available) {
+                share[b] = available / up;
+                bs.sediment[b] = 0;
+            } else {
+                share[b] = 1;
+                bs.sediment[b] += (down - up) * dt;
+            }
+        });
+        ParticleStore s = store;
+        double[] carried = s.scalar[sediment];
+        IntStream.range(0, n).parallel().forEach(p -> {
+            double gained = 0;
+            for (int j = lists.start(p), end = lists.end(p); j < end; ++j) {
+                double e = exchange[j];
+                gained += e > 0 ? e * share[lists.indices[j]] : e;
+            }
+            carried[p] += gained * dt / s.mass[p];
+        });
+    }
+
+    // Removes the rows flagged by integrate, unstable or sunk, by moving the last live row into each one
+    void removeUnstable() {
+        ParticleStore s = store;
+        int removed = 0;
+        int sunk = 0;
+        // In descending order, so the last row is never one still waiting to be removed
+        for (int b = flagged - 1; b >= 0; --b) {
+            NeighborList.Block rows = flags[b];
+            for (int k = rows.size - 1; k >= 0; --k) {
+                int r = rows.data[k];
+                if (r < 0) {
+                    r = ~r;
+                    ++sunk;
+                } else ++removed;
+                int v = s.slot[r];
+                pool.reclaim(v);
+                int last = --s.size;
+                if (r != last)
+                    s.move(last, r);
+                s.row[v] = -1;
+            }
+            rows.size = 0;
+        }
+        flagged = 0;
+        lastUnstable = removed;
+        unstable += removed;
+        absorbed += sunk;
+        if (removed + sunk > 0) {
+            compactPool();
+            listsValid = false;
+        }
+    }
+
+    void emit(double dt) {
+        ParticleStore s = store;
+        Vector3d pos = new Vector3d();
+        for (Emitter e : emitters) {
+            int n = e.due(dt);
+            if (n == 0)
+                continue;
+            int from = s.size;
+            ensureCapacity(from + n);
+            for (int v : pool.request(n)) {
+                int r = s.add(e.fluid, e.mass, v);
+                e.sample(pos);
+                s.px[r] = pos.x; s.py[r] = pos.y; s.pz[r] = pos.z;
+                s.vx[r] = e.velocity.x; s.vy[r] = e.velocity.y; s.vz[r] = e.velocity.z;
+                pack(r);
+            }
+            emitted += n;
+            listsValid = false;
+        }
+    }
+
+    // Keeps the vertex buffer as dense as the store, following the pool's remap with the slot and row maps; the
+    // slots of surviving particles may change
+    private void compactPool() {
+        ParticleStore s = store;
+        pool.compact().forEach((from, to) -> {
+            int r = s.row[from];
+            s.slot[r] = to;
+            s.row[to] = r;
+            s.row[from] = -1;
+        });
+    }
+
+    void updateNeighbors() {
+        // Recompute particle neighborhoods, unless the cached Verlet lists still cover them
+        ParticleStore s = store;
+        ++steps;
+        if (!listsValid || skin == 0 || maxDisplacementSquared() > skin * skin / 4) {
+            sort();
+            findNeighbors();
+            findBoundaryNeighbors(s.px, s.py, s.pz);
+            System.arraycopy(s.px, 0, refX, 0, s.size);
+            System.arraycopy(s.py, 0, refY, 0, s.size);
+            System.arraycopy(s.pz, 0, refZ, 0, s.size);
+            listsValid = skin > 0;
+            ++rebuilds;
+        }
+    }
+
+    // Tait's exponent for water
+    private static final int TAIT_GAMMA = 7;
+
+    private double pressure(Fluid f, double density) {
+        if (equationOfState == EquationOfState.TAIT) {
+            double x = density / f.restDensity;
+            double x2 = x * x;
+            return f.restDensity * f.speedOfSound * f.speedOfSound / TAIT_GAMMA * (x2 * x2 * x2 * x - 1);
+        }
+        return 293.15 * (density - f.restDensity) / f.molarMass - f.restPressure;
+    }
+
+    // The speed pressure waves travel at under the equation of state, sqrt(dp / d density) near rest
+    private double soundSpeed(Fluid f) {
+        if (equationOfState == EquationOfState.TAIT)
+            return f.speedOfSound;
+        return Math.sqrt(293.15 / f.molarMass);
+    }
+
+    // Largest squared speed and acceleration, speed of sound and kinematic viscosity over the store
+    private static class Limits {
+        double speed2, accel2, sound, kinematic;
+
+        void reset() {
+            speed2 = accel2 = sound = kinematic = 0;
+        }
+
+        synchronized void merge(double speed2, double accel2, double sound, double kinematic) {
+            this.speed2 = Math.max(this.speed2, speed2);
+            this.accel2 = Math.max(this.accel2, accel2);
+            this.sound = Math.max(this.sound, sound);
+            this.kinematic = Math.max(this.kinematic, kinematic);
+        }
+    }
+
+    // Folds rows [from, to) into the limits, with velocities from the given arrays; run by the acceleration passes on
+    // each block they have just finished, while it is still in cache
+    private void limit(int from, int to, double[] vx, double[] vy, double[] vz) {
+        ParticleStore s = store;
+        double speed2 = 0, accel2 = 0, sound = 0, kinematic = 0;
+        Fluid last = null;
+        for (int p = from; p < to; ++p) {
+            double v2 = vx[p] * vx[p] + vy[p] * vy[p] + vz[p] * vz[p];
+            double a2 = s.ax[p] * s.ax[p] + s.ay[p] * s.ay[p] + s.az[p] * s.az[p];
+            // Rows gone non-finite are removed by the next integrate, so they set no limit
+            if (v2 < Double.POSITIVE_INFINITY && a2 < Double.POSITIVE_INFINITY) {
+                speed2 = Math.max(speed2, v2);
+                accel2 = Math.max(accel2, a2);
+            }
+            Fluid f = s.fluid[p];
+            if (f != last) {
+                sound = Math.max(sound, soundSpeed(f));
+                kinematic = Math.max(kinematic, f.viscosity / f.restDensity);
+                last = f;
+            }
+        }
+        limits.merge(speed2, accel2, sound, kinematic);
+    }
 
-        particles().parallel().forEach(p -> {
-            p.pos.add(p.acc.mul(dt / 2, new Vector3d()).add(p.vel).mul(dt));
-            if (p.pos.x < origin.x()) {
-                p.pos.x = origin.x();
-                p.vel.x *= -0.99999;
-                p.acc.x = Math.max(0, p.acc.x);
-            }
-            if (p.pos.x > origin.x() + grid.x() * kernelRadius) {
-                p.pos.x = origin.x() + grid.x() * kernelRadius;
-                p.vel.x *= -0.99999;
-                p.acc.x = Math.min(0, p.acc.x);
-            }
-
-            if (p.pos.y < origin.y()) {
-                p.pos.y = origin.y();
-                p.vel.y *= -0.99999;
-                p.acc.y = Math.max(0, p.acc.y);
-            }
-            if (p.pos.y > origin.y() + grid.y() * kernelRadius) {
-                p.pos.y = origin.y() + grid.y() * kernelRadius;
-                p.vel.y *= -0.99999;
-                p.acc.y = Math.min(0, p.acc.y);
-            }
-
-            if (p.pos.z < origin.z()) {
-                p.pos.z = origin.z();
-                p.vel.z *= -0.99999;
-                p.acc.z = Math.max(0, p.acc.z);
-            }
-            if (p.pos.z > origin.z() + grid.z() * kernelRadius) {
-                p.pos.z = origin.z() + grid.z() * kernelRadius;
-                p.vel.z *= -0.99999;
-                p.acc.z = Math.min(0, p.acc.z);
-            }
-        });
-
-        int len = pool.used();
-        for (int i = 0; i < particles.length; ++i) {
-            if (particles[i] != null && !particles[i].pos.isFinite()) {
-                pool.reclaim(particles[i].index);
-                particles[i] = null;
-            }
-        }
-        if (pool.used() < len)
-            System.err.println("Instability detected");
-
-        // Recompute particle neighborhoods
-        Arrays.parallelSort(particles, Comparator.nullsLast(Comparator.comparingInt(Particle::cell)));
-
-        int[] cells = new int[grid.x() * grid.y() * grid.z()];
-        for (int i = 1; i < cells.length; ++i) {
-            int index = cells[i - 1];
-            while (index < particles.length && particles[index] != null && particles[index].cell() < i)
-                ++index;
-            cells[i] = index;
-        }
-
-        particles().parallel().forEach(p -> {
-            p.neighbors.clear();
-            IntStream.of(p.cell())
-                    // Compute Cartesian product of neighboring cells
-                    .flatMap(c -> IntStream.of(c, c + 1, c - 1))
-                    .flatMap(c -> IntStream.of(c, c + grid.x(), c - grid.x()))
-                    .flatMap(c -> IntStream.of(c, c + grid.x() * grid.y(), c - grid.x() * grid.y()))
-                    .filter(c -> c >= 0 && c < cells.length)
-                    // Map each cell to the particles in it
-                    .mapToObj(c -> Arrays.stream(particles, cells[c], c+1 < cells.length? cells[c+1] : pool.used()))
-                    .flatMap(Function.identity())
-                    // Only include other particles within kernel radius
-                    .filter(q -> p != q)
-                    .filter(q -> q.pos.distanceSquared(p.pos) < kernelRadius*kernelRadius)
-                    .forEach(p.neighbors::add);
-        });
-
-        // Compute the densities and resultant pressures at each particle
-        particles().parallel().forEach(p -> {
-            Vector3d scratch = new Vector3d();
-            p.density = 0;
-            for (Particle q : p.neighbors)
-                p.density += q.mass * Kernel.POLY_6.kernel(p.pos.sub(q.pos, scratch), kernelRadius);
-            p.pressure = 293.15 * (p.density - p.fluid.restDensity) / p.fluid.molarMass - p.fluid.restPressure;
-        });
-
-        // Compute the forces acting on each particle
-        particles().parallel().forEach(p -> {
-            Vector3d scratch = new Vector3d();
-            gravity.mul(p.density, p.force);
-            p.normal.set(0);
+    // For a store no acceleration pass has seen yet, e.g. before the first step or after adding particles
+    private void gatherLimits() {
+        ParticleStore s = store;
+        int n = s.size;
+        limits.reset();
+        IntStream.range(0, (n + FLAG_BLOCK - 1) / FLAG_BLOCK).parallel()
+                .forEach(b -> limit(b * FLAG_BLOCK, Math.min(n, (b + 1) * FLAG_BLOCK), s.vx, s.vy, s.vz));
+        limitsValid = true;
+    }
+
+    // The neighbors of one particle within h, gathered into flat arrays for the kernel batches
+    private static class Pairs {
+        // Pairs within h, and that rounded up to whole vectors with massless pairs at zero offset
+        int n, padded;
+        int[] q = new int[0];
+        double[] dx, dy, dz, mass;
+        double[] spiky, viscosity, gradient, laplacian;
+        float[] dxf, dyf, dzf, massf;
+        // The force and surface normal being summed for the current particle
+        final Vector3d force = new Vector3d(), normal = new Vector3d();
+
+        void reserve(int capacity) {
+            if (q.length < capacity) {
+                capacity = Math.max(capacity, 2 * q.length);
+                q = new int[capacity];
+                dx = new double[capacity]; dy = new double[capacity]; dz = new double[capacity];
+                mass = new double[capacity];
+                spiky = new double[capacity]; viscosity = new double[capacity];
+                gradient = new double[capacity]; laplacian = new double[capacity];
+                dxf = new float[capacity]; dyf = new float[capacity]; dzf = new float[capacity];
+                massf = new float[capacity];
+            }
+        }
+    }
+
+    // Verlet lists hold neighbors out to h + skin, so this is also where the ones beyond h are dropped.
+    // Single precision, only for the precision check, fills only the float arrays.
+    private Pairs gather(int p, boolean single) {
+        ParticleStore s = store;
+        Pairs b = pairs.get();
+        int lanes = kernel.lanes();
+        b.reserve(neighbors.end(p) - neighbors.start(p) + lanes);
+        double h2 = kernelRadius * kernelRadius;
+        double x = s.px[p], y = s.py[p], z = s.pz[p];
+        int n = 0;
+        for (int j = neighbors.start(p), end = neighbors.end(p); j < end; ++j) {
+            int q = neighbors.indices[j];
+            double dx = x - s.px[q], dy = y - s.py[q], dz = z - s.pz[q];
+            if (dx*dx + dy*dy + dz*dz >= h2)
+                continue;
+            b.q[n] = q;
+            if (single) {
+                b.dxf[n] = (float) dx; b.dyf[n] = (float) dy; b.dzf[n] = (float) dz;
+                b.massf[n] = (float) s.mass[q];
+            } else {
+                b.dx[n] = dx; b.dy[n] = dy; b.dz[n] = dz;
+                b.mass[n] = s.mass[q];
+            }
+            ++n;
+        }
+        b.n = n;
+        // Padding contributes nothing to the density sums and its force factors are never read, so the batches
+        // run entirely in full vectors instead of finishing a tail lane by lane
+        b.padded = (n + lanes - 1) / lanes * lanes;
+        for (int i = n; i < b.padded; ++i) {
+            if (single) b.dxf[i] = b.dyf[i] = b.dzf[i] = b.massf[i] = 0;
+            else b.dx[i] = b.dy[i] = b.dz[i] = b.mass[i] = 0;
+        }
+        return b;
+    }
+
+    private double density(int p) {
+        Pairs b = gather(p, false);
+        return kernel.density(b.dx, b.dy, b.dz, b.mass, b.padded) + selfDensity(p)
+                + boundaryDensity(p, store.px[p], store.py[p], store.pz[p]);
+    }
+
+    // Under PCISPH each particle counts itself, as the rest density it corrects toward assumes; the explicit solver
+    // sums over the neighbors alone
+    private double selfDensity(int p) {
+        return pressureSolver == PressureSolver.PCISPH ? store.mass[p] * kernel.poly6(0) : 0;
+    }
+
+    // Each boundary particle within h counts as fluid of p's rest density over its volume, at p's position given
+    private double boundaryDensity(int p, double x, double y, double z) {
+        if (boundary.size() == 0)
+            return 0;
+        BoundaryStore bs = boundary;
+        double h2 = kernelRadius * kernelRadius;
+        double sum = 0;
+        for (int j = boundaryNeighbors.start(p), end = boundaryNeighbors.end(p); j < end; ++j) {
+            int b = boundaryNeighbors.indices[j];
+            double dx = x - bs.px[b], dy = y - bs.py[b], dz = z - bs.pz[b];
+            double d2 = dx*dx + dy*dy + dz*dz;
+            if (d2 < h2)
+                sum += bs.volume[b] * kernel.poly6(d2);
+        }
+        return store.fluid[p].restDensity * sum;
+    }
+
+    // Adds the pressure and viscosity of the boundary on p to the force, and records the sediment p exchanges with
+    // each boundary particle. The boundary is at rest and mirrors p's pressure, but only ever pushes: fluid below
+    // rest density is not drawn into it.
+    private void boundaryForce(int p, double density, double pressure, Vector3d force) {
+        if (boundary.size() == 0)
+            return;
+        ParticleStore s = store;
+        BoundaryStore bs = boundary;
+        double h2 = kernelRadius * kernelRadius;
+        Fluid fp = s.fluid[p];
+        // As a force density, like gravity and the pressure PCISPH adds, rather than an acceleration
+        double pp = 2 * Math.max(0, pressure) / density;
+        // Toward what p could carry at its speed, in kg/s per unit of its kernel the boundary fills
+        boolean eroding = sediment >= 0;
+        double pickup = 0;
+        if (eroding) {
+            double speed = Math.sqrt(s.vx[p] * s.vx[p] + s.vy[p] * s.vy[p] + s.vz[p] * s.vz[p]);
+            pickup = s.mass[p] * erosionRate * (erosionCapacity * speed - s.scalar[sediment][p]);
+        }
+        for (int j = boundaryNeighbors.start(p), end = boundaryNeighbors.end(p); j < end; ++j) {
+            int b = boundaryNeighbors.indices[j];
+            double dx = s.px[p] - bs.px[b], dy = s.py[p] - bs.py[b], dz = s.pz[p] - bs.pz[b];
+            double d2 = dx*dx + dy*dy + dz*dz;
+            if (d2 >= h2) {
+                if (eroding)
+                    exchange[j] = 0;
+                continue;
+            }
+            double r = Math.sqrt(d2);
+            // Pressure
+            double k = kernel.spikyGradient(r) * (fp.restDensity * bs.volume[b] * pp);
+            force.sub(dx * k, dy * k, dz * k);
+
+            // Viscosity
+            k = bs.volume[b] * fp.viscosity * kernel.viscosityLaplacian(r);
+            force.sub(s.vx[p] * k, s.vy[p] * k, s.vz[p] * k);
+
+            // Sediment, taken from or given to each boundary particle by its share of the kernel
+            if (eroding)
+                exchange[j] = pickup * bs.volume[b] * kernel.poly6(d2);
+        }
+    }
+
+    // Both kernel sums over the same neighbor lists, so only the rounding of the pairs and the sums differs
+    private void checkPrecision() {
+        ParticleStore s = store;
+        lastPrecisionError = IntStream.range(0, s.size).parallel().mapToDouble(p -> {
+            Pairs b = gather(p, false);
+            double exact = kernel.density(b.dx, b.dy, b.dz, b.mass, b.padded);
+            b = gather(p, true);
+            double single = kernel.density(b.dxf, b.dyf, b.dzf, b.massf, b.padded);
+            double rest = selfDensity(p) + boundaryDensity(p, s.px[p], s.py[p], s.pz[p]);
+            exact += rest;
+            return exact == 0 ? 0 : Math.abs(single + rest - exact) / exact;
+        }).max().orElse(0);
+        maxPrecisionError = Math.max(maxPrecisionError, lastPrecisionError);
+    }
+
+    // Compute the densities and resultant pressures at each particle
+    void computeDensities() {
+        ParticleStore s = store;
+        IntStream.range(0, s.size).parallel().forEach(p -> {
+            double density = density(p);
+            s.density[p] = density;
+            s.pressure[p] = pressure(s.fluid[p], density);
+        });
+    }
+
+    // Reads neighbor densities and pressures from the given arrays, which need only be filled in for p and its neighbors
+    private void force(int p, double[] density, double[] pressure) {
+        ParticleStore s = store;
+        Pairs b = gather(p, false);
+        kernel.forceFactors(b.dx, b.dy, b.dz, b.padded, b.spiky, b.viscosity, b.gradient, b.laplacian);
+        Vector3d force = b.force, normal = b.normal.zero();
+        gravity.mul(density[p], force);
+        Fluid fp = s.fluid[p];
+        double pp = pressure[p] / (density[p] * density[p]);
+        double tension = 0;
+        double[][] scalar = s.scalar, rate = s.scalarRate;
+        int channels = scalar.length;
+        for (int c = 0; c < channels; ++c)
+            rate[c][p] = 0;
+        for (int i = 0; i < b.n; ++i) {
+            int q = b.q[i];
+            Fluid fq = s.fluid[q];
+            double dx = b.dx[i], dy = b.dy[i], dz = b.dz[i];
+            // Pressure
+            double k = b.spiky[i] * (s.mass[q] * (pp + pressure[q] / (density[q] * density[q])));
+            force.sub(dx * k, dy * k, dz * k);
+
+            // Viscosity
+            k = (s.mass[q] / density[q]) * (fp.viscosity + fq.viscosity) / 2 * b.viscosity[i];
+            force.add((s.vx[q] - s.vx[p]) * k, (s.vy[q] - s.vy[p]) * k, (s.vz[q] - s.vz[p]) * k);
+
+            // Diffusion, through the same laplacian as viscosity but over the pair's mean density, so that what one
+            // particle gains its neighbor loses
+            if (channels > 0) {
+                k = s.mass[q] * 2 / (density[p] + density[q]) * b.viscosity[i];
+                for (int c = 0; c < channels; ++c)
+                    rate[c][p] += diffusivity[c] * k * (scalar[c][q] - scalar[c][p]);
+            }
+
+            // Surface normal
+            tension -= (fp.cohesion + fq.cohesion) / 2 * b.laplacian[i];
+            k = b.gradient[i] * (s.mass[q] / density[q]);
+            normal.add(dx * k, dy * k, dz * k);
+        }
+        boundaryForce(p, density[p], pressure[p], force);
+        applyTension(p, force, normal, tension);
+    }
+
+    // Compute the forces acting on each particle
+    void computeForces() {
+        ParticleStore s = store;
+        IntStream.range(0, s.size).parallel().forEach(p -> force(p, s.density, s.pressure));
+    }
+
+    private void applyTension(int p, Vector3d force, Vector3d normal, double tension) {
+        ParticleStore s = store;
+        double n = normal.length();
+        if (n < MathUtils.EPSILON)
+            normal.set(0);
+        else force.add(normal.x * (tension / n), normal.y * (tension / n), normal.z * (tension / n));
+        s.fx[p] = force.x; s.fy[p] = force.y; s.fz[p] = force.z;
+        s.nx[p] = normal.x; s.ny[p] = normal.y; s.nz[p] = normal.z;
+    }
+
+    // Each task owns a contiguous range of rows and accumulates both sides of its half-list pairs privately
+    private static class Partials {
+        double[] density = new double[0];
+        double[] fx, fy, fz, nx, ny, nz, tension;
+        // Rates of change of each channel
+        double[][] scalar = new double[0][];
+        int from, to;
+
+        void reserve(int n, int channels) {
+            if (density.length < n) {
+                density = new double[n];
+                fx = new double[n]; fy = new double[n]; fz = new double[n];
+                nx = new double[n]; ny = new double[n]; nz = new double[n];
+                tension = new double[n];
+                scalar = new double[0][];
+            }
+            if (scalar.length != channels) {
+                scalar = new double[channels][];
+                Arrays.setAll(scalar, c -> new double[density.length]);
+            }
+        }
+    }
+
+    private Partials[] partials() {
+        int n = store.size;
+        int tasks = partialTasks > 0 ? partialTasks : Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), n / 1024));
+        if (partials.length != tasks) {
+            partials = new Partials[tasks];
+            Arrays.setAll(partials, t -> new Partials());
+        }
+        for (int t = 0; t < tasks; ++t) {
+            partials[t].from = (int) ((long) n * t / tasks);
+            partials[t].to = (int) ((long) n * (t + 1) / tasks);
+            partials[t].reserve(n, store.channels());
+        }
+        return partials;
+    }
+
+    // Same as computeDensities, but over half lists with each pair evaluated once
+    void computeDensitiesSymmetric() {
+        ParticleStore s = store;
+        double h2 = kernelRadius * kernelRadius;
+        Partials[] tasks = partials();
+        Arrays.stream(tasks).parallel().forEach(t -> {
+            double[] density = t.density;
+            Arrays.fill(density, t.from, s.size, 0);
+            for (int p = t.from; p < t.to; ++p) {
+                for (int j = neighbors.start(p), end = neighbors.end(p); j < end; ++j) {
+                    int q = neighbors.indices[j];
+                    double dx = s.px[p] - s.px[q], dy = s.py[p] - s.py[q], dz = s.pz[p] - s.pz[q];
+                    double d2 = dx*dx + dy*dy + dz*dz;
+                    if (d2 >= h2)
+                        continue;
+                    double w = kernel.poly6(d2);
+                    density[p] += s.mass[q] * w;
+                    density[q] += s.mass[p] * w;
+                }
+            }
+        });
+        IntStream.range(0, s.size).parallel().forEach(p -> {
+            double density = selfDensity(p);
+            for (Partials t : tasks) {
+                if (t.from > p)
+                    break;
+                density += t.density[p];
+            }
+            density += boundaryDensity(p, s.px[p], s.py[p], s.pz[p]);
+            s.density[p] = density;
+            s.pressure[p] = pressure(s.fluid[p], density);
+        });
+    }
+
+    // Same as computeForces, but over half lists with equal and opposite contributions applied to both particles
+    void computeForcesSymmetric() {
+        ParticleStore s = store;
+        double h2 = kernelRadius * kernelRadius;
+        Partials[] tasks = partials();
+        Arrays.stream(tasks).parallel().forEach(t -> {
+            Arrays.fill(t.fx, t.from, s.size, 0); Arrays.fill(t.fy, t.from, s.size, 0); Arrays.fill(t.fz, t.from, s.size, 0);
+            Arrays.fill(t.nx, t.from, s.size, 0); Arrays.fill(t.ny, t.from, s.size, 0); Arrays.fill(t.nz, t.from, s.size, 0);
+            Arrays.fill(t.tension, t.from, s.size, 0);
+            for (double[] rate : t.scalar)
+                Arrays.fill(rate, t.from, s.size, 0);
+            for (int p = t.from; p < t.to; ++p) {
+                Fluid fp = s.fluid[p];
+                double pp = s.pressure[p] / (s.density[p] * s.density[p]);
+                for (int j = neighbors.start(p), end = neighbors.end(p); j < end; ++j) {
+                    int q = neighbors.indices[j];
+                    double dx = s.px[p] - s.px[q], dy = s.py[p] - s.py[q], dz = s.pz[p] - s.pz[q];
+                    double d2 = dx*dx + dy*dy + dz*dz;
+                    if (d2 >= h2)
+                        continue;
+                    double r = Math.sqrt(d2);
+                    Fluid fq = s.fluid[q];
+                    double vp = s.mass[p] / s.density[p];
+                    double vq = s.mass[q] / s.density[q];
+
+                    // Pressure
+                    double g = kernel.spikyGradient(r);
+                    double gx = dx * g, gy = dy * g, gz = dz * g;
+                    double k = pp + s.pressure[q] / (s.density[q] * s.density[q]);
+                    t.fx[p] -= gx * (s.mass[q] * k); t.fy[p] -= gy * (s.mass[q] * k); t.fz[p] -= gz * (s.mass[q] * k);
+                    t.fx[q] += gx * (s.mass[p] * k); t.fy[q] += gy * (s.mass[p] * k); t.fz[q] += gz * (s.mass[p] * k);
+
+                    // Viscosity
+                    double laplacian = kernel.viscosityLaplacian(r);
+                    k = (fp.viscosity + fq.viscosity) / 2 * laplacian;
+                    double dvx = s.vx[q] - s.vx[p], dvy = s.vy[q] - s.vy[p], dvz = s.vz[q] - s.vz[p];
+                    t.fx[p] += dvx * (vq * k); t.fy[p] += dvy * (vq * k); t.fz[p] += dvz * (vq * k);
+                    t.fx[q] -= dvx * (vp * k); t.fy[q] -= dvy * (vp * k); t.fz[q] -= dvz * (vp * k);
+
+                    // Diffusion
+                    for (int c = 0; c < t.scalar.length; ++c) {
+                        k = diffusivity[c] * 2 / (s.density[p] + s.density[q]) * laplacian * (s.scalar[c][q] - s.scalar[c][p]);
+                        t.scalar[c][p] += s.mass[q] * k;
+                        t.scalar[c][q] -= s.mass[p] * k;
+                    }
+
+                    // Surface normal
+                    k = (fp.cohesion + fq.cohesion) / 2 * kernel.poly6Laplacian(d2);
+                    t.tension[p] -= k;
+                    t.tension[q] -= k;
+                    g = kernel.poly6Gradient(d2);
+                    gx = dx * g; gy = dy * g; gz = dz * g;
+                    t.nx[p] += gx * vq; t.ny[p] += gy * vq; t.nz[p] += gz * vq;
+                    t.nx[q] -= gx * vp; t.ny[q] -= gy * vp; t.nz[q] -= gz * vp;
+                }
+            }
+        });
+        IntStream.range(0, s.size).parallel().forEach(p -> {
+            Pairs b = pairs.get();
+            Vector3d force = b.force, normal = b.normal.zero();
+            gravity.mul(s.density[p], force);
             double tension = 0;
-            for (Particle q : p.neighbors) {
-                // Pressure
-                p.force.sub(Kernel.SPIKY.gradient(p.pos.sub(q.pos, scratch), kernelRadius, scratch).mul(q.mass * (p.pressure / (p.density * p.density) + q.pressure / (q.density * q.density))));
-                // p.force.sub(kernelPressureGradient(p.pos.sub(q.pos, scratch), kernelRadius, scratch).mul(q.mass * (p.pressure + q.pressure) / (2 * q.density)));
-
-                // Viscosity
-                double k = Kernel.VISCOSITY.laplacian(p.pos.sub(q.pos, scratch), kernelRadius);
-                p.force.add(q.vel.sub(p.vel, scratch).mul((q.mass / q.density) * (p.fluid.viscosity + q.fluid.viscosity) / 2 * k));
-
-                // Surface normal
-                tension -= (p.fluid.cohesion + q.fluid.cohesion) / 2 * Kernel.POLY_6.laplacian(p.pos.sub(q.pos, scratch), kernelRadius);
-                p.normal.add(Kernel.POLY_6.gradient(scratch, kernelRadius, scratch).mul(q.mass / q.density));
-            }
-            double n = p.normal.length();
-            if (n < Utils.EPSILON)
-                p.normal.set(0);
-            else p.force.add(p.normal.mul(tension / n, scratch));
-        });
-
-        // Compute new accelerations and velocities
-        particles().parallel().forEach(p -> {
-            Vector3d scratch = new Vector3d();
-            // Store old acceleration
-            scratch.set(p.acc);
-            // Compute new acceleration
-            p.force.div(p.density, p.acc);
-            // Compute average acceleration over interval
-            scratch.add(p.acc).mul(dt / 2);
-            // Update velocity using averaged accelerations
-            p.vel.add(scratch);
-            p.pack();
+            for (int c = 0; c < s.channels(); ++c)
+                s.scalarRate[c][p] = 0;
+            for (Partials t : tasks) {
+                if (t.from > p)
+                    break;
+                force.add(t.fx[p], t.fy[p], t.fz[p]);
+                normal.add(t.nx[p], t.ny[p], t.nz[p]);
+                tension += t.tension[p];
+                for (int c = 0; c < t.scalar.length; ++c)
+                    s.scalarRate[c][p] += t.scalar[c][p];
+            }
+            boundaryForce(p, s.density[p], s.pressure[p], force);
+            applyTension(p, force, normal, tension);
+        });
+    }
+
+    // Writes the new velocity into the given arrays, which may be the store's own
+    private void accelerate(int p, double dt, double[] vx, double[] vy, double[] vz) {
+        ParticleStore s = store;
+        // Store old acceleration
+        double ox = s.ax[p], oy = s.ay[p], oz = s.az[p];
+        // Compute new acceleration
+        double inv = 1 / s.density[p];
+        s.ax[p] = s.fx[p] * inv;
+        s.ay[p] = s.fy[p] * inv;
+        s.az[p] = s.fz[p] * inv;
+        // Update velocity using averaged accelerations
+        vx[p] = s.vx[p] + (ox + s.ax[p]) * (dt / 2);
+        vy[p] = s.vy[p] + (oy + s.ay[p]) * (dt / 2);
+        vz[p] = s.vz[p] + (oz + s.az[p]) * (dt / 2);
+        pack(p);
+    }
+
+    // Compute new accelerations and velocities, and the limits on the next step
+    void computeAccelerations(double dt) {
+        ParticleStore s = store;
+        int n = s.size;
+        limits.reset();
+        IntStream.range(0, (n + FLAG_BLOCK - 1) / FLAG_BLOCK).parallel().forEach(b -> {
+            int from = b * FLAG_BLOCK, to = Math.min(n, from + FLAG_BLOCK);
+            for (int p = from; p < to; ++p)
+                accelerate(p, dt, s.vx, s.vy, s.vz);
+            limit(from, to, s.vx, s.vy, s.vz);
+        });
+        limitsValid = true;
+    }
+
+    private void reserveSolver(int n) {
+        if (baseX.length < n) {
+            baseX = new double[n]; baseY = new double[n]; baseZ = new double[n];
+            predX = new double[n]; predY = new double[n]; predZ = new double[n];
+            pressureX = new double[n]; pressureY = new double[n]; pressureZ = new double[n];
+            pressureScale = new double[n];
+        }
+    }
+
+    // Sum of |grad W|^2 over a filled cubic lattice of the given spacing around a particle: the prototype
+    // neighborhood PCISPH derives its pressure corrections from, where the sum of the gradients themselves vanishes
+    private double latticeSum(double spacing) {
+        return latticeSums.computeIfAbsent(spacing, d -> {
+            double h2 = kernelRadius * kernelRadius;
+            int k = (int) Math.ceil(kernelRadius / d);
+            double sum = 0;
+            for (int i = -k; i <= k; ++i) {
+                for (int j = -k; j <= k; ++j) {
+                    for (int l = -k; l <= k; ++l) {
+                        double d2 = (i * i + j * j + l * l) * d * d;
+                        if (d2 == 0 || d2 >= h2)
+                            continue;
+                        double g = kernel.spikyGradient(Math.sqrt(d2));
+                        sum += g * g * d2;
+                    }
+                }
+            }
+            return sum;
+        });
+    }
+
+    // Solves for the pressures that bring the densities predicted for the next step back to rest. The next integrate
+    // moves each particle by dt (v + dt/2 a) + dt^2 a', with a' the acceleration found now, so predicting with the
+    // same dt puts particles exactly where the next step will, as long as the step size does not change.
+    // Expects the non-pressure forces in the store, and adds the pressure forces to them.
+    void solvePressure(double dt) {
+        ParticleStore s = store;
+        int n = s.size;
+        reserveSolver(s.capacity());
+        double dt2 = dt * dt;
+        double h2 = kernelRadius * kernelRadius;
+
+        // rho0^2 / (2 m^2 sum |grad W|^2), over dt^2 for the correction per unit of density error
+        Fluid lastFluid = null;
+        double lastMass = Double.NaN, scale = 0;
+        for (int p = 0; p < n; ++p) {
+            Fluid f = s.fluid[p];
+            double m = s.mass[p];
+            if (f != lastFluid || m != lastMass) {
+                double sum = latticeSum(Math.cbrt(m / f.restDensity));
+                scale = sum == 0 ? 0 : f.restDensity * f.restDensity / (2 * m * m * sum);
+                lastFluid = f;
+                lastMass = m;
+            }
+            pressureScale[p] = scale / dt2;
+        }
+        IntStream.range(0, n).parallel().forEach(p -> {
+            double inv = 1 / s.density[p];
+            baseX[p] = s.px[p] + dt * (s.vx[p] + dt / 2 * s.ax[p]) + dt2 * s.fx[p] * inv;
+            baseY[p] = s.py[p] + dt * (s.vy[p] + dt / 2 * s.ay[p]) + dt2 * s.fy[p] * inv;
+            baseZ[p] = s.pz[p] + dt * (s.vz[p] + dt / 2 * s.az[p]) + dt2 * s.fz[p] * inv;
+            pressureX[p] = pressureY[p] = pressureZ[p] = 0;
+        });
+
+        int it = 0;
+        DoubleSummaryStatistics error;
+        do {
+            IntStream.range(0, n).parallel().forEach(p -> {
+                predX[p] = baseX[p] + dt2 * pressureX[p];
+                predY[p] = baseY[p] + dt2 * pressureY[p];
+                predZ[p] = baseZ[p] + dt2 * pressureZ[p];
+            });
+            // Only compression is corrected; a free surface is allowed to be less dense than rest
+            error = IntStream.range(0, n).parallel().mapToDouble(p -> {
+                double x = predX[p], y = predY[p], z = predZ[p];
+                double density = selfDensity(p);
+                for (int j = neighbors.start(p), end = neighbors.end(p); j < end; ++j) {
+                    int q = neighbors.indices[j];
+                    double dx = x - predX[q], dy = y - predY[q], dz = z - predZ[q];
+                    double d2 = dx*dx + dy*dy + dz*dz;
+                    if (d2 < h2)
+                        density += s.mass[q] * kernel.poly6(d2);
+                }
+                density += boundaryDensity(p, x, y, z);
+                double rest = s.fluid[p].restDensity;
+                s.pressure[p] = Math.max(0, s.pressure[p] + pressureScale[p] * (density - rest));
+                return Math.max(0, density - rest) / rest;
+            }).summaryStatistics();
+            IntStream.range(0, n).parallel().forEach(p -> {
+                double pp = s.pressure[p] / (s.density[p] * s.density[p]);
+                double ax = 0, ay = 0, az = 0;
+                for (int j = neighbors.start(p), end = neighbors.end(p); j < end; ++j) {
+                    int q = neighbors.indices[j];
+                    double dx = s.px[p] - s.px[q], dy = s.py[p] - s.py[q], dz = s.pz[p] - s.pz[q];
+                    double d2 = dx*dx + dy*dy + dz*dz;
+                    if (d2 >= h2)
+                        continue;
+                    double k = kernel.spikyGradient(Math.sqrt(d2)) * (s.mass[q] * (pp + s.pressure[q] / (s.density[q] * s.density[q])));
+                    ax -= dx * k;
+                    ay -= dy * k;
+                    az -= dz * k;
+                }
+                // The boundary mirrors p's pressure, as in boundaryForce
+                if (boundary.size() > 0) {
+                    double rest = s.fluid[p].restDensity;
+                    for (int j = boundaryNeighbors.start(p), end = boundaryNeighbors.end(p); j < end; ++j) {
+                        int q = boundaryNeighbors.indices[j];
+                        double dx = s.px[p] - boundary.px[q], dy = s.py[p] - boundary.py[q], dz = s.pz[p] - boundary.pz[q];
+                        double d2 = dx*dx + dy*dy + dz*dz;
+                        if (d2 >= h2)
+                            continue;
+                        double k = kernel.spikyGradient(Math.sqrt(d2)) * (rest * boundary.volume[q] * 2 * pp);
+                        ax -= dx * k;
+                        ay -= dy * k;
+                        az -= dz * k;
+                    }
+                }
+                pressureX[p] = ax;
+                pressureY[p] = ay;
+                pressureZ[p] = az;
+            });
+            ++it;
+        } while (it < maxIterations && (it < MIN_ITERATIONS || error.getAverage() > solverTolerance));
+
+        // Back to force densities, which accelerate divides by density again
+        IntStream.range(0, n).parallel().forEach(p -> {
+            s.fx[p] += s.density[p] * pressureX[p];
+            s.fy[p] += s.density[p] * pressureY[p];
+            s.fz[p] += s.density[p] * pressureZ[p];
+        });
+        lastIterations = it;
+        iterations += it;
+        lastDensityError = n == 0 ? 0 : error.getAverage();
+        lastMaxDensityError = n == 0 ? 0 : error.getMax();
+    }
+
+    // Densities of a block and its halo, private to the thread working on the block
+    private static class BlockScratch {
+        double[] density = new double[0];
+        double[] pressure;
+        boolean[] filled;
+        int[] halo;
+
+        void reserve(int n) {
+            if (density.length < n) {
+                density = new double[n];
+                pressure = new double[n];
+                filled = new boolean[n];
+                halo = new int[n];
+            }
+        }
+    }
+
+    // Runs density, force and acceleration block by block over the sorted store while each block is still in cache
+    void computeFused(double dt) {
+        ParticleStore s = store;
+        int n = s.size;
+        if (nextVx.length < s.capacity()) {
+            nextVx = new double[s.capacity()];
+            nextVy = new double[s.capacity()];
+            nextVz = new double[s.capacity()];
+        }
+        double h2 = kernelRadius * kernelRadius;
+        limits.reset();
+        IntStream.range(0, (n + blockSize - 1) / blockSize).parallel().forEach(b -> {
+            BlockScratch scratch = blockScratch.get();
+            scratch.reserve(s.capacity());
+            int from = b * blockSize, to = Math.min(n, from + blockSize);
+
+            // Neighboring blocks compute their own copies of shared halo densities, so no block waits on another
+            int halo = 0;
+            for (int p = from; p < to; ++p) {
+                scratch.filled[p] = true;
+                scratch.density[p] = s.density[p] = density(p);
+                scratch.pressure[p] = s.pressure[p] = pressure(s.fluid[p], s.density[p]);
+            }
+            for (int p = from; p < to; ++p) {
+                for (int j = neighbors.start(p), end = neighbors.end(p); j < end; ++j) {
+                    int q = neighbors.indices[j];
+                    if (scratch.filled[q])
+                        continue;
+                    double dx = s.px[p] - s.px[q], dy = s.py[p] - s.py[q], dz = s.pz[p] - s.pz[q];
+                    if (dx*dx + dy*dy + dz*dz >= h2)
+                        continue;
+                    scratch.filled[q] = true;
+                    scratch.halo[halo++] = q;
+                    scratch.density[q] = density(q);
+                    scratch.pressure[q] = pressure(s.fluid[q], scratch.density[q]);
+                }
+            }
+
+            for (int p = from; p < to; ++p)
+                force(p, scratch.density, scratch.pressure);
+
+            // Other blocks still read the old velocities of this block's particles, so write the new ones aside
+            for (int p = from; p < to; ++p)
+                accelerate(p, dt, nextVx, nextVy, nextVz);
+            limit(from, to, nextVx, nextVy, nextVz);
+
+            for (int p = from; p < to; ++p)
+                scratch.filled[p] = false;
+            for (int i = 0; i < halo; ++i)
+                scratch.filled[scratch.halo[i]] = false;
+        });
+
+        double[] v;
+        v = s.vx; s.vx = nextVx; nextVx = v;
+        v = s.vy; s.vy = nextVy; nextVy = v;
+        v = s.vz; s.vz = nextVz; nextVz = v;
+        limitsValid = true;
+    }
+
+    private double maxDisplacementSquared() {
+        ParticleStore s = store;
+        return IntStream.range(0, s.size).parallel().mapToDouble(r -> {
+            double dx = s.px[r] - refX[r], dy = s.py[r] - refY[r], dz = s.pz[r] - refZ[r];
+            return dx*dx + dy*dy + dz*dz;
+        }).max().orElse(0);
+    }
+
+    NeighborList neighbors() {
+        return neighbors;
+    }
+
+    // Reorders the store by cell, leaving each row's cell in cellOf for findNeighbors. Keys are computed once per
+    // row, and since rows only drift between steps the store is usually sorted already or close to it.
+    void sort() {
+        ParticleStore s = store;
+        int n = s.size;
+        if (cellOf.length < n)
+            cellOf = new long[s.capacity()];
+        if (order.length < n) {
+            order = new int[s.capacity()];
+            keyScratch = new long[s.capacity()];
+            orderScratch = new int[s.capacity()];
+        }
+        long[] keys = cellOf;
+        IntStream.range(0, n).parallel().forEach(r -> keys[r] = cell(r));
+        keysSorted = true;
+
+        // Radix passes only need the bits that differ somewhere, which around a far from zero origin are few
+        int descents = 0;
+        long differ = 0;
+        for (int r = 1; r < n; ++r) {
+            if (keys[r] < keys[r - 1])
+                ++descents;
+            differ |= keys[r] ^ keys[0];
+        }
+        if (descents == 0)
+            return;
+        for (int r = 0; r < n; ++r)
+            order[r] = r;
+        // Insertion is linear in how far rows moved, so give up on it once that is clearly more than a few cells
+        if (descents > n / 16 || !insertionSort(keys, order, n, 8L * n)) {
+            if (cellOrder == CellOrder.ROW_MAJOR && cellStart.length <= 4L * n) countingSort(keys, order, n, cellStart.length);
+            else radixSort(keys, order, n, 64 - Long.numberOfLeadingZeros(differ));
+        }
+        s.permute(order);
+    }
+
+    // Stable; false if it stopped after the given number of moves, leaving a permutation still to be finished
+    private static boolean insertionSort(long[] keys, int[] order, int n, long budget) {
+        for (int i = 1; i < n; ++i) {
+            long k = keys[i];
+            int o = order[i];
+            int j = i - 1;
+            while (j >= 0 && keys[j] > k) {
+                keys[j + 1] = keys[j];
+                order[j + 1] = order[j];
+                --j;
+            }
+            budget -= i - 1 - j;
+            keys[j + 1] = k;
+            order[j + 1] = o;
+            if (budget < 0)
+                return false;
+        }
+        return true;
+    }
+
+    // Stable sort of keys in [0, range) along with order, through the cell table arrays that findNeighbors rebuilds
+    private void countingSort(long[] keys, int[] order, int n, int range) {
+        int[] count = cellCount, next = cellStart;
+        Arrays.fill(count, 0, range, 0);
+        for (int i = 0; i < n; ++i)
+            ++count[(int) keys[i]];
+        for (int c = 0, start = 0; c < range; ++c) {
+            next[c] = start;
+            start += count[c];
+        }
+        long[] k = keyScratch;
+        int[] o = orderScratch;
+        for (int i = 0; i < n; ++i) {
+            int dst = next[(int) keys[i]]++;
+            k[dst] = keys[i];
+            o[dst] = order[i];
+        }
+        System.arraycopy(k, 0, keys, 0, n);
+        System.arraycopy(o, 0, order, 0, n);
+    }
+
+    // Stable least significant digit first radix sort, for when there are many more cells than particles
+    private void radixSort(long[] keys, int[] order, int n, int bits) {
+        final int digit = 11;
+        int[] count = new int[1 << digit];
+        long[] k = keys, k2 = keyScratch;
+        int[] o = order, o2 = orderScratch;
+        for (int shift = 0; shift < bits; shift += digit) {
+            Arrays.fill(count, 0);
+            for (int i = 0; i < n; ++i)
+                ++count[(int) (k[i] >>> shift) & (count.length - 1)];
+            for (int c = 0, start = 0; c < count.length; ++c) {
+                int m = count[c];
+                count[c] = start;
+                start += m;
+            }
+            for (int i = 0; i < n; ++i) {
+                int dst = count[(int) (k[i] >>> shift) & (count.length - 1)]++;
+                k2[dst] = k[i];
+                o2[dst] = o[i];
+            }
+            long[] tk = k; k = k2; k2 = tk;
+            int[] to = o; o = o2; o2 = to;
+        }
+        if (k != keys) {
+            System.arraycopy(k, 0, keys, 0, n);
+            System.arraycopy(o, 0, order, 0, n);
+        }
+    }
+
+    // Assumes the store is sorted by cell
+    void findNeighbors() {
+        ParticleStore s = store;
+        int n = s.size;
+        if (!keysSorted) {
+            if (cellOf.length < n)
+                cellOf = new long[s.capacity()];
+            IntStream.range(0, n).parallel().forEach(r -> cellOf[r] = cell(r));
+        }
+        keysSorted = false;
+        if (cellOrder == CellOrder.MORTON) {
+            findNeighborsHashed();
+            return;
+        }
+
+        // Counting sort of rows into cells; each cell is a contiguous run of rows
+        Arrays.fill(cellCount, 0);
+        for (int r = 0; r < n; ++r)
+            ++cellCount[(int) cellOf[r]];
+        for (int c = 0, start = 0; c < cellStart.length; ++c) {
+            cellStart[c] = start;
+            start += cellCount[c];
+        }
+
+        int gx = grid.x(), gy = grid.y(), gz = grid.z();
+        double h2 = cellSize * cellSize;
+        boolean half = half();
+        neighbors.build(n, (p, out) -> {
+            int c = (int) cellOf[p];
+            int ix = c % gx, iy = (c / gx) % gy, iz = c / (gx * gy);
+            int x0 = Math.max(ix - 1, 0), x1 = Math.min(ix + 1, gx - 1);
+            double x = s.px[p], y = s.py[p], z = s.pz[p];
+            for (int k = Math.max(iz - 1, 0); k <= Math.min(iz + 1, gz - 1); ++k) {
+                for (int j = Math.max(iy - 1, 0); j <= Math.min(iy + 1, gy - 1); ++j) {
+                    // Cells adjacent in x are adjacent in the sorted store, so scan them as one run
+                    int row = (j + k * gy) * gx;
+                    int last = row + x1;
+                    int q = cellStart[row + x0], end = cellStart[last] + cellCount[last];
+                    // Half lists only hold the neighbors after p, which appear once in the list of the other
+                    if (half)
+                        q = Math.max(q, p + 1);
+                    for (; q < end; ++q) {
+                        if (q == p)
+                            continue;
+                        double dx = s.px[q] - x, dy = s.py[q] - y, dz = s.pz[q] - z;
+                        if (dx*dx + dy*dy + dz*dz < h2)
+                            out.add(q);
+                    }
+                }
+            }
+        });
+    }
+
+    // Each of the 27 surrounding cells is looked up in the hash of occupied cells, and scanned if present
+    private void findNeighborsHashed() {
+        ParticleStore s = store;
+        int n = s.size;
+        cellHash.build(cellOf, n);
+
+        int gx = cells(grid.x()), gy = cells(grid.y()), gz = cells(grid.z());
+        double h2 = cellSize * cellSize;
+        boolean half = half();
+        neighbors.build(n, (p, out) -> {
+            int ix = cellX(p), iy = cellY(p), iz = cellZ(p);
+            double x = s.px[p], y = s.py[p], z = s.pz[p];
+            for (int k = Math.max(iz - 1, 0); k <= Math.min(iz + 1, gz - 1); ++k) {
+                for (int j = Math.max(iy - 1, 0); j <= Math.min(iy + 1, gy - 1); ++j) {
+                    for (int i = Math.max(ix - 1, 0); i <= Math.min(ix + 1, gx - 1); ++i) {
+                        int c = cellHash.find(cellKey(i, j, k));
+                        if (c < 0)
+                            continue;
+                        int q = cellHash.start(c), end = cellHash.end(c);
+                        if (half)
+                            q = Math.max(q, p + 1);
+                        for (; q < end; ++q) {
+                            if (q == p)
+                                continue;
+                            double dx = s.px[q] - x, dy = s.py[q] - y, dz = s.pz[q] - z;
+                            if (dx*dx + dy*dy + dz*dz < h2)
+                                out.add(q);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    // Boundary particles within h + skin of each fluid row at the given positions; the boundary itself is only
+    // sorted and indexed again when particles have been added to it
+    private void findBoundaryNeighbors(double[] px, double[] py, double[] pz) {
+        if (!boundary.isBuilt())
+            boundary.build(kernel);
+        if (boundary.size() == 0)
+            return;
+        BoundaryStore bs = boundary;
+        double h2 = cellSize * cellSize;
+        boundaryNeighbors.build(store.size, (p, out) -> {
+            double x = px[p], y = py[p], z = pz[p];
+            int from = out.size;
+            bs.near(x, y, z, cellSize, out);
+            // The cells overshoot the radius, so keep only the ones within it
+            int kept = from;
+            for (int i = from; i < out.size; ++i) {
+                int b = out.data[i];
+                double dx = bs.px[b] - x, dy = bs.py[b] - y, dz = bs.pz[b] - z;
+                if (dx*dx + dy*dy + dz*dz < h2)
+                    out.data[kept++] = b;
+            }
+            out.size = kept;
         });
+        if (exchange.length < boundaryNeighbors.indices.length)
+            exchange = new double[boundaryNeighbors.indices.length];
     }
 
     public void close() {
@@ -0,0 +1,172 @@
+package agfx.fluid;
+
+import agfx.TripleBuffer;
+import agfx.gl.VertexArray;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Steps an SPH on a thread of its own and publishes the packed vertices after every step, so that a renderer on
+// another thread always draws the latest complete frame without either one waiting on the other. Once started, the
+// SPH belongs to this thread until it is closed.
+public class SimulationThread implements AutoCloseable {
+
+    public static class Frame {
+        public final VertexArray vertices;
+        // Blocks of vertices holding particles, and the step and simulated time they were packed at
+        public int count;
+        public long step;
+        public double time;
+        // Blocks of the pool that changed since this frame was last filled, all of them to begin with
+        private int staleFrom = 0, staleTo = Integer.MAX_VALUE;
+
+        Frame(int blocks, int blockSize) {
+            vertices = new VertexArray(blocks, blockSize);
+        }
+    }
+
+    private final SPH sph;
+    private final double dt;
+    private final TripleBuffer<Frame> frames;
+    private final List<Frame> all;
+    private final Thread thread;
+
+    private volatile boolean running;
+    private volatile boolean paused;
+    private volatile boolean adaptive;
+    private volatile int maxStepsPerFrame;
+    // Steps left until the renderer takes another frame, when maxStepsPerFrame limits them
+    private final AtomicInteger budget = new AtomicInteger();
+    private final AtomicLong steps = new AtomicLong();
+    private volatile Throwable failure;
+
+    public SimulationThread(SPH sph, double dt) {
+        this.sph = sph;
+        this.dt = dt;
+        frames = new TripleBuffer<>(() -> new Frame(sph.pool.blocks(), sph.pool.blockSize()));
+        all = frames.all();
+        thread = new Thread(this::run, "simulation");
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        // The renderer has the current state to draw before the first step completes
+        publish();
+        running = true;
+        thread.start();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        LockSupport.unpark(thread);
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    // Steps by SPH.updateAdaptive, with the given dt as the largest step
+    public void setAdaptive(boolean b) {
+        adaptive = b;
+    }
+
+    public int getMaxStepsPerFrame() {
+        return maxStepsPerFrame;
+    }
+
+    // At most this many steps between two frames taken by the renderer, so a fast simulation does not race ahead of
+    // what is shown; 0 for no limit
+    public void setMaxStepsPerFrame(int steps) {
+        if (steps < 0) throw new IllegalArgumentException("Negative steps per frame: " + steps);
+        maxStepsPerFrame = steps;
+        budget.set(steps);
+        LockSupport.unpark(thread);
+    }
+
+    // Steps completed since start
+    public long steps() {
+        return steps.get();
+    }
+
+    // The latest published frame, or the one returned last time if nothing newer came in. Meant to be called once per
+    // rendered frame from a single thread, and never blocks.
+    public Frame latest() {
+        if (failure != null) throw new IllegalStateException("Simulation failed", failure);
+        if (maxStepsPerFrame > 0) {
+            budget.set(maxStepsPerFrame);
+            LockSupport.unpark(thread);
+        }
+        return frames.front();
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                if (paused || (maxStepsPerFrame > 0 && budget.get() <= 0)) {
+                    LockSupport.parkNanos(1_000_000);
+                    continue;
+                }
+                if (adaptive)
+                    sph.updateAdaptive(dt);
+                else sph.update(dt);
+                steps.incrementAndGet();
+                budget.decrementAndGet();
+                publish();
+            }
+        } catch (Throwable t) {
+            failure = t;
+        }
+    }
+
+    // Each change to the pool has to reach all three frames, so every frame keeps its own range of them to copy the
+    // next time it is filled, and the renderer only has to send those blocks
+    private void publish() {
+        int[] changed = sph.pool.takeDirty();
+        if (changed[0] < changed[1]) {
+            for (Frame f : all) {
+                f.staleFrom = Math.min(f.staleFrom, changed[0]);
+                f.staleTo = Math.max(f.staleTo, changed[1]);
+            }
+        }
+        Frame frame = frames.back();
+        int count = sph.pool.used();
+        if (frame.vertices.blocks() < sph.pool.blocks())
+            frame.vertices.resize(sph.pool.blocks());
+        // SPH keeps the pool compact, so the live particles are exactly its first blocks
+        int to = Math.min(frame.staleTo, count);
+        if (frame.staleFrom < to)
+            frame.vertices.copy(sph.pool, frame.staleFrom, to);
+        // Blocks past the live ones are left for when they are next in use
+        if (frame.staleTo > count) {
+            frame.staleFrom = Math.max(frame.staleFrom, count);
+        } else {
+            frame.staleFrom = Integer.MAX_VALUE;
+            frame.staleTo = 0;
+        }
+        frame.count = count;
+        frame.step = sph.steps();
+        frame.time = sph.time();
+        frames.publish();
+    }
+
+    // Stops after the step in progress; the frames are freed, so the renderer must be done with them
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Frame frame : frames.all())
+            frame.vertices.close();
+    }
+
+}
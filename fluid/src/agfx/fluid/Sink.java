@@ -0,0 +1,28 @@
+package agfx.fluid;
+
+import org.joml.Vector3dc;
+
+// A region that removes every particle that enters it
+@FunctionalInterface
+public interface Sink {
+
+    boolean contains(double x, double y, double z);
+
+    static Sink box(Vector3dc min, Vector3dc max) {
+        double x0 = min.x(), y0 = min.y(), z0 = min.z();
+        double x1 = max.x(), y1 = max.y(), z1 = max.z();
+        return (x, y, z) -> x >= x0 && x <= x1 && y >= y0 && y <= y1 && z >= z0 && z <= z1;
+    }
+
+    static Sink sphere(Vector3dc center, double r) {
+        double cx = center.x(), cy = center.y(), cz = center.z();
+        return (x, y, z) -> (x - cx) * (x - cx) + (y - cy) * (y - cy) + (z - cz) * (z - cz) <= r * r;
+    }
+
+    // Everything outside the box, e.g. a thin layer along the domain walls acting as an exit
+    static Sink outside(Vector3dc min, Vector3dc max) {
+        Sink inside = box(min, max);
+        return (x, y, z) -> !inside.contains(x, y, z);
+    }
+
+}
@@ -0,0 +1,214 @@
+package agfx.fluid;
+
+import agfx.Cloud;
+import org.joml.Vector3d;
+import org.joml.Vector3dc;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// A signed distance field sampled at the corners of a voxel grid. Each lookup interpolates the eight corners around
+// the point, and differentiates the same interpolation for the normal, so that a particle costs the same against
+// any shape however detailed. Beyond the grid the distance only grows, so the grid must enclose the solid.
+public class VoxelSDF implements Collider {
+
+    // Offsets to the neighbors a forward raster pass has already visited, of 26
+    private static final int[][] BEHIND = {
+            {1, 0, 0},
+            {-1, 1, 0}, {0, 1, 0}, {1, 1, 0},
+            {-1, -1, 1}, {0, -1, 1}, {1, -1, 1},
+            {-1, 0, 1}, {0, 0, 1}, {1, 0, 1},
+            {-1, 1, 1}, {0, 1, 1}, {1, 1, 1},
+    };
+
+    // Moves the whole field, e.g. to place terrain under an emitter
+    public final Vector3d offset = new Vector3d();
+
+    final double x0, y0, z0, cell;
+    final int nx, ny, nz;
+    // Corner (i, j, k) at (k * ny + j) * nx + i
+    final float[] values;
+
+    public VoxelSDF(Vector3dc min, double cell, int nx, int ny, int nz, float[] values) {
+        if (nx < 2 || ny < 2 || nz < 2) throw new IllegalArgumentException("At least two corners per axis: " + nx + "x" + ny + "x" + nz);
+        if ((long) nx * ny * nz != values.length)
+            throw new IllegalArgumentException("Expected " + (long) nx * ny * nz + " values, found " + values.length);
+        x0 = min.x();
+        y0 = min.y();
+        z0 = min.z();
+        this.cell = cell;
+        this.nx = nx;
+        this.ny = ny;
+        this.nz = nz;
+        this.values = values;
+    }
+
+    // The surface sampled by a cloud with outward normals, such as the bundled models, over corners the given
+    // distance apart with two voxels to spare around it. Each corner takes its sign from the normal of the nearest
+    // point; within a couple of voxels it also takes the distance from that point's tangent plane, which is exact
+    // between the points of a flat patch, and further out the distance to the point itself. Points should be spaced
+    // no further apart than the voxels.
+    public static VoxelSDF of(Cloud cloud, double cell) {
+        int n = cloud.size();
+        if (n == 0) throw new IllegalArgumentException("Empty cloud");
+        double[] px = new double[n], py = new double[n], pz = new double[n];
+        double[] qx = new double[n], qy = new double[n], qz = new double[n];
+        cloud.copy(0, 0, n, px, 0);
+        cloud.copy(1, 0, n, py, 0);
+        cloud.copy(2, 0, n, pz, 0);
+        cloud.copy(3, 0, n, qx, 0);
+        cloud.copy(4, 0, n, qy, 0);
+        cloud.copy(5, 0, n, qz, 0);
+        // The bundled clouds store the end point of each normal rather than its direction, so take whichever reading
+        // gives unit normals over the whole cloud
+        double asDirection = 0, asEndPoint = 0;
+        for (int i = 0; i < n; ++i) {
+            asDirection += Math.abs(Math.sqrt(qx[i] * qx[i] + qy[i] * qy[i] + qz[i] * qz[i]) - 1);
+            double dx = qx[i] - px[i], dy = qy[i] - py[i], dz = qz[i] - pz[i];
+            asEndPoint += Math.abs(Math.sqrt(dx * dx + dy * dy + dz * dz) - 1);
+        }
+        boolean endPoints = asEndPoint < asDirection;
+        Vector3d normal = new Vector3d();
+        double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+        // Points without a usable normal are dropped
+        int m = 0;
+        for (int i = 0; i < n; ++i) {
+            if (endPoints)
+                normal.set(qx[i] - px[i], qy[i] - py[i], qz[i] - pz[i]);
+            else normal.set(qx[i], qy[i], qz[i]);
+            normal.normalize();
+            if (!normal.isFinite())
+                continue;
+            px[m] = px[i]; py[m] = py[i]; pz[m] = pz[i];
+            qx[m] = normal.x; qy[m] = normal.y; qz[m] = normal.z;
+            minX = Math.min(minX, px[m]); minY = Math.min(minY, py[m]); minZ = Math.min(minZ, pz[m]);
+            maxX = Math.max(maxX, px[m]); maxY = Math.max(maxY, py[m]); maxZ = Math.max(maxZ, pz[m]);
+            ++m;
+        }
+        if (m == 0) throw new IllegalArgumentException("No point in the cloud has a normal");
+
+        Vector3d min = new Vector3d(minX, minY, minZ).sub(2 * cell, 2 * cell, 2 * cell);
+        int nx = (int) Math.ceil((maxX - minX) / cell) + 5;
+        int ny = (int) Math.ceil((maxY - minY) / cell) + 5;
+        int nz = (int) Math.ceil((maxZ - minZ) / cell) + 5;
+        int corners = nx * ny * nz;
+
+        // Each point claims the corners within two voxels of it, and the rest learn their nearest point from their
+        // neighbors' over one raster pass each way
+        int[] nearest = new int[corners];
+        double[] best = new double[corners];
+        Arrays.fill(nearest, -1);
+        Arrays.fill(best, Double.POSITIVE_INFINITY);
+        for (int p = 0; p < m; ++p) {
+            int i0 = (int) Math.floor((px[p] - min.x) / cell), j0 = (int) Math.floor((py[p] - min.y) / cell), k0 = (int) Math.floor((pz[p] - min.z) / cell);
+            for (int k = k0 - 1; k <= k0 + 2; ++k) {
+                for (int j = j0 - 1; j <= j0 + 2; ++j) {
+                    for (int i = i0 - 1; i <= i0 + 2; ++i) {
+                        double dx = min.x + i * cell - px[p], dy = min.y + j * cell - py[p], dz = min.z + k * cell - pz[p];
+                        double d2 = dx * dx + dy * dy + dz * dz;
+                        int c = i + nx * (j + ny * k);
+                        if (d2 < best[c]) {
+                            best[c] = d2;
+                            nearest[c] = p;
+                        }
+                    }
+                }
+            }
+        }
+        for (int pass = 0; pass < 2; ++pass) {
+            int step = pass == 0 ? 1 : -1;
+            for (int k = pass == 0 ? 0 : nz - 1; k >= 0 && k < nz; k += step) {
+                for (int j = pass == 0 ? 0 : ny - 1; j >= 0 && j < ny; j += step) {
+                    for (int i = pass == 0 ? 0 : nx - 1; i >= 0 && i < nx; i += step) {
+                        int c = i + nx * (j + ny * k);
+                        double x = min.x + i * cell, y = min.y + j * cell, z = min.z + k * cell;
+                        // The 13 neighbors this pass has already been through
+                        for (int[] o : BEHIND) {
+                            int a = i - step * o[0], b = j - step * o[1], d = k - step * o[2];
+                            if (a < 0 || a >= nx || b < 0 || b >= ny || d < 0 || d >= nz)
+                                continue;
+                            int p = nearest[a + nx * (b + ny * d)];
+                            if (p < 0)
+                                continue;
+                            double dx = x - px[p], dy = y - py[p], dz = z - pz[p];
+                            double d2 = dx * dx + dy * dy + dz * dz;
+                            if (d2 < best[c]) {
+                                best[c] = d2;
+                                nearest[c] = p;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        float[] values = new float[corners];
+        double band = 2 * cell;
+        IntStream.range(0, nz).parallel().forEach(k -> {
+            for (int j = 0; j < ny; ++j) {
+                for (int i = 0; i < nx; ++i) {
+                    int c = i + nx * (j + ny * k);
+                    int p = nearest[c];
+                    double x = min.x + i * cell, y = min.y + j * cell, z = min.z + k * cell;
+                    double plane = (x - px[p]) * qx[p] + (y - py[p]) * qy[p] + (z - pz[p]) * qz[p];
+                    double d = Math.sqrt(best[c]);
+                    values[c] = (float) (d < band ? plane : Math.copySign(d, plane));
+                }
+            }
+        });
+        return new VoxelSDF(min, cell, nx, ny, nz, values);
+    }
+
+    public Vector3d min(Vector3d dest) {
+        return dest.set(x0, y0, z0).add(offset);
+    }
+
+    public Vector3d max(Vector3d dest) {
+        return dest.set(x0 + (nx - 1) * cell, y0 + (ny - 1) * cell, z0 + (nz - 1) * cell).add(offset);
+    }
+
+    public double cellSize() {
+        return cell;
+    }
+
+    @Override
+    public double distance(double x, double y, double z, Vector3d normal) {
+        double fx = (x - offset.x - x0) / cell, fy = (y - offset.y - y0) / cell, fz = (z - offset.z - z0) / cell;
+        // Off the grid, the edge value plus the distance to the edge
+        double cx = Math.max(0, Math.min(nx - 1, fx)), cy = Math.max(0, Math.min(ny - 1, fy)), cz = Math.max(0, Math.min(nz - 1, fz));
+        double outside = cell * Math.sqrt((fx - cx) * (fx - cx) + (fy - cy) * (fy - cy) + (fz - cz) * (fz - cz));
+        if (Double.isNaN(outside))
+            return Double.NaN;
+        int i = Math.min((int) cx, nx - 2), j = Math.min((int) cy, ny - 2), k = Math.min((int) cz, nz - 2);
+        double tx = cx - i, ty = cy - j, tz = cz - k;
+        int c = i + nx * (j + ny * k);
+        int dy = nx, dz = nx * ny;
+        double v000 = values[c], v100 = values[c + 1];
+        double v010 = values[c + dy], v110 = values[c + dy + 1];
+        double v001 = values[c + dz], v101 = values[c + dz + 1];
+        double v011 = values[c + dy + dz], v111 = values[c + dy + dz + 1];
+
+        // Along x first, then y, then z
+        double v00 = v000 + (v100 - v000) * tx, v10 = v010 + (v110 - v010) * tx;
+        double v01 = v001 + (v101 - v001) * tx, v11 = v011 + (v111 - v011) * tx;
+        double v0 = v00 + (v10 - v00) * ty, v1 = v01 + (v11 - v01) * ty;
+        double d = v0 + (v1 - v0) * tz + outside;
+        if (d < 0) {
+            double gx = lerp(lerp(v100 - v000, v110 - v010, ty), lerp(v101 - v001, v111 - v011, ty), tz);
+            double gy = lerp(v10 - v00, v11 - v01, tz);
+            double gz = v1 - v0;
+            double length = Math.sqrt(gx * gx + gy * gy + gz * gz);
+            // A flat stretch of the field, e.g. midway between two surfaces, gives no direction, so it is up
+            if (length > 0)
+                normal.set(gx / length, gy / length, gz / length);
+            else normal.set(0, 1, 0);
+        }
+        return d;
+    }
+
+    private static double lerp(double a, double b, double t) {
+        return a + (b - a) * t;
+    }
+
+}
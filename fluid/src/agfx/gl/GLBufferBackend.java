@@ -0,0 +1,93 @@
+package agfx.gl;
+
+import org.lwjgl.opengl.GL;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL11.GL_POINTS;
+import static org.lwjgl.opengl.GL11.glDrawArrays;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.GL_MAP_WRITE_BIT;
+import static org.lwjgl.opengl.GL30.glMapBufferRange;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL44.*;
+
+// An array buffer drawn as points, with the vertex layout set up again whenever the storage is replaced
+public class GLBufferBackend implements RenderBuffer.Backend {
+
+    private static final int PERSISTENT = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+
+    private final Runnable layout;
+    private int vbo;
+    private boolean mapped;
+
+    // The layout runs with the new buffer bound to GL_ARRAY_BUFFER and the caller's vertex array object bound
+    public GLBufferBackend(Runnable layout) {
+        this.layout = layout;
+    }
+
+    // Persistent mapping needs immutable buffer storage, core since 4.4
+    public static boolean supportsPersistent() {
+        return GL.getCapabilities().OpenGL44;
+    }
+
+    @Override
+    public ByteBuffer allocate(long bytes, boolean persistent) {
+        free();
+        vbo = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        layout.run();
+        if (!persistent) {
+            glBufferData(GL_ARRAY_BUFFER, bytes, GL_STREAM_DRAW);
+            return null;
+        }
+        glBufferStorage(GL_ARRAY_BUFFER, bytes, PERSISTENT);
+        mapped = true;
+        return glMapBufferRange(GL_ARRAY_BUFFER, 0, bytes, PERSISTENT);
+    }
+
+    @Override
+    public void orphan(long bytes) {
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        glBufferData(GL_ARRAY_BUFFER, bytes, GL_STREAM_DRAW);
+    }
+
+    @Override
+    public void upload(long offset, ByteBuffer data) {
+        glBindBuffer(GL_ARRAY_BUFFER, vbo);
+        glBufferSubData(GL_ARRAY_BUFFER, offset, data);
+    }
+
+    @Override
+    public void draw(int first, int count) {
+        glDrawArrays(GL_POINTS, first, count);
+    }
+
+    @Override
+    public long fence() {
+        return glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    @Override
+    public void await(long fence) {
+        int status;
+        do {
+            status = glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000);
+        } while (status == GL_TIMEOUT_EXPIRED);
+        glDeleteSync(fence);
+    }
+
+    @Override
+    public void free() {
+        if (vbo == 0)
+            return;
+        if (mapped) {
+            glBindBuffer(GL_ARRAY_BUFFER, vbo);
+            glUnmapBuffer(GL_ARRAY_BUFFER);
+            mapped = false;
+        }
+        glDeleteBuffers(vbo);
+        vbo = 0;
+    }
+
+}
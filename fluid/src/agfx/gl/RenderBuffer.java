@@ -0,0 +1,211 @@
+package agfx.gl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+// Streams a VertexArray to the GPU and draws its first blocks as one contiguous range, sending only the blocks marked
+// dirty since they were last sent, or all of them the first time it draws from an array. ORPHAN respecifies a single
+// buffer whenever anything changed, so the driver never waits on a draw still reading it. PERSISTENT copies into one
+// of three regions of a persistently mapped buffer, each fenced until the GPU has finished drawing from it.
+public class RenderBuffer implements AutoCloseable {
+
+    public enum Strategy {
+        ORPHAN,
+        PERSISTENT
+    }
+
+    public static final int REGIONS = 3;
+
+    // What the upload logic needs from GL, so it can be run without a context
+    public interface Backend {
+        // Fresh storage of the given size, bound with the vertex layout pointing into it. Persistent storage comes back
+        // mapped for writing, coherently; otherwise the result is null.
+        ByteBuffer allocate(long bytes, boolean persistent);
+        // Drops the old contents so that the driver can hand out new memory rather than wait for pending draws
+        void orphan(long bytes);
+        void upload(long offset, ByteBuffer data);
+        void draw(int first, int count);
+        long fence();
+        // Blocks until the fence has signalled, then deletes it
+        void await(long fence);
+        void free();
+    }
+
+    private VertexArray array;
+    // Every array drawn from so far, whose dirty marks pick up from what was last sent
+    private final Set<VertexArray> seen = Collections.newSetFromMap(new WeakHashMap<>());
+    private final Backend backend;
+    private final Strategy strategy;
+
+    private ByteBuffer mapped;
+    // Capacity of each region, in blocks
+    private int capacity;
+    private int region;
+    private final long[] fences = new long[REGIONS];
+    // Blocks each region holds, and the range of them that changed since, from and to
+    private final int[] held = new int[REGIONS];
+    private final int[][] stale = new int[REGIONS][2];
+    // Blocks the orphaned buffer holds
+    private int valid;
+
+    private long frames;
+    private long uploaded;
+    private long lastUploaded;
+
+    public RenderBuffer(VertexArray array, Backend backend, Strategy strategy) {
+        this.array = array;
+        if (array != null)
+            seen.add(array);
+        this.backend = backend;
+        this.strategy = strategy;
+    }
+
+    // For arrays given with each draw
+    public RenderBuffer(Backend backend, Strategy strategy) {
+        this(null, backend, strategy);
+    }
+
+    public Strategy strategy() {
+        return strategy;
+    }
+
+    // Bytes sent to the GPU in the last frame and over all frames
+    public long lastUploaded() {
+        return lastUploaded;
+    }
+
+    public long uploaded() {
+        return uploaded;
+    }
+
+    public long frames() {
+        return frames;
+    }
+
+    // Draws blocks [0, count) of the given array, e.g. the latest of several frames handed over by another thread.
+    // Arrays taking turns are copies of the same vertices at successive times: each must hold all of them as of its
+    // latest write, with every block that changed since it was last drawn from marked dirty, so that only those go up.
+    public void draw(VertexArray source, int count) {
+        if (source != array) {
+            if (array != null && source.blockSize() != array.blockSize())
+                throw new IllegalArgumentException("Block size " + source.blockSize() + " is not " + array.blockSize());
+            array = source;
+            // Nothing is known about how an array never drawn from differs from what the GPU holds
+            if (seen.add(source))
+                clear();
+        }
+        draw(count);
+    }
+
+    // Uploads whatever changed and draws blocks [0, count)
+    public void draw(int count) {
+        if (array == null) throw new IllegalStateException("No array to draw from");
+        if (count > array.blocks()) throw new IndexOutOfBoundsException("Drawing " + count + " of " + array.blocks() + " blocks");
+        int[] dirty = array.takeDirty();
+        if (capacity < array.blocks())
+            allocate(array.blocks());
+        lastUploaded = 0;
+
+        int first = 0;
+        if (strategy == Strategy.ORPHAN) {
+            // Orphaning loses the old contents, so when anything changed the whole drawn range goes up again
+            if (dirty[0] < Math.min(dirty[1], valid) || count > valid) {
+                backend.orphan((long) capacity * array.blockSize());
+                send(0, 0, count);
+                valid = count;
+            }
+        } else {
+            for (int[] s : stale) {
+                if (dirty[0] < dirty[1]) {
+                    s[0] = Math.min(s[0], dirty[0]);
+                    s[1] = Math.max(s[1], dirty[1]);
+                }
+            }
+            if (fences[region] != 0) {
+                backend.await(fences[region]);
+                fences[region] = 0;
+            }
+            // Only the drawn range goes up, along with any of it the region never held
+            int[] s = stale[region];
+            first = region * capacity;
+            int from = s[0], to = Math.min(s[1], count);
+            if (held[region] < count) {
+                from = Math.min(from, held[region]);
+                to = count;
+                held[region] = count;
+            }
+            if (from < to)
+                send(first, from, to);
+            s[0] = Math.max(s[0], to);
+            s[1] = Math.min(s[1], held[region]);
+            if (s[0] >= s[1]) {
+                s[0] = Integer.MAX_VALUE;
+                s[1] = 0;
+            }
+        }
+
+        backend.draw(first, count);
+        if (strategy == Strategy.PERSISTENT) {
+            fences[region] = backend.fence();
+            region = (region + 1) % REGIONS;
+        }
+        uploaded += lastUploaded;
+        ++frames;
+    }
+
+    // Copies blocks [from, to) of the array to the given block offset on the GPU
+    private void send(int at, int from, int to) {
+        int size = array.blockSize();
+        // Blocks dropped by shrinking the array since they were marked are no longer drawn
+        to = Math.min(to, array.blocks());
+        if (from >= to)
+            return;
+        ByteBuffer src = array.buffer();
+        src.limit(to * size).position(from * size);
+        if (mapped != null) {
+            ByteBuffer dst = mapped.duplicate();
+            dst.position((at + from) * size);
+            dst.put(src);
+        } else backend.upload((long) (at + from) * size, src);
+        lastUploaded += (long) (to - from) * size;
+    }
+
+    private void allocate(int blocks) {
+        awaitAll();
+        capacity = blocks;
+        long bytes = (long) blocks * array.blockSize();
+        mapped = backend.allocate(strategy == Strategy.PERSISTENT ? REGIONS * bytes : bytes, strategy == Strategy.PERSISTENT);
+        // New storage holds nothing yet
+        clear();
+    }
+
+    private void clear() {
+        valid = 0;
+        Arrays.fill(held, 0);
+        for (int[] s : stale) {
+            s[0] = Integer.MAX_VALUE;
+            s[1] = 0;
+        }
+    }
+
+    private void awaitAll() {
+        for (int i = 0; i < REGIONS; ++i) {
+            if (fences[i] != 0) {
+                backend.await(fences[i]);
+                fences[i] = 0;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        awaitAll();
+        Arrays.fill(fences, 0);
+        mapped = null;
+        backend.free();
+    }
+
+}
@@ -1,5 +1,7 @@
 package agfx.gl;
 
+import agfx.MathUtils;
+
 import java.util.stream.IntStream;
 
 import static org.lwjgl.opengl.GL11.*;
@@ -10,14 +12,7 @@ public final class Utils {
 
     private Utils() {}
 
-    public static final double EPSILON;
-
-    static {
-        double e = 1;
-        while (1 + 0.5*e != 1)
-            e *= 0.5;
-        EPSILON = e;
-    }
+    public static final double EPSILON = MathUtils.EPSILON;
 
     public static int sizeof(int type) {
         switch (type) {
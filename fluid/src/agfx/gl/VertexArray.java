@@ -10,6 +10,9 @@ public class VertexArray implements AutoCloseable {
 
     protected final int blockSize;
     protected ByteBuffer buffer;
+    // Blocks written since the last upload; writers mark what they change, so the puts themselves stay unsynchronized
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo = 0;
 
     public VertexArray(int count, int size) {
         blockSize = size;
@@ -51,6 +54,36 @@ public class VertexArray implements AutoCloseable {
         return bytes() / blockSize;
     }
 
+    public int blockSize() {
+        return blockSize;
+    }
+
+    // Copies blocks [from, to) of an array with the same block size into the same blocks of this one
+    public void copy(VertexArray src, int from, int to) {
+        if (src.blockSize != blockSize) throw new IllegalArgumentException("Block size " + src.blockSize + " is not " + blockSize);
+        ByteBuffer bytes = src.buffer();
+        bytes.limit(to * blockSize).position(from * blockSize);
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(from * blockSize);
+        dst.put(bytes);
+        markDirty(from, to);
+    }
+
+    public synchronized void markDirty(int from, int to) {
+        if (from >= to)
+            return;
+        dirtyFrom = Math.min(dirtyFrom, from);
+        dirtyTo = Math.max(dirtyTo, to);
+    }
+
+    // The smallest range of blocks covering everything marked since the last call, as {from, to}, and clears it
+    public synchronized int[] takeDirty() {
+        int[] range = dirtyFrom < dirtyTo ? new int[] {dirtyFrom, dirtyTo} : new int[] {0, 0};
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = 0;
+        return range;
+    }
+
     public ByteBuffer buffer() {
         if (buffer == null) throw new IllegalStateException("Already freed");
         return buffer.asReadOnlyBuffer();
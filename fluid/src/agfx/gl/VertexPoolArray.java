@@ -22,11 +22,15 @@ public class VertexPoolArray extends VertexArray {
 
     private final BitSet used;
     private int inUse;
+    // Every index below the cursor is in use, so the search for a free one starts there
+    private int cursor;
+    private boolean growable;
 
     public VertexPoolArray(int initialCapacity, int size) {
         super(initialCapacity, size);
         used = new BitSet(initialCapacity);
         inUse = 0;
+        cursor = 0;
     }
 
     @Override
@@ -34,6 +38,34 @@ public class VertexPoolArray extends VertexArray {
         super.close();
         used.clear();
         inUse = 0;
+        cursor = 0;
+    }
+
+    @Override
+    public void resize(int count) throws IllegalArgumentException {
+        if (count < used.length()) throw new IllegalArgumentException("Index " + (used.length() - 1) + " is in use beyond " + count + " blocks");
+        super.resize(count);
+    }
+
+    public boolean isGrowable() {
+        return growable;
+    }
+
+    // A growable pool doubles its capacity through resize instead of throwing when it runs out of blocks
+    public void setGrowable(boolean b) {
+        growable = b;
+    }
+
+    private void reserve(int n) throws NoSuchElementException {
+        if (free() >= n)
+            return;
+        if (!growable) throw new NoSuchElementException("Requested " + n + " blocks with only " + free() + " free");
+        long needed = (long) inUse + n;
+        long count = Math.max(1, blocks());
+        while (count < needed)
+            count *= 2;
+        if (count * blockSize > Integer.MAX_VALUE) throw new NoSuchElementException("Pool cannot grow to " + needed + " blocks");
+        resize((int) count);
     }
 
     public int used() {
@@ -44,10 +76,25 @@ public class VertexPoolArray extends VertexArray {
         return blocks() - inUse;
     }
 
+    // The lowest free index
     public int request() throws NoSuchElementException {
-        int v = streamFree().findAny().orElseThrow();
+        reserve(1);
+        int v = used.nextClearBit(cursor);
         used.set(v);
         ++inUse;
+        cursor = v + 1;
+        return v;
+    }
+
+    // The n lowest free indices, in increasing order; nothing is allocated if they cannot all be
+    public int[] request(int n) throws NoSuchElementException {
+        reserve(n);
+        int[] v = new int[n];
+        for (int i = 0; i < n; ++i) {
+            v[i] = cursor = used.nextClearBit(cursor);
+            used.set(cursor++);
+        }
+        inUse += n;
         return v;
     }
 
@@ -55,9 +102,24 @@ public class VertexPoolArray extends VertexArray {
         if (used.get(v)) {
             used.clear(v);
             --inUse;
+            cursor = Math.min(cursor, v);
         } else throw new NoSuchElementException("Index " + v + " not in use");
     }
 
+    // Nothing is reclaimed if any index is not in use, or is given more than once
+    public void reclaim(int[] v) throws NoSuchElementException {
+        BitSet seen = new BitSet();
+        for (int i : v) {
+            if (i < 0 || !used.get(i)) throw new NoSuchElementException("Index " + i + " not in use");
+            if (seen.get(i)) throw new NoSuchElementException("Index " + i + " reclaimed twice");
+            seen.set(i);
+        }
+        used.andNot(seen);
+        inUse -= v.length;
+        if (v.length > 0)
+            cursor = Math.min(cursor, seen.nextSetBit(0));
+    }
+
     public Map<Integer, Integer> compact() {
         Map<Integer, Integer> map = new HashMap<>();
         int len = blocks();
@@ -65,15 +127,30 @@ public class VertexPoolArray extends VertexArray {
         int lastUsed = used.previousSetBit(len);
         while (firstFree < lastUsed) {
             move(buffer, lastUsed * blockSize, firstFree * blockSize, blockSize);
+            markDirty(firstFree, firstFree + 1);
             used.set(firstFree);
             used.clear(lastUsed);
             map.put(lastUsed, firstFree);
             firstFree = used.nextClearBit(firstFree);
             lastUsed = used.previousSetBit(lastUsed);
         }
+        cursor = used.nextClearBit(0);
         return map;
     }
 
+    public BitSet getUsed() {
+        return (BitSet) used.clone();
+    }
+
+    // Marks exactly the given indices as in use, e.g. when restoring a saved pool
+    public void setUsed(BitSet bits) throws IndexOutOfBoundsException {
+        if (bits.length() > blocks()) throw new IndexOutOfBoundsException("Index " + (bits.length() - 1) + " beyond " + blocks() + " blocks");
+        used.clear();
+        used.or(bits);
+        inUse = used.cardinality();
+        cursor = used.nextClearBit(0);
+    }
+
     public IntStream streamUsed() {
         return used.stream();
     }
@@ -0,0 +1,44 @@
+package mesh;
+
+import agfx.Cloud;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Converts text clouds to the binary format read by Cloud.map
+public class CloudConvert {
+
+    public static void main(String[] args) throws IOException {
+        int precision = Double.BYTES;
+        Path out = null;
+        int converted = 0;
+        for (String arg : args) {
+            if (arg.equals("--float")) {
+                precision = Float.BYTES;
+            } else if (arg.startsWith("--out=")) {
+                out = Paths.get(arg.substring(6));
+                Files.createDirectories(out);
+            } else {
+                Path in = Paths.get(arg);
+                String name = in.getFileName().toString();
+                int dot = name.lastIndexOf('.');
+                name = (dot < 0 ? name : name.substring(0, dot)) + ".cloud";
+                Path dest = out == null ? in.resolveSibling(name) : out.resolve(name);
+
+                Cloud cloud;
+                try (InputStream stream = Files.newInputStream(in)) {
+                    cloud = Cloud.load(stream);
+                }
+                cloud.write(dest, precision);
+                System.out.println(in + " -> " + dest + " (" + cloud.size() + " points)");
+                ++converted;
+            }
+        }
+        if (converted == 0)
+            System.out.println("Usage: CloudConvert [--float] [--out=<dir>] <cloud.txt>...");
+    }
+
+}
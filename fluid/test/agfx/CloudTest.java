@@ -0,0 +1,105 @@
+package agfx;
+
+import org.joml.Vector3d;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CloudTest {
+
+    private static double parse(String s) {
+        byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+        return Cloud.parseDouble(b, 0, b.length);
+    }
+
+    @Test
+    void testParseDouble() {
+        String[] samples = {
+                "0", "-0", "1", "-1.5", "+2.25", "0.531196", "-0.629717", ".5", "5.", "1e3", "1.5E-7",
+                "123456789012345", "1234567890123456789", "0.000000000000000000000001", "4.9e-324", "1e308",
+                "NaN", "Infinity", "-Infinity"
+        };
+        for (String s : samples)
+            assertEquals(Double.doubleToLongBits(Double.parseDouble(s)), Double.doubleToLongBits(parse(s)), s);
+
+        Random rng = new Random(28);
+        for (int i = 0; i < 10000; ++i) {
+            String s = Double.toString((rng.nextDouble() - 0.5) * Math.pow(10, rng.nextInt(12) - 6));
+            assertEquals(Double.parseDouble(s), parse(s), s);
+            s = String.format("%.6f", rng.nextGaussian());
+            assertEquals(Double.parseDouble(s), parse(s), s);
+        }
+
+        assertThrows(NumberFormatException.class, () -> parse("."));
+        assertThrows(NumberFormatException.class, () -> parse("1.2.3"));
+        assertThrows(NumberFormatException.class, () -> parse("1e"));
+    }
+
+    @Test
+    void testLoad() throws IOException {
+        String text = "0.5 -1 2 0 1 0\n" + "-0.25 3 1.5 1 0 0\n";
+        Cloud cloud = Cloud.load(new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(2, cloud.size());
+        assertEquals(new Vector3d(-0.25, 3, 1.5), cloud.getVertex(1, new Vector3d()));
+        assertEquals(new Vector3d(0, 1, 0), cloud.getNormal(0, new Vector3d()));
+        assertEquals(new Vector3d(-0.25, -1, 1.5), cloud.min);
+        assertEquals(new Vector3d(0.5, 3, 2), cloud.max);
+
+        assertThrows(IllegalArgumentException.class,
+                () -> Cloud.load(new ByteArrayInputStream("1 2 3 4 5".getBytes(StandardCharsets.US_ASCII))));
+    }
+
+    @Test
+    void testMap() throws IOException {
+        Cloud cloud = Cloud.sphere(0.5, new Vector3d(1, 2, 3), 1000, new Random(28));
+        Path file = Files.createTempFile("cloud", ".cloud");
+        try {
+            cloud.write(file, Double.BYTES);
+            Cloud mapped = Cloud.map(file);
+            assertEquals(cloud.size(), mapped.size());
+            assertEquals(cloud.min, mapped.min);
+            assertEquals(cloud.max, mapped.max);
+            double[] expected = new double[cloud.size()];
+            double[] actual = new double[cloud.size()];
+            for (int c = 0; c < Cloud.COMPONENTS; ++c) {
+                cloud.copy(c, 0, cloud.size(), expected, 0);
+                mapped.copy(c, 0, cloud.size(), actual, 0);
+                assertArrayEquals(expected, actual);
+            }
+
+            cloud.write(file, Float.BYTES);
+            mapped = Cloud.map(file);
+            assertEquals(Float.BYTES, mapped.precision());
+            for (int i = 0; i < cloud.size(); ++i)
+                for (int c = 0; c < Cloud.COMPONENTS; ++c)
+                    assertEquals((float) cloud.get(i, c), mapped.get(i, c));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testBundled() throws IOException {
+        Path text = Paths.get("res/clouds/cactus1024.txt");
+        if (!Files.exists(text))
+            return;
+        Cloud cloud;
+        try (InputStream in = Files.newInputStream(text)) {
+            cloud = Cloud.load(in);
+        }
+        assertEquals(1024, cloud.size());
+        for (int i = 0; i < cloud.size(); ++i)
+            for (int c = 0; c < Cloud.COMPONENTS; ++c)
+                assertTrue(Double.isFinite(cloud.get(i, c)));
+    }
+
+}
@@ -0,0 +1,67 @@
+package agfx;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TripleBufferTest {
+
+    @Test
+    public void testLatest() {
+        int[] made = {0};
+        TripleBuffer<int[]> buffer = new TripleBuffer<>(() -> new int[] {made[0]++});
+        assertFalse(buffer.hasNew());
+        int[] first = buffer.front();
+        // Nothing published leaves the reader where it was
+        assertSame(first, buffer.front());
+
+        buffer.back()[0] = 10;
+        buffer.publish();
+        buffer.back()[0] = 11;
+        buffer.publish();
+        assertTrue(buffer.hasNew());
+        // Only the latest is seen, the one before it was overwritten
+        assertEquals(11, buffer.front()[0]);
+        assertFalse(buffer.hasNew());
+        assertEquals(11, buffer.front()[0]);
+
+        // The writer never gets the buffer the reader holds
+        int[] held = buffer.front();
+        for (int i = 0; i < 10; ++i) {
+            assertNotSame(held, buffer.back());
+            buffer.back()[0] = 20 + i;
+            buffer.publish();
+        }
+        assertEquals(29, buffer.front()[0]);
+    }
+
+    @Test
+    public void testConcurrent() throws InterruptedException {
+        int n = 200_000;
+        TripleBuffer<int[]> buffer = new TripleBuffer<>(() -> new int[64]);
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= n; ++i) {
+                int[] values = buffer.back();
+                for (int j = 0; j < values.length; ++j)
+                    values[j] = i;
+                buffer.publish();
+            }
+        });
+        writer.start();
+
+        int last = 0;
+        while (last < n) {
+            int[] values = buffer.front();
+            // Never a half written frame, and never an older one than already seen
+            for (int v : values)
+                assertEquals(values[0], v);
+            assertTrue(values[0] >= last);
+            last = values[0];
+            if (!writer.isAlive() && !buffer.hasNew())
+                break;
+        }
+        writer.join();
+        assertEquals(n, buffer.front()[0]);
+    }
+
+}
@@ -0,0 +1,164 @@
+package agfx.fluid;
+
+import org.joml.Vector3d;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestBoundary {
+
+    // An open box of boundary particles two layers thick, with inner faces at x, z = +-w and y = 0
+    static void tank(SPH sph, double w, double height, double spacing) {
+        int m = (int) Math.round(w / spacing) + 2;
+        int top = (int) Math.round(height / spacing);
+        for (int i = -m; i <= m; ++i) {
+            for (int k = -m; k <= m; ++k) {
+                for (int j = -2; j <= top; ++j) {
+                    double x = i * spacing, y = j * spacing, z = k * spacing;
+                    if (y <= 0 || Math.abs(x) >= w - 1e-9 || Math.abs(z) >= w - 1e-9)
+                        sph.addBoundary(x, y, z);
+                }
+            }
+        }
+    }
+
+    // A block of fluid resting on the floor of a tank just wide enough for it, in an unbounded domain
+    static SPH tankBlock(int n, double d) {
+        SPH sph = new SPH(n * n * n, 2 * d);
+        Fluid f = new Fluid(1e4, 1000, 0, 0.01, 10, 1e-4);
+        sph.gravity.set(0, -9.8, 0);
+        sph.setEquationOfState(SPH.EquationOfState.TAIT);
+        tank(sph, (n / 2.0 + 0.5) * d, 3 * n * d, d);
+        for (int i = 0; i < n; ++i)
+            for (int j = 0; j < n; ++j)
+                for (int k = 0; k < n; ++k)
+                    sph.addParticle(f, f.restDensity * d * d * d)
+                            .setPos(new Vector3d((i - (n - 1) / 2.0) * d, (j + 1) * d, (k - (n - 1) / 2.0) * d));
+        return sph;
+    }
+
+    @Test
+    void testVolumes() {
+        double d = 0.05;
+        KernelEvaluator kernel = new KernelEvaluator(2 * d);
+        BoundaryStore b = new BoundaryStore();
+        int n = 9;
+        for (int i = 0; i < n; ++i)
+            for (int j = 0; j < n; ++j)
+                for (int k = 0; k < n; ++k)
+                    b.add(i * d, j * d, k * d);
+        assertFalse(b.isBuilt());
+        b.build(kernel);
+        assertTrue(b.isBuilt());
+
+        double interior = 0, corner = 0;
+        for (int i = 0; i < b.size; ++i) {
+            if (b.px[i] == 4 * d && b.py[i] == 4 * d && b.pz[i] == 4 * d)
+                interior = b.volume[i];
+            if (b.px[i] == 0 && b.py[i] == 0 && b.pz[i] == 0)
+                corner = b.volume[i];
+        }
+        // Deep inside, each particle stands in for about its share of the lattice
+        assertEquals(d * d * d, interior, 0.1 * d * d * d);
+        // With fewer neighbors, one on the edge stands in for more
+        assertTrue(corner > 1.5 * interior, corner + " vs " + interior);
+    }
+
+    @Test
+    void testNear() {
+        Random rng = new Random(3);
+        double h = 0.1;
+        BoundaryStore b = new BoundaryStore();
+        for (int i = 0; i < 2000; ++i)
+            b.add(rng.nextDouble() - 0.5, rng.nextDouble() - 0.5, rng.nextDouble() * 2 - 1);
+        b.build(new KernelEvaluator(h));
+
+        NeighborList.Block near = new NeighborList.Block(64);
+        for (int q = 0; q < 200; ++q) {
+            double x = rng.nextDouble() * 1.4 - 0.7, y = rng.nextDouble() * 1.4 - 0.7, z = rng.nextDouble() * 2.4 - 1.2;
+            double r = rng.nextBoolean() ? h : 1.5 * h;
+            near.size = 0;
+            b.near(x, y, z, r, near);
+            int[] found = Arrays.copyOf(near.data, near.size);
+            Arrays.sort(found);
+            for (int i = 0; i < b.size; ++i) {
+                double dx = b.px[i] - x, dy = b.py[i] - y, dz = b.pz[i] - z;
+                if (dx * dx + dy * dy + dz * dz < r * r)
+                    assertTrue(Arrays.binarySearch(found, i) >= 0, "Missed " + i + " near query " + q);
+            }
+        }
+    }
+
+    @Test
+    void testTank() {
+        SPH sph = tankBlock(6, 0.05);
+        try {
+            sph.setPressureSolver(SPH.PressureSolver.PCISPH);
+            // Sorted by cell on the first update, and never again
+            sph.updateAdaptive(0.01);
+            int walls = sph.boundarySize();
+            Vector3d[] before = new Vector3d[walls];
+            for (int i = 0; i < walls; ++i)
+                before[i] = sph.getBoundaryPos(i, new Vector3d());
+
+            // Fluid may press up to half a spacing into the walls, but no further
+            double w = 4 * 0.05;
+            Vector3d v = new Vector3d();
+            while (sph.time() < 1) {
+                sph.updateAdaptive(0.01);
+                sph.particles().forEach(p -> {
+                    p.getPos(v);
+                    assertTrue(v.y > -0.025 && Math.abs(v.x) < w && Math.abs(v.z) < w, "Escaped to " + v + " at " + sph.time());
+                });
+            }
+            assertEquals(0, sph.unstable());
+
+            // Settled without being squeezed against the floor, which never moved
+            double densest = sph.particles().mapToDouble(SPH.Particle::density).max().orElse(0);
+            assertTrue(densest < 1150, "Densest " + densest);
+            assertEquals(walls, sph.boundarySize());
+            for (int i = 0; i < walls; ++i)
+                assertEquals(before[i], sph.getBoundaryPos(i, v));
+        } finally {
+            sph.close();
+        }
+    }
+
+    // Off the lattice, where pairs at exactly h would be counted by one pipeline's rounding and not another's
+    private static SPH jittered(int n, double d) {
+        SPH sph = tankBlock(n, d);
+        Random rng = new Random(5);
+        Vector3d v = new Vector3d();
+        sph.particles().forEach(p -> p.setPos(p.getPos(v).add((rng.nextDouble() - 0.5) * 0.2 * d,
+                (rng.nextDouble() - 0.5) * 0.2 * d, (rng.nextDouble() - 0.5) * 0.2 * d)));
+        return sph;
+    }
+
+    // The pipelines see the same boundary, with or without half lists and skin
+    @Test
+    void testPipelines() {
+        SPH staged = jittered(6, 0.05);
+        SPH fused = jittered(6, 0.05);
+        SPH half = jittered(6, 0.05);
+        try {
+            fused.setPipeline(SPH.Pipeline.FUSED);
+            fused.setVerletSkin(0.02);
+            half.setSymmetric(true);
+            for (int i = 0; i < 40; ++i) {
+                staged.update(2e-4);
+                fused.update(2e-4);
+                half.update(2e-4);
+            }
+            TestSPH.assertSameState(staged, fused, 1e-9);
+            TestSPH.assertSameState(staged, half, 1e-9);
+        } finally {
+            staged.close();
+            fused.close();
+            half.close();
+        }
+    }
+
+}
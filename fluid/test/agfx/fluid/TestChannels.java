@@ -0,0 +1,176 @@
+package agfx.fluid;
+
+import org.joml.Vector3d;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestChannels {
+
+    private static double total(SPH sph, int channel) {
+        return sph.particles().mapToDouble(p -> p.mass() * p.getScalar(channel)).sum();
+    }
+
+    // Values follow their particles through sorting, and through the rows moved to fill removed ones
+    @Test
+    void testCarried() {
+        SPH sph = TestSPH.drop(2000, 41);
+        try {
+            int tag = sph.addChannel("tag", 0);
+            int other = sph.addChannel("other", 0);
+            assertEquals(tag, sph.channel("tag"));
+            assertEquals(-1, sph.channel("missing"));
+            assertThrows(IllegalArgumentException.class, () -> sph.addChannel("tag", 1));
+            // Tagged by where they start; slots are compacted along with rows, so they can't tell particles apart
+            Vector3d v = new Vector3d();
+            sph.particles().forEach(p -> p.setScalar(tag, p.getPos(v).y).setScalar(other, -p.getPos(v).y));
+            sph.addSink(Sink.box(new Vector3d(-0.5), new Vector3d(0.5, -0.2, 0.5)));
+            for (int i = 0; i < 100; ++i)
+                sph.update(0.002);
+            assertTrue(sph.absorbed() > 0);
+            double[] tags = sph.particles().mapToDouble(p -> p.getScalar(tag)).toArray();
+            assertEquals(sph.store.size, Arrays.stream(tags).distinct().count());
+            sph.particles().forEach(p -> assertEquals(-p.getScalar(tag), p.getScalar(other)));
+        } finally {
+            sph.close();
+        }
+    }
+
+    // One half of a still block starts at 1 and the other at 0: the step between them spreads out, without either
+    // side overshooting or the total changing
+    @Test
+    void testDiffusion() {
+        SPH sph = TestSPH.block(10, 0.05);
+        try {
+            sph.gravity.set(0, 0, 0);
+            int heat = sph.addChannel("heat", 0.04);
+            Vector3d v = new Vector3d();
+            sph.particles().forEach(p -> p.setScalar(heat, p.getPos(v).x < 0 ? 1 : 0));
+            double before = total(sph, heat);
+            for (int i = 0; i < 100; ++i)
+                sph.update(0.002);
+
+            assertEquals(before, total(sph, heat), 1e-9 * before);
+            double[] values = sph.particles().mapToDouble(p -> p.getScalar(heat)).toArray();
+            assertTrue(Arrays.stream(values).min().orElse(0) > -1e-9);
+            assertTrue(Arrays.stream(values).max().orElse(0) < 1 + 1e-9);
+            // Across the middle the values have met, while the far sides are still apart
+            double near = sph.particles().filter(p -> Math.abs(p.getPos(v).x) < 0.05).mapToDouble(p -> p.getScalar(heat)).average().orElse(0);
+            double left = sph.particles().filter(p -> p.getPos(v).x < -0.2).mapToDouble(p -> p.getScalar(heat)).average().orElse(0);
+            double right = sph.particles().filter(p -> p.getPos(v).x > 0.2).mapToDouble(p -> p.getScalar(heat)).average().orElse(0);
+            assertEquals(0.5, near, 0.15);
+            assertTrue(left > 0.9 && right < 0.1, left + " " + right);
+        } finally {
+            sph.close();
+        }
+    }
+
+    @Test
+    void testSymmetric() {
+        SPH full = TestSPH.drop(2000, 43);
+        SPH half = TestSPH.drop(2000, 43);
+        try {
+            for (SPH sph : new SPH[] {full, half}) {
+                int c = sph.addChannel("heat", 0.05);
+                Vector3d v = new Vector3d();
+                sph.particles().forEach(p -> p.setScalar(c, p.getPos(v).y));
+            }
+            half.setSymmetric(true);
+            half.partialTasks = 3;
+            for (int i = 0; i < 20; ++i) {
+                full.update(0.002);
+                half.update(0.002);
+            }
+            TestSPH.assertSameState(full, half, 1e-9);
+            for (int i : full.pool.streamUsed().toArray())
+                assertEquals(full.new Particle(i).getScalar(0), half.new Particle(i).getScalar(0), 1e-9, "Scalar of " + i);
+        } finally {
+            full.close();
+            half.close();
+        }
+    }
+
+    // A tank whose walls and floor each hold the given loose sediment, under fluid settling onto the floor
+    private static SPH erosion(int n, double bed) {
+        SPH sph = TestBoundary.tankBlock(n, 0.05);
+        sph.setPressureSolver(SPH.PressureSolver.PCISPH);
+        sph.setErosion(sph.addChannel("sediment", 1e-3), 10, 0.01);
+        for (int b = 0; b < sph.boundarySize(); ++b)
+            sph.setBoundarySediment(b, bed);
+        return sph;
+    }
+
+    private static double[] bed(SPH sph) {
+        double[] bed = new double[sph.boundarySize()];
+        Arrays.setAll(bed, sph::getBoundarySediment);
+        return bed;
+    }
+
+    // Whatever the fluid picks up the boundary loses, and the other way around
+    @Test
+    void testErosion() {
+        SPH sph = erosion(6, 1e-3);
+        try {
+            int sediment = sph.channel("sediment");
+            assertEquals(sediment, sph.getErosionChannel());
+            double before = Arrays.stream(bed(sph)).sum();
+            while (sph.time() < 0.3)
+                sph.updateAdaptive(0.01);
+            assertEquals(0, sph.unstable());
+
+            double carried = total(sph, sediment);
+            double[] bed = bed(sph);
+            assertTrue(carried > 0, "Carried " + carried);
+            assertTrue(Arrays.stream(bed).min().orElse(0) < 1e-3);
+            assertEquals(before, carried + Arrays.stream(bed).sum(), 1e-9 * before);
+            // Fluid still below its capacity everywhere, so none of it has settled more than it picked up
+            Vector3d v = new Vector3d();
+            sph.particles().forEach(p -> assertTrue(p.getScalar(sediment) > -1e-12, "Negative at " + p.getPos(v)));
+        } finally {
+            sph.close();
+        }
+    }
+
+    // A bed far thinner than the fluid could carry away runs out rather than going negative
+    @Test
+    void testDepleted() {
+        SPH sph = erosion(6, 1e-9);
+        try {
+            double before = Arrays.stream(bed(sph)).sum();
+            while (sph.time() < 0.3) {
+                sph.updateAdaptive(0.01);
+                for (double b : bed(sph))
+                    assertTrue(b >= 0, "Bed " + b);
+            }
+            double[] bed = bed(sph);
+            assertEquals(0, Arrays.stream(bed).min().orElse(1));
+            double carried = total(sph, sph.channel("sediment"));
+            assertTrue(carried <= before * (1 + 1e-9), carried + " of " + before);
+            assertEquals(before, carried + Arrays.stream(bed).sum(), 1e-9 * before);
+        } finally {
+            sph.close();
+        }
+    }
+
+    // The boundary sums what every fluid particle exchanged with it in the same order, however threads ran
+    @Test
+    void testDeterministic() {
+        SPH first = erosion(8, 1e-3);
+        SPH second = erosion(8, 1e-3);
+        try {
+            first.partialTasks = 3;
+            second.partialTasks = 3;
+            for (int i = 0; i < 50; ++i) {
+                first.update(2e-4);
+                second.update(2e-4);
+            }
+            assertArrayEquals(bed(first), bed(second));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+}
@@ -0,0 +1,135 @@
+package agfx.fluid;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestCheckpoint {
+
+    private static void assertContinues(SPH original) throws IOException {
+        assertContinues(original, sph -> sph.update(0.002));
+    }
+
+    private static void assertContinues(SPH original, Consumer<SPH> step) throws IOException {
+        Path file = Files.createTempFile("sph", ".chk");
+        SPH restored = null;
+        try {
+            for (int i = 0; i < 10; ++i)
+                step.accept(original);
+            assertEquals(file, original.checkpoint().writeAsync(file).join());
+            restored = SPH.restore(file);
+
+            assertEquals(original.steps(), restored.steps());
+            assertEquals(original.time(), restored.time());
+            assertEquals(original.pool.getUsed(), restored.pool.getUsed());
+            for (int i = 0; i < 10; ++i) {
+                step.accept(original);
+                step.accept(restored);
+            }
+            // Bit for bit, row for row
+            int n = original.store.size;
+            assertEquals(n, restored.store.size);
+            assertArrayEquals(Arrays.copyOf(original.store.slot, n), Arrays.copyOf(restored.store.slot, n));
+            double[][] expected = original.store.columns();
+            double[][] actual = restored.store.columns();
+            for (int c = 0; c < expected.length; ++c)
+                assertArrayEquals(Arrays.copyOf(expected[c], n), Arrays.copyOf(actual[c], n), "Column " + c);
+            for (int i = 0; i < original.boundarySize(); ++i)
+                assertEquals(original.getBoundarySediment(i), restored.getBoundarySediment(i), "Boundary sediment " + i);
+            assertEquals(original.rebuilds(), restored.rebuilds());
+            assertEquals(original.time(), restored.time());
+            // The counters carry on rather than starting over
+            assertEquals(original.unstable(), restored.unstable());
+            assertEquals(original.emitted(), restored.emitted());
+            assertEquals(original.absorbed(), restored.absorbed());
+            assertEquals(original.iterations(), restored.iterations());
+            assertEquals(original.lastIterations(), restored.lastIterations());
+            assertEquals(original.lastDensityError(), restored.lastDensityError());
+            assertEquals(original.maxPrecisionError(), restored.maxPrecisionError());
+        } finally {
+            original.close();
+            if (restored != null)
+                restored.close();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testRestore() throws IOException {
+        assertContinues(TestSPH.drop(2000, 23));
+    }
+
+    @Test
+    void testRestoreVerlet() throws IOException {
+        SPH sph = TestSPH.drop(2000, 29);
+        sph.setVerletSkin(0.02);
+        sph.setSymmetric(true);
+        assertContinues(sph);
+    }
+
+    @Test
+    void testRestoreFused() throws IOException {
+        SPH sph = TestSPH.drop(2000, 31);
+        sph.setVerletSkin(0.02);
+        sph.setPipeline(SPH.Pipeline.FUSED);
+        sph.setBlockSize(128);
+        assertContinues(sph);
+    }
+
+    @Test
+    void testRestoreMorton() throws IOException {
+        SPH sph = TestSPH.drop(2000, 37);
+        sph.setCellOrder(SPH.CellOrder.MORTON);
+        assertContinues(sph);
+    }
+
+    @Test
+    void testRestorePrecisionCheck() throws IOException {
+        SPH sph = TestSPH.drop(2000, 41);
+        sph.setPrecisionCheck(3);
+        assertContinues(sph);
+    }
+
+    @Test
+    void testRestoreAdaptive() throws IOException {
+        SPH sph = TestSPH.drop(2000, 42);
+        sph.setEquationOfState(SPH.EquationOfState.TAIT);
+        sph.setCourant(0.3);
+        assertContinues(sph, s -> s.updateAdaptive(0.01));
+    }
+
+    @Test
+    void testRestorePcisph() throws IOException {
+        SPH sph = TestSPH.block(10, 0.05);
+        sph.setPressureSolver(SPH.PressureSolver.PCISPH);
+        sph.setSolverTolerance(0.002);
+        assertContinues(sph, s -> s.updateAdaptive(0.01));
+    }
+
+    @Test
+    void testRestoreBoundary() throws IOException {
+        SPH sph = TestBoundary.tankBlock(6, 0.05);
+        sph.setPressureSolver(SPH.PressureSolver.PCISPH);
+        sph.setVerletSkin(0.02);
+        assertContinues(sph, s -> s.updateAdaptive(0.01));
+    }
+
+    @Test
+    void testRestoreChannels() throws IOException {
+        SPH sph = TestBoundary.tankBlock(6, 0.05);
+        sph.setPressureSolver(SPH.PressureSolver.PCISPH);
+        int heat = sph.addChannel("heat", 0.05);
+        sph.setErosion(sph.addChannel("sediment", 1e-3), 10, 0.01);
+        for (int b = 0; b < sph.boundarySize(); ++b)
+            sph.setBoundarySediment(b, 1e-4);
+        sph.particles().forEach(p -> p.setScalar(heat, p.index % 7));
+        assertContinues(sph, s -> s.updateAdaptive(0.01));
+    }
+
+}
@@ -0,0 +1,168 @@
+package agfx.fluid;
+
+import agfx.Cloud;
+import org.joml.Vector3d;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestColliders {
+
+    // Points spread evenly over a sphere, with their normals given as directions
+    static Cloud sphereSurface(double r, int count) throws IOException {
+        StringBuilder text = new StringBuilder();
+        double golden = Math.PI * (3 - Math.sqrt(5));
+        for (int i = 0; i < count; ++i) {
+            double y = 1 - 2 * (i + 0.5) / count;
+            double s = Math.sqrt(1 - y * y);
+            double x = Math.cos(golden * i) * s, z = Math.sin(golden * i) * s;
+            text.append(r * x).append(' ').append(r * y).append(' ').append(r * z).append(' ')
+                    .append(x).append(' ').append(y).append(' ').append(z).append('\n');
+        }
+        return Cloud.load(new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    void testShapes() {
+        Vector3d n = new Vector3d();
+        Collider floor = Collider.plane(new Vector3d(0, 1, 0), new Vector3d(0, 2, 0));
+        assertEquals(0.5, floor.distance(3, 1.5, -2, n), 1e-12);
+        assertEquals(-0.25, floor.distance(0, 0.75, 0, n), 1e-12);
+        assertEquals(new Vector3d(0, 1, 0), n);
+
+        Collider ball = Collider.sphere(new Vector3d(1, 0, 0), 0.5);
+        assertEquals(0.5, ball.distance(2, 0, 0, n), 1e-12);
+        assertEquals(-0.3, ball.distance(1, 0.2, 0, n), 1e-12);
+        assertEquals(new Vector3d(0, 1, 0), n);
+
+        Collider tank = Collider.container(new Vector3d(-1), new Vector3d(1));
+        assertEquals(0.25, tank.distance(0.75, 0, 0.5, n), 1e-12);
+        assertEquals(-0.5, tank.distance(0, -1.5, 0, n), 1e-12);
+        assertEquals(new Vector3d(0, 1, 0), n);
+        assertEquals(-Math.sqrt(2) / 4, tank.distance(1.25, 0, -1.25, n), 1e-12);
+        assertEquals(0, n.distance(-Math.sqrt(0.5), 0, Math.sqrt(0.5)), 1e-12);
+    }
+
+    // Where the surface gives no direction out, a particle still leaves by the same one rather than a stale normal
+    @Test
+    void testCenter() {
+        Vector3d n = new Vector3d(0.3, -0.4, 0.5);
+        Collider ball = Collider.sphere(new Vector3d(1, 2, 3), 0.5);
+        assertEquals(-0.5, ball.distance(1, 2, 3, n), 1e-12);
+        assertEquals(new Vector3d(0, 1, 0), n);
+
+        float[] flat = new float[8];
+        Arrays.fill(flat, -1);
+        VoxelSDF block = new VoxelSDF(new Vector3d(-1), 2, 2, 2, 2, flat);
+        n.set(0.3, -0.4, 0.5);
+        assertEquals(-1, block.distance(0.2, 0.1, -0.3, n), 1e-12);
+        assertEquals(new Vector3d(0, 1, 0), n);
+
+        SPH sph = new SPH(1, 0.1);
+        try {
+            Fluid f = new Fluid(1e4, 1000, 0, 0.01, 10, 1e-4);
+            sph.addParticle(f, 1e-3).setPos(new Vector3d(1, 2, 3));
+            sph.addCollider(ball);
+            sph.update(1e-3);
+            Vector3d v = sph.particles().findFirst().get().getPos(new Vector3d());
+            assertEquals(0, ball.distance(v.x, v.y, v.z, n), 1e-9, "At " + v);
+        } finally {
+            sph.close();
+        }
+    }
+
+    @Test
+    void testVoxelSphere() throws IOException {
+        double r = 0.3, cell = 0.02;
+        VoxelSDF sdf = VoxelSDF.of(sphereSurface(r, 4000), cell);
+        Random rng = new Random(7);
+        Vector3d n = new Vector3d();
+        Vector3d min = sdf.min(new Vector3d()), max = sdf.max(new Vector3d());
+        assertTrue(min.x < -r && max.x > r, min + " " + max);
+        for (int i = 0; i < 20000; ++i) {
+            double x = rng.nextDouble() - 0.5, y = rng.nextDouble() - 0.5, z = rng.nextDouble() - 0.5;
+            double exact = Math.sqrt(x * x + y * y + z * z) - r;
+            double d = sdf.distance(x, y, z, n);
+            if (Math.abs(exact) < 2 * cell)
+                assertEquals(exact, d, cell / 2, "Near the surface at " + x + " " + y + " " + z);
+            else assertEquals(Math.signum(exact), Math.signum(d), "Sign at " + x + " " + y + " " + z);
+            if (d < 0 && exact > -r / 2) {
+                // The field's own normal points away from the center
+                Vector3d radial = new Vector3d(x, y, z).normalize();
+                assertTrue(n.dot(radial) > 0.95, "Normal " + n + " at " + radial);
+            }
+        }
+        // Moved with the field
+        sdf.offset.set(2, 0, 0);
+        assertEquals(-r, sdf.distance(2, 0, 0, n), cell);
+        assertTrue(sdf.distance(0, 0, 0, n) > 1);
+    }
+
+    // The bundled clouds store the end point of each normal rather than its direction
+    @Test
+    void testBundled() throws IOException {
+        Path text = Paths.get("res/clouds/cube10000.txt");
+        if (!Files.exists(text))
+            return;
+        Cloud cloud;
+        try (InputStream in = Files.newInputStream(text)) {
+            cloud = Cloud.load(in);
+        }
+        VoxelSDF sdf = VoxelSDF.of(cloud, 0.05);
+        Vector3d n = new Vector3d();
+        assertEquals(-1, sdf.distance(0, 0, 0, n), 0.05);
+        assertEquals(-0.5, sdf.distance(0, 0.5, 0, n), 0.05);
+        assertTrue(n.y > 0.99, "Normal " + n);
+        assertEquals(0.1, sdf.distance(0.3, 1.1, -0.2, n), 0.01);
+        assertTrue(sdf.distance(3, 3, 3, n) > 2);
+    }
+
+    // Fluid poured over a solid ball onto a floor, neither of them walls nor grid bounds
+    @Test
+    void testDrop() throws IOException {
+        double d = 0.05;
+        SPH sph = new SPH(512, 2 * d);
+        try {
+            Fluid f = new Fluid(1e4, 1000, 0, 0.01, 10, 1e-4);
+            sph.gravity.set(0, -9.8, 0);
+            sph.setEquationOfState(SPH.EquationOfState.TAIT);
+            sph.setPressureSolver(SPH.PressureSolver.PCISPH);
+            for (int i = 0; i < 8; ++i)
+                for (int j = 0; j < 8; ++j)
+                    for (int k = 0; k < 8; ++k)
+                        sph.addParticle(f, f.restDensity * d * d * d).setPos(new Vector3d((i - 3.5) * d, 0.5 + j * d, (k - 3.5) * d));
+            Collider floor = Collider.plane(new Vector3d(0, -0.2, 0), new Vector3d(0, 1, 0));
+            VoxelSDF ball = VoxelSDF.of(sphereSurface(0.15, 2000), 0.02);
+            sph.addCollider(floor);
+            sph.addCollider(ball);
+
+            Vector3d n = new Vector3d();
+            Vector3d v = new Vector3d();
+            while (sph.time() < 0.6) {
+                sph.updateAdaptive(0.01);
+                sph.particles().forEach(p -> {
+                    p.getPos(v);
+                    assertTrue(floor.distance(v.x, v.y, v.z, n) > -1e-9, "Under the floor at " + v);
+                    assertTrue(ball.distance(v.x, v.y, v.z, n) > -0.002, "Inside the ball at " + v);
+                });
+            }
+            assertEquals(0, sph.unstable());
+            // Landed and spread over the floor around the ball
+            double lowest = sph.particles().mapToDouble(p -> p.getPos(v).y).min().orElse(0);
+            assertEquals(-0.2, lowest, 0.05);
+        } finally {
+            sph.close();
+        }
+    }
+
+}
@@ -0,0 +1,71 @@
+package agfx.fluid;
+
+import org.joml.Vector3d;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestEmitters {
+
+    // Rows and slots agree, and the pool is as dense as the store
+    private static void assertConsistent(SPH sph) {
+        ParticleStore s = sph.store;
+        assertEquals(s.size, sph.pool.used());
+        assertArrayEquals(IntStream.range(0, s.size).toArray(), sph.pool.streamUsed().toArray());
+        for (int r = 0; r < s.size; ++r)
+            assertEquals(r, s.row[s.slot[r]]);
+        assertEquals(s.capacity(), sph.pool.blocks());
+    }
+
+    @Test
+    void testGrowth() {
+        SPH sph = new SPH(16, 0.1, new Vector3d(-0.5), new Vector3d(0.5));
+        try {
+            Fluid f = new Fluid(1e4, 1000, 0, 0.01, 10, 1e-4);
+            sph.gravity.set(0, -9.8, 0);
+            // Small shapes, so that each step's particles land within a kernel radius of each other
+            Emitter box = new Emitter(Emitter.box(new Vector3d(-0.02, 0.2, -0.02), new Vector3d(0.02, 0.24, 0.02)), f, 0.05, 2000, 1);
+            Emitter disc = new Emitter(Emitter.disc(new Vector3d(0, 0.45, 0), new Vector3d(0, 1, 0), 0.03), f, 0.05, 1000, 2);
+            disc.velocity.set(0, -1, 0);
+            sph.addEmitter(box);
+            sph.addEmitter(disc);
+            for (int i = 0; i < 100; ++i)
+                sph.update(0.002);
+
+            // 4 + 2 particles per step
+            assertEquals(600, sph.emitted());
+            assertEquals(600, sph.store.size());
+            assertTrue(sph.store.capacity() >= 600);
+            assertConsistent(sph);
+        } finally {
+            sph.close();
+        }
+    }
+
+    @Test
+    void testSink() {
+        SPH sph = TestSPH.drop(1000, 37);
+        try {
+            Fluid f = sph.store.fluid[0];
+            sph.addEmitter(new Emitter(Emitter.point(new Vector3d(0, 0.4, 0), 0.05), f, sph.store.mass[0], 5000, 3));
+            Sink drain = Sink.box(new Vector3d(-0.5, -0.5, -0.5), new Vector3d(0.5, -0.1, 0.5));
+            sph.addSink(drain);
+            for (int i = 0; i < 50; ++i) {
+                sph.update(0.002);
+                assertConsistent(sph);
+            }
+            assertTrue(sph.absorbed() > 0);
+            assertEquals(1000 + sph.emitted() - sph.absorbed(), sph.store.size());
+
+            // Each particle keeps its own state through the remap
+            sph.removeSink(drain);
+            Vector3d pos = new Vector3d();
+            sph.particles().forEach(p -> assertEquals((float) p.getPos(pos).x, sph.pool.getFloat(p.index, 0)));
+        } finally {
+            sph.close();
+        }
+    }
+
+}
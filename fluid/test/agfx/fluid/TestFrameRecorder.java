@@ -0,0 +1,116 @@
+package agfx.fluid;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestFrameRecorder {
+
+    // What the store held at every recorded step, captured synchronously
+    private static List<double[][]> expected(SPH sph, int every, List<int[]> slots) {
+        List<double[][]> frames = new ArrayList<>();
+        sph.addStepListener(s -> {
+            if (s.steps() % every != 0)
+                return;
+            ParticleStore st = s.store;
+            int n = st.size;
+            slots.add(Arrays.copyOf(st.slot, n));
+            frames.add(new double[][] {
+                    Arrays.copyOf(st.px, n), Arrays.copyOf(st.py, n), Arrays.copyOf(st.pz, n),
+                    Arrays.copyOf(st.nx, n), Arrays.copyOf(st.ny, n), Arrays.copyOf(st.nz, n),
+                    Arrays.copyOf(st.density, n), Arrays.copyOf(st.pressure, n)
+            });
+        });
+        return frames;
+    }
+
+    @Test
+    void testRoundTrip() throws IOException {
+        for (FrameRecorder.Compression c : FrameRecorder.Compression.values()) {
+            Path file = Files.createTempFile("frames", ".rec");
+            SPH sph = TestSPH.drop(1000, 17);
+            try {
+                List<int[]> slots = new ArrayList<>();
+                List<double[][]> frames = expected(sph, 3, slots);
+                FrameRecorder recorder;
+                try (FrameRecorder r = new FrameRecorder(file, 3, c, FrameRecorder.Policy.BLOCK)) {
+                    recorder = r;
+                    sph.addStepListener(recorder);
+                    for (int i = 0; i < 12; ++i)
+                        sph.update(0.002);
+                }
+                // Closing waits for the writer to finish
+                assertEquals(4, recorder.framesWritten());
+                assertEquals(0, recorder.framesDropped());
+                assertEquals(Files.size(file), FrameRecorder.HEADER + recorder.bytesWritten());
+
+                try (FrameReader reader = new FrameReader(file)) {
+                    for (int k = 0; k < frames.size(); ++k) {
+                        FrameReader.Frame f = reader.next();
+                        assertNotNull(f);
+                        assertEquals(3 * (k + 1), f.step);
+                        assertEquals(c, f.compression);
+                        assertArrayEquals(slots.get(k), f.slot);
+                        for (int ch = 0; ch < FrameRecorder.CHANNELS; ++ch) {
+                            double[] e = frames.get(k)[ch];
+                            double[] a = f.channels[ch];
+                            double range = Arrays.stream(e).max().getAsDouble() - Arrays.stream(e).min().getAsDouble();
+                            for (int i = 0; i < e.length; ++i) {
+                                switch (c) {
+                                    case NONE: assertEquals(e[i], a[i]); break;
+                                    case DELTA: assertEquals((float) e[i], a[i]); break;
+                                    case QUANTIZED: assertEquals(e[i], a[i], range / 0xFFFF); break;
+                                }
+                            }
+                        }
+                    }
+                    assertNull(reader.next());
+                }
+            } finally {
+                sph.close();
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void testDrop() throws IOException {
+        // A writer far slower than the simulation
+        WritableByteChannel slow = new WritableByteChannel() {
+            public int write(ByteBuffer src) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                int n = src.remaining();
+                src.position(src.limit());
+                return n;
+            }
+            public boolean isOpen() { return true; }
+            public void close() {}
+        };
+        SPH sph = TestSPH.drop(500, 19);
+        FrameRecorder recorder;
+        try (FrameRecorder r = new FrameRecorder(slow, 1, FrameRecorder.Compression.NONE, FrameRecorder.Policy.DROP)) {
+            recorder = r;
+            sph.addStepListener(recorder);
+            for (int i = 0; i < 20; ++i)
+                sph.update(0.002);
+        } finally {
+            sph.close();
+        }
+        assertEquals(20, recorder.framesWritten() + recorder.framesDropped());
+        assertTrue(recorder.framesDropped() > 0);
+    }
+
+}
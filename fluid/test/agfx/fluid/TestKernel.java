@@ -1,7 +1,9 @@
 package agfx.fluid;
 
 import agfx.gl.Utils;
+import org.joml.Vector3d;
 import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
 
 import java.util.Random;
 
@@ -20,4 +22,98 @@ public class TestKernel {
         assertEquals(expected, actual, Utils.EPSILON, String.format("%f^%d", d, i));
     }
 
+    private static void assertClose(double expected, double actual, String message) {
+        assertEquals(expected, actual, 1e-12 * Math.max(1, Math.abs(expected)), message);
+    }
+
+    // Random offsets within h, including some right at the edge and some nearly coincident
+    private static Vector3d[] offsets(int n, double h) {
+        Vector3d[] r = new Vector3d[n];
+        for (int i = 0; i < n; ++i) {
+            Vector3d v = new Vector3d(rng.nextGaussian(), rng.nextGaussian(), rng.nextGaussian()).normalize();
+            double length = i % 10 == 0 ? h * (1 - 1e-9) : i % 10 == 1 ? h * 1e-6 : h * rng.nextDouble();
+            r[i] = v.mul(length);
+        }
+        return r;
+    }
+
+    @RepeatedTest(10)
+    void testScalar() {
+        double h = 0.01 + rng.nextDouble();
+        KernelEvaluator k = new KernelEvaluator(h);
+        Vector3d g = new Vector3d();
+        for (Vector3d r : offsets(100, h)) {
+            double d2 = r.lengthSquared(), d = r.length();
+            assertClose(Kernel.POLY_6.kernel(r, h), k.poly6(d2), "poly6 " + r);
+            assertClose(Kernel.POLY_6.gradient(r, h, g).x, r.x * k.poly6Gradient(d2), "poly6 gradient " + r);
+            assertClose(Kernel.POLY_6.laplacian(r, h), k.poly6Laplacian(d2), "poly6 laplacian " + r);
+            assertClose(Kernel.SPIKY.gradient(r, h, g).y, r.y * k.spikyGradient(d), "spiky gradient " + r);
+            assertClose(Kernel.VISCOSITY.laplacian(r, h), k.viscosityLaplacian(d), "viscosity laplacian " + r);
+        }
+    }
+
+    private static void assertBatches(KernelEvaluator k, int n) {
+        double h = k.h;
+        Vector3d[] r = offsets(n, h);
+        double[] dx = new double[n], dy = new double[n], dz = new double[n], mass = new double[n];
+        double[] spiky = new double[n], viscosity = new double[n], gradient = new double[n], laplacian = new double[n];
+        double density = 0;
+        for (int i = 0; i < n; ++i) {
+            dx[i] = r[i].x; dy[i] = r[i].y; dz[i] = r[i].z;
+            mass[i] = rng.nextDouble();
+            density += mass[i] * Kernel.POLY_6.kernel(r[i], h);
+        }
+        assertEquals(density, k.density(dx, dy, dz, mass, n), 1e-12 * Math.max(1, density), "density over " + n);
+
+        k.forceFactors(dx, dy, dz, n, spiky, viscosity, gradient, laplacian);
+        Vector3d g = new Vector3d();
+        for (int i = 0; i < n; ++i) {
+            assertClose(Kernel.SPIKY.gradient(r[i], h, g).z, dz[i] * spiky[i], "spiky gradient " + r[i]);
+            assertClose(Kernel.VISCOSITY.laplacian(r[i], h), viscosity[i], "viscosity laplacian " + r[i]);
+            assertClose(Kernel.POLY_6.gradient(r[i], h, g).x, dx[i] * gradient[i], "poly6 gradient " + r[i]);
+            assertClose(Kernel.POLY_6.laplacian(r[i], h), laplacian[i], "poly6 laplacian " + r[i]);
+        }
+    }
+
+    // Single precision factors are only held to float rounding, relative to the size of each one
+    private static void assertFloatBatches(KernelEvaluator k, int n) {
+        double h = k.h;
+        Vector3d[] r = offsets(n, h);
+        float[] dx = new float[n], dy = new float[n], dz = new float[n], mass = new float[n];
+        float[] spiky = new float[n], viscosity = new float[n], gradient = new float[n], laplacian = new float[n];
+        double density = 0, scale = 0;
+        for (int i = 0; i < n; ++i) {
+            dx[i] = (float) r[i].x; dy[i] = (float) r[i].y; dz[i] = (float) r[i].z;
+            mass[i] = (float) rng.nextDouble();
+            density += mass[i] * Kernel.POLY_6.kernel(new Vector3d(dx[i], dy[i], dz[i]), h);
+            scale += mass[i] * k.poly6(0);
+        }
+        // Against the largest the sum could be, since offsets right at h round to a kernel of either sign
+        assertEquals(density, k.density(dx, dy, dz, mass, n), Math.max(Double.MIN_NORMAL, 1e-5 * scale), "density over " + n);
+
+        k.forceFactors(dx, dy, dz, n, spiky, viscosity, gradient, laplacian);
+        for (int i = 0; i < n; ++i) {
+            double d2 = dx[i] * dx[i] + dy[i] * dy[i] + dz[i] * dz[i];
+            double d = Math.sqrt(d2);
+            assertEquals(k.spikyGradient(d), spiky[i], 1e-5 * (Math.abs(k.spikyGradient(d)) + Math.abs(k.spikyGradient(h / 2))), "spiky gradient " + r[i]);
+            assertEquals(k.viscosityLaplacian(d), viscosity[i], 1e-5 * k.viscosityLaplacian(0), "viscosity laplacian " + r[i]);
+            assertEquals(k.poly6Gradient(d2), gradient[i], 1e-5 * Math.abs(k.poly6Gradient(0)), "poly6 gradient " + r[i]);
+            assertEquals(k.poly6Laplacian(d2), laplacian[i], 1e-5 * Math.abs(k.poly6Laplacian(0)), "poly6 laplacian " + r[i]);
+        }
+    }
+
+    // Lengths around and between vector widths, so that every tail length is covered
+    @Test
+    void testBatches() {
+        double h = 0.1;
+        KernelEvaluator scalar = new KernelEvaluator(h);
+        KernelEvaluator best = KernelEvaluator.of(h);
+        for (int n = 0; n <= 70; ++n) {
+            assertBatches(scalar, n);
+            assertBatches(best, n);
+            assertFloatBatches(scalar, n);
+            assertFloatBatches(best, n);
+        }
+    }
+
 }
@@ -0,0 +1,168 @@
+package agfx.fluid;
+
+import org.joml.Vector3d;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TestNeighbors {
+
+    private static final Random rng = new Random();
+
+    static int[] bruteForce(ParticleStore s, int p, double h) {
+        return IntStream.range(0, s.size)
+                .filter(q -> q != p)
+                .filter(q -> new Vector3d(s.px[p], s.py[p], s.pz[p]).distanceSquared(s.px[q], s.py[q], s.pz[q]) < h*h)
+                .toArray();
+    }
+
+    @RepeatedTest(10)
+    void testAgainstBruteForce() {
+        for (SPH.CellOrder order : SPH.CellOrder.values())
+            assertAgainstBruteForce(order);
+    }
+
+    private void assertAgainstBruteForce(SPH.CellOrder order) {
+        int count = 2000;
+        double h = 0.1;
+        Vector3d min = new Vector3d(-0.5, -0.25, 0);
+        Vector3d max = new Vector3d(0.5, 0.25, 0.33);
+        SPH sph = new SPH(count, h, min, max);
+        try {
+            sph.setCellOrder(order);
+            Fluid f = new Fluid(1, 1, 0, 0, 0, 0);
+            for (int i = 0; i < count; ++i) {
+                Vector3d pos = new Vector3d(rng.nextDouble(), rng.nextDouble(), rng.nextDouble()).mul(max.sub(min, new Vector3d())).add(min);
+                // Some particles sit exactly on the walls, as they do after being clamped
+                if (i % 50 == 0)
+                    pos.set(max);
+                if (i % 50 == 1)
+                    pos.set(min);
+                sph.addParticle(f, 1).setPos(pos);
+            }
+            sph.sort();
+            sph.findNeighbors();
+
+            ParticleStore s = sph.store;
+            for (int p = 0; p < s.size; ++p) {
+                int[] actual = Arrays.copyOfRange(sph.neighbors().indices, sph.neighbors().start(p), sph.neighbors().end(p));
+                Arrays.sort(actual);
+                assertArrayEquals(bruteForce(s, p, h), actual, order + " neighbors of " + p);
+            }
+        } finally {
+            sph.close();
+        }
+    }
+
+    // Clusters far apart on either side of the origin, which a dense grid over their bounds could not hold
+    @Test
+    void testOpen() {
+        int count = 2000;
+        double h = 0.1;
+        SPH sph = new SPH(count, h);
+        try {
+            Fluid f = new Fluid(1, 1, 0, 0, 0, 0);
+            Vector3d[] centers = {new Vector3d(-5e3, 0, 0), new Vector3d(0, 2e4, -1), new Vector3d(1e3, -1e3, 7e3), new Vector3d()};
+            for (int i = 0; i < count; ++i) {
+                Vector3d pos = new Vector3d(rng.nextDouble(), rng.nextDouble(), rng.nextDouble()).sub(0.5, 0.5, 0.5).mul(0.5);
+                sph.addParticle(f, 1).setPos(pos.add(centers[i % centers.length]));
+            }
+            assertEquals(SPH.CellOrder.MORTON, sph.getCellOrder());
+            sph.sort();
+            sph.findNeighbors();
+
+            ParticleStore s = sph.store;
+            for (int p = 0; p < s.size; ++p) {
+                int[] actual = Arrays.copyOfRange(sph.neighbors().indices, sph.neighbors().start(p), sph.neighbors().end(p));
+                Arrays.sort(actual);
+                assertArrayEquals(bruteForce(s, p, h), actual, "Neighbors of " + p);
+            }
+            assertThrows(IllegalStateException.class, () -> sph.setCellOrder(SPH.CellOrder.ROW_MAJOR));
+        } finally {
+            sph.close();
+        }
+    }
+
+    @Test
+    void testVerletLists() {
+        int count = 1000;
+        SPH exact = TestSPH.drop(count, 7);
+        SPH verlet = TestSPH.drop(count, 7);
+        try {
+            verlet.setVerletSkin(0.02);
+            for (int i = 0; i < 50; ++i) {
+                exact.update(0.002);
+                verlet.update(0.002);
+            }
+            assertEquals(count, verlet.store.size);
+            assertEquals(1, exact.rebuildFrequency());
+            assertTrue(verlet.rebuildFrequency() < 0.5, "Rebuilt " + verlet.rebuilds() + " times");
+            TestSPH.assertSameState(exact, verlet, 1e-9);
+        } finally {
+            exact.close();
+            verlet.close();
+        }
+    }
+
+    // The rows a stable sort by cell would produce, as slots
+    private static int[] stableOrder(SPH sph) {
+        ParticleStore s = sph.store;
+        Integer[] rows = IntStream.range(0, s.size).boxed().toArray(Integer[]::new);
+        Arrays.sort(rows, Comparator.comparingLong(sph::cell));
+        return Arrays.stream(rows).mapToInt(r -> s.slot[r]).toArray();
+    }
+
+    private static void assertSortsStably(SPH sph) {
+        int[] expected = stableOrder(sph);
+        sph.sort();
+        assertArrayEquals(expected, Arrays.copyOf(sph.store.slot, sph.store.size));
+    }
+
+    private static void assertSorts(int count, SPH.CellOrder cells) {
+        SPH sph = new SPH(count, 0.1, new Vector3d(-0.5), new Vector3d(0.5));
+        try {
+            sph.setCellOrder(cells);
+            Fluid f = new Fluid(1, 1, 0, 0, 0, 0);
+            Random rng = new Random(count);
+            for (int i = 0; i < count; ++i)
+                sph.addParticle(f, 1).setPos(new Vector3d(rng.nextDouble(), rng.nextDouble(), rng.nextDouble()).sub(0.5, 0.5, 0.5));
+            assertSortsStably(sph);
+
+            // Nearly sorted, which takes the insertion path
+            ParticleStore s = sph.store;
+            for (int r = 0; r < s.size; r += 37)
+                s.px[r] += 0.05;
+            assertSortsStably(sph);
+
+            // Shuffled
+            int[] order = IntStream.range(0, s.size).toArray();
+            for (int i = order.length - 1; i > 0; --i) {
+                int j = rng.nextInt(i + 1);
+                int t = order[i]; order[i] = order[j]; order[j] = t;
+            }
+            s.permute(order);
+            assertSortsStably(sph);
+        } finally {
+            sph.close();
+        }
+    }
+
+    @Test
+    void testSort() {
+        for (SPH.CellOrder cells : SPH.CellOrder.values()) {
+            assertSorts(5000, cells);
+            // Few particles in many cells, which takes the radix path
+            assertSorts(100, cells);
+        }
+    }
+
+}
@@ -0,0 +1,334 @@
+package agfx.fluid;
+
+import org.joml.Vector3d;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestSPH {
+
+    static SPH drop(int count, long seed) {
+        Random rng = new Random(seed);
+        double h = 0.1;
+        SPH sph = new SPH(count, h, new Vector3d(-0.5), new Vector3d(0.5));
+        // Soft enough to stay stable over a short run at dt = 0.002
+        Fluid f = new Fluid(1e4, 1000, 0, 0.01, 10, 1e-4);
+        sph.gravity.set(0, -9.8, 0);
+        while (sph.store.size < count) {
+            Vector3d pos = new Vector3d(rng.nextDouble(), rng.nextDouble(), rng.nextDouble()).mul(0.6).sub(0.3, 0.3, 0.3);
+            if (pos.lengthSquared() < 0.09)
+                sph.addParticle(f, 1000 * 0.113 / count).setPos(pos).setVel(new Vector3d(rng.nextDouble(), rng.nextDouble(), rng.nextDouble()).sub(0.5, 0.5, 0.5));
+        }
+        return sph;
+    }
+
+    static void assertSameState(SPH expected, SPH actual, double tolerance) {
+        assertEquals(expected.store.size, actual.store.size);
+        Vector3d a = new Vector3d();
+        Vector3d b = new Vector3d();
+        for (int i : expected.pool.streamUsed().toArray()) {
+            SPH.Particle e = expected.new Particle(i);
+            SPH.Particle v = actual.new Particle(i);
+            assertEquals(0, e.getPos(a).distance(v.getPos(b)), tolerance, "Position of " + i);
+            assertEquals(0, e.getVel(a).distance(v.getVel(b)), tolerance, "Velocity of " + i);
+            assertEquals(e.density(), v.density(), tolerance * e.density(), "Density of " + i);
+        }
+    }
+
+    @Test
+    void testSymmetric() {
+        int count = 3000;
+        SPH full = drop(count, 11);
+        SPH half = drop(count, 11);
+        try {
+            half.setSymmetric(true);
+            half.partialTasks = 3;
+            for (int i = 0; i < 20; ++i) {
+                full.update(0.002);
+                half.update(0.002);
+            }
+            assertSameState(full, half, 1e-9);
+        } finally {
+            full.close();
+            half.close();
+        }
+    }
+
+    @Test
+    void testFused() {
+        int count = 3000;
+        SPH staged = drop(count, 13);
+        SPH fused = drop(count, 13);
+        try {
+            fused.setPipeline(SPH.Pipeline.FUSED);
+            fused.setBlockSize(100);
+            for (int i = 0; i < 20; ++i) {
+                staged.update(0.002);
+                fused.update(0.002);
+            }
+            assertSameState(staged, fused, 1e-12);
+        } finally {
+            staged.close();
+            fused.close();
+        }
+    }
+
+    @Test
+    void testUnstable() {
+        SPH sph = drop(1000, 41);
+        try {
+            sph.update(0.002);
+            ParticleStore s = sph.store;
+            int[] bad = {0, 17, 500, s.size - 1};
+            int[] slots = new int[bad.length];
+            for (int i = 0; i < bad.length; ++i)
+                slots[i] = s.slot[bad[i]];
+            s.px[bad[0]] = Double.NaN;
+            s.vy[bad[1]] = Double.POSITIVE_INFINITY;
+            s.az[bad[2]] = Double.NaN;
+            s.vx[bad[3]] = Double.NEGATIVE_INFINITY;
+
+            sph.update(0.002);
+            assertEquals(bad.length, sph.lastUnstable());
+            assertEquals(1000 - bad.length, s.size);
+            assertEquals(s.size, sph.pool.used());
+            assertArrayEquals(IntStream.range(0, s.size).toArray(), sph.pool.streamUsed().toArray());
+            for (int r = 0; r < s.size; ++r) {
+                assertTrue(s.isFinite(r));
+                assertEquals(r, s.row[s.slot[r]]);
+            }
+
+            sph.update(0.002);
+            assertEquals(0, sph.lastUnstable());
+            assertEquals(bad.length, sph.unstable());
+        } finally {
+            sph.close();
+        }
+    }
+
+    @Test
+    void testOpen() {
+        int count = 1000;
+        SPH walled = drop(count, 43);
+        SPH open = drop(count, 43);
+        try {
+            walled.setCellOrder(SPH.CellOrder.MORTON);
+            open.setWalls(false);
+            // Identical until something reaches a wall
+            for (int i = 0; i < 20; ++i) {
+                walled.update(0.002);
+                open.update(0.002);
+            }
+            assertSameState(walled, open, 1e-9);
+
+            for (int i = 0; i < 300; ++i)
+                open.update(0.002);
+            ParticleStore s = open.store;
+            assertEquals(count, s.size);
+            assertTrue(IntStream.range(0, s.size).allMatch(s::isFinite));
+            assertTrue(IntStream.range(0, s.size).anyMatch(r -> s.py[r] < -0.5), "Nothing fell through the floor");
+        } finally {
+            walled.close();
+            open.close();
+        }
+    }
+
+    // The check only looks, so a checked run steps just like an unchecked one
+    @Test
+    void testPrecisionCheck() {
+        int count = 2000;
+        SPH plain = drop(count, 47);
+        SPH checked = drop(count, 47);
+        try {
+            checked.setPrecisionCheck(5);
+            for (int i = 0; i < 50; ++i) {
+                plain.update(0.002);
+                checked.update(0.002);
+            }
+            assertTrue(checked.maxPrecisionError() > 0, "Float densities matched double exactly");
+            assertTrue(checked.maxPrecisionError() < 1e-5, "Float densities off by " + checked.maxPrecisionError());
+            assertEquals(0, plain.maxPrecisionError());
+            assertSameState(plain, checked, 1e-12);
+        } finally {
+            plain.close();
+            checked.close();
+        }
+    }
+
+    @Test
+    void testTait() {
+        SPH sph = drop(1000, 53);
+        try {
+            sph.setEquationOfState(SPH.EquationOfState.TAIT);
+            sph.update(0.002);
+            ParticleStore s = sph.store;
+            for (int r = 0; r < s.size; ++r) {
+                Fluid f = s.fluid[r];
+                double b = f.restDensity * f.speedOfSound * f.speedOfSound / 7;
+                double expected = b * (Math.pow(s.density[r] / f.restDensity, 7) - 1);
+                assertEquals(expected, s.pressure[r], 1e-12 * b * Math.pow(s.density[r] / f.restDensity, 7), "Pressure of " + r);
+            }
+        } finally {
+            sph.close();
+        }
+    }
+
+    @Test
+    void testStableTimeStep() {
+        double h = 0.1;
+        SPH sph = new SPH(2, h, new Vector3d(-1), new Vector3d(1));
+        try {
+            assertEquals(Double.POSITIVE_INFINITY, sph.stableTimeStep());
+            Fluid f = new Fluid(1e4, 1000, 0, 50, 10, 0);
+            sph.addParticle(f, 1).setPos(new Vector3d(-0.02, 0, 0)).setVel(new Vector3d(3, 0, 0));
+            sph.addParticle(f, 1).setPos(new Vector3d(0.02, 0, 0));
+
+            // At rest the ideal gas carries sound at sqrt(293.15 / molar mass), and viscosity limits too
+            double viscous = 0.125 * h * h / (50.0 / 1000);
+            assertEquals(Math.min(0.4 * h / (Math.sqrt(293.15 / 1e4) + 3), viscous), sph.stableTimeStep(), 1e-15);
+            sph.setEquationOfState(SPH.EquationOfState.TAIT);
+            assertEquals(0.4 * h / (10 + 3), sph.stableTimeStep(), 1e-15);
+            sph.setCourant(0.1);
+            assertEquals(0.1 * h / (10 + 3), sph.stableTimeStep(), 1e-15);
+
+            // Each limit in turn, from the state the step left behind
+            sph.setCourant(10);
+            sph.gravity.set(0, -9.8, 0);
+            double dt = sph.updateAdaptive(1);
+            assertEquals(Math.min(10 * h / 13, viscous), dt, 1e-15);
+            assertEquals(dt, sph.time());
+            ParticleStore s = sph.store;
+            double speed = 0, accel = 0;
+            for (int r = 0; r < s.size; ++r) {
+                speed = Math.max(speed, Math.sqrt(s.vx[r] * s.vx[r] + s.vy[r] * s.vy[r] + s.vz[r] * s.vz[r]));
+                accel = Math.max(accel, Math.sqrt(s.ax[r] * s.ax[r] + s.ay[r] * s.ay[r] + s.az[r] * s.az[r]));
+            }
+            assertTrue(accel > 0);
+            double expected = Math.min(Math.min(10 * h / (10 + speed), viscous), 0.25 * Math.sqrt(h / accel));
+            assertEquals(expected, sph.stableTimeStep(), 1e-12 * expected);
+            assertEquals(1e-3, sph.updateAdaptive(1e-3));
+            assertEquals(dt + 1e-3, sph.time(), 1e-15);
+        } finally {
+            sph.close();
+        }
+    }
+
+    @Test
+    void testAdaptive() {
+        for (SPH.Pipeline pipeline : SPH.Pipeline.values()) {
+            SPH sph = drop(2000, 54);
+            try {
+                sph.setPipeline(pipeline);
+                sph.setEquationOfState(SPH.EquationOfState.TAIT);
+                double total = 0;
+                double smallest = Double.POSITIVE_INFINITY;
+                while (sph.time() < 0.1) {
+                    double stable = sph.stableTimeStep();
+                    double dt = sph.updateAdaptive(0.01);
+                    assertEquals(Math.min(0.01, stable), dt);
+                    total += dt;
+                    smallest = Math.min(smallest, dt);
+                }
+                assertEquals(total, sph.time(), 1e-12);
+                // The stable step, not the cap, decided the steps
+                assertTrue(smallest < 0.01, "Never limited below the cap");
+                assertEquals(0, sph.unstable());
+                for (int r = 0; r < sph.store.size; ++r)
+                    assertTrue(sph.store.isFinite(r));
+            } finally {
+                sph.close();
+            }
+        }
+    }
+
+    // A block of fluid on the floor, packed at rest density on a lattice rather than randomly, which would start
+    // with clumps well above rest that an incompressible solver has to blow apart
+    static SPH block(int side, double spacing) {
+        SPH sph = new SPH(side * side * side, 2 * spacing, new Vector3d(-0.5), new Vector3d(0.5));
+        Fluid f = new Fluid(1e4, 1000, 0, 0.01, 10, 1e-4);
+        sph.gravity.set(0, -9.8, 0);
+        double x0 = -side * spacing / 2;
+        for (int i = 0; i < side; ++i)
+            for (int j = 0; j < side; ++j)
+                for (int k = 0; k < side; ++k)
+                    sph.addParticle(f, f.restDensity * spacing * spacing * spacing)
+                            .setPos(new Vector3d(x0 + (i + 0.5) * spacing, -0.5 + (j + 0.5) * spacing, x0 + (k + 0.5) * spacing));
+        return sph;
+    }
+
+    @Test
+    void testPcisph() {
+        SPH explicit = block(10, 0.05);
+        SPH pcisph = block(10, 0.05);
+        try {
+            explicit.setEquationOfState(SPH.EquationOfState.TAIT);
+            pcisph.setPressureSolver(SPH.PressureSolver.PCISPH);
+            pcisph.setSolverTolerance(0.005);
+            pcisph.setMaxIterations(20);
+            int steps = 0;
+            double densest = 0;
+            while (pcisph.time() < 0.2) {
+                pcisph.updateAdaptive(0.01);
+                ++steps;
+                assertTrue(pcisph.lastIterations() >= 3 && pcisph.lastIterations() <= 20, "Iterations " + pcisph.lastIterations());
+                // Either converged or out of iterations
+                assertTrue(pcisph.lastIterations() == 20 || pcisph.lastDensityError() <= 0.005,
+                        "Stopped at " + pcisph.lastDensityError() + " after " + pcisph.lastIterations());
+                assertTrue(pcisph.lastMaxDensityError() >= pcisph.lastDensityError());
+                densest = Math.max(densest, Arrays.stream(pcisph.store.density, 0, pcisph.store.size).max().orElse(0));
+            }
+            assertTrue(pcisph.iterations() >= 3L * steps, pcisph.iterations() + " iterations over " + steps + " steps");
+            assertTrue(pcisph.iterations() <= 20L * steps, pcisph.iterations() + " iterations over " + steps + " steps");
+            assertTrue(pcisph.lastDensityError() <= 0.005, "Ended at " + pcisph.lastDensityError());
+            assertEquals(0, pcisph.unstable());
+            // Pressure comes from the solver, which never pulls
+            for (int r = 0; r < pcisph.store.size; ++r)
+                assertTrue(pcisph.store.pressure[r] >= 0);
+
+            // The explicit solver squeezes the same block far more, over many more steps
+            int explicitSteps = 0;
+            double explicitDensest = 0;
+            while (explicit.time() < 0.2) {
+                explicit.updateAdaptive(0.01);
+                ++explicitSteps;
+                explicitDensest = Math.max(explicitDensest, Arrays.stream(explicit.store.density, 0, explicit.store.size).max().orElse(0));
+            }
+            assertTrue(densest < 1150, "Compressed to " + densest);
+            assertTrue(explicitDensest > densest, explicitDensest + " <= " + densest);
+            assertTrue(explicitSteps > steps, explicitSteps + " <= " + steps);
+        } finally {
+            explicit.close();
+            pcisph.close();
+        }
+    }
+
+    // The solver always works over full lists in staged passes, so the pipeline settings make no difference
+    @Test
+    void testPcisphPipelines() {
+        SPH staged = block(8, 0.05);
+        SPH symmetric = block(8, 0.05);
+        SPH fused = block(8, 0.05);
+        try {
+            symmetric.setSymmetric(true);
+            fused.setPipeline(SPH.Pipeline.FUSED);
+            for (SPH sph : new SPH[] {staged, symmetric, fused})
+                sph.setPressureSolver(SPH.PressureSolver.PCISPH);
+            for (int i = 0; i < 10; ++i) {
+                staged.update(0.004);
+                symmetric.update(0.004);
+                fused.update(0.004);
+            }
+            assertSameState(staged, symmetric, 1e-12);
+            assertSameState(staged, fused, 1e-12);
+        } finally {
+            staged.close();
+            symmetric.close();
+            fused.close();
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package agfx.fluid;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestSimulationThread {
+
+    private static final double DT = 0.002;
+
+    @Test
+    public void testFrames() throws InterruptedException {
+        SPH reference = TestSPH.drop(300, 5);
+        try (SimulationThread simulation = new SimulationThread(TestSPH.drop(300, 5), DT)) {
+            simulation.setMaxStepsPerFrame(3);
+            simulation.start();
+
+            // Nothing was packed before the first step
+            long last = 0;
+            while (last < 20) {
+                SimulationThread.Frame frame = simulation.latest();
+                assertTrue(frame.step >= last);
+                if (frame.step == last) {
+                    Thread.sleep(1);
+                    continue;
+                }
+                last = frame.step;
+                // Each frame is the whole state of one step, as stepping on this thread gives it
+                while (reference.steps() < frame.step)
+                    reference.update(DT);
+                assertEquals(reference.pool.used(), frame.count);
+                ByteBuffer expected = reference.pool.buffer();
+                expected.limit(frame.count * reference.pool.blockSize());
+                ByteBuffer actual = frame.vertices.buffer();
+                actual.limit(frame.count * reference.pool.blockSize());
+                assertEquals(expected, actual, "step " + frame.step);
+            }
+        }
+        reference.close();
+    }
+
+    @Test
+    public void testPacing() throws InterruptedException {
+        SPH sph = TestSPH.drop(200, 6);
+        try (SimulationThread simulation = new SimulationThread(sph, DT)) {
+            // The first frame is there before any step
+            simulation.setPaused(true);
+            simulation.start();
+            assertEquals(0, simulation.latest().step);
+            Thread.sleep(50);
+            assertEquals(0, simulation.steps());
+
+            // Without frames being taken, the steps stop at the limit, give or take one already under way
+            simulation.setMaxStepsPerFrame(2);
+            simulation.setPaused(false);
+            for (int frame = 0; frame < 3; ++frame) {
+                long before = simulation.steps();
+                simulation.latest();
+                Thread.sleep(300);
+                long after = simulation.steps();
+                assertTrue(after > before);
+                assertTrue(after <= before + 3, before + " -> " + after);
+            }
+
+            simulation.setPaused(true);
+            Thread.sleep(50);
+            long paused = simulation.steps();
+            assertEquals(paused, simulation.latest().step);
+            Thread.sleep(50);
+            assertEquals(paused, simulation.steps());
+        }
+        sph.close();
+    }
+
+}
@@ -0,0 +1,270 @@
+package agfx.gl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenderBufferTest {
+
+    // Keeps a copy of what the GPU would hold, and every call made on it
+    private static class FakeBackend implements RenderBuffer.Backend {
+        ByteBuffer storage;
+        boolean persistent;
+        int allocations;
+        int orphans;
+        long nextFence = 1;
+        List<Long> pending = new ArrayList<>();
+        List<Long> awaited = new ArrayList<>();
+        List<int[]> draws = new ArrayList<>();
+        boolean freed;
+
+        @Override
+        public ByteBuffer allocate(long bytes, boolean persistent) {
+            assertTrue(pending.isEmpty(), "Storage replaced while the GPU may still read it");
+            storage = ByteBuffer.allocateDirect((int) bytes);
+            this.persistent = persistent;
+            ++allocations;
+            return persistent ? storage : null;
+        }
+
+        @Override
+        public void orphan(long bytes) {
+            assertFalse(persistent);
+            storage = ByteBuffer.allocateDirect((int) bytes);
+            ++orphans;
+        }
+
+        @Override
+        public void upload(long offset, ByteBuffer data) {
+            assertFalse(persistent);
+            ByteBuffer dst = storage.duplicate();
+            dst.position((int) offset);
+            dst.put(data);
+        }
+
+        @Override
+        public void draw(int first, int count) {
+            draws.add(new int[] {first, count});
+        }
+
+        @Override
+        public long fence() {
+            pending.add(nextFence);
+            return nextFence++;
+        }
+
+        @Override
+        public void await(long fence) {
+            assertTrue(pending.remove(fence), "Unknown fence " + fence);
+            awaited.add(fence);
+        }
+
+        @Override
+        public void free() {
+            freed = true;
+        }
+
+        // What the last draw call would read
+        byte[] drawn(int blockSize) {
+            int[] d = draws.get(draws.size() - 1);
+            byte[] bytes = new byte[d[1] * blockSize];
+            ByteBuffer src = storage.duplicate();
+            src.position(d[0] * blockSize);
+            src.get(bytes);
+            return bytes;
+        }
+    }
+
+    private static byte[] blocks(VertexArray a, int count) {
+        byte[] bytes = new byte[count * a.blockSize()];
+        a.buffer().get(bytes);
+        return bytes;
+    }
+
+    private static void write(VertexArray a, int from, int to, int value) {
+        for (int v = from; v < to; ++v)
+            for (int i = 0; i < a.blockSize(); i += Integer.BYTES)
+                a.putInt(v, i, value + v);
+        a.markDirty(from, to);
+    }
+
+    @Test
+    void testDirty() {
+        try (VertexArray a = new VertexArray(8, 4)) {
+            assertArrayEquals(new int[] {0, 0}, a.takeDirty());
+            a.markDirty(5, 6);
+            a.markDirty(2, 3);
+            a.markDirty(4, 4);
+            assertArrayEquals(new int[] {2, 6}, a.takeDirty());
+            assertArrayEquals(new int[] {0, 0}, a.takeDirty());
+        }
+    }
+
+    @Test
+    void testOrphan() {
+        FakeBackend gpu = new FakeBackend();
+        try (VertexArray a = new VertexArray(16, 24)) {
+            RenderBuffer buffer = new RenderBuffer(a, gpu, RenderBuffer.Strategy.ORPHAN);
+            write(a, 0, 16, 0);
+            buffer.draw(10);
+            assertEquals(10 * 24, buffer.lastUploaded());
+            assertArrayEquals(blocks(a, 10), gpu.drawn(24));
+
+            // Nothing changed, so nothing goes up but the draw still happens
+            buffer.draw(10);
+            assertEquals(0, buffer.lastUploaded());
+            assertEquals(2, gpu.draws.size());
+            assertEquals(1, gpu.orphans);
+
+            // Any change sends the whole drawn range into fresh storage
+            write(a, 3, 4, 100);
+            buffer.draw(10);
+            assertEquals(10 * 24, buffer.lastUploaded());
+            assertEquals(2, gpu.orphans);
+            assertArrayEquals(blocks(a, 10), gpu.drawn(24));
+
+            // Changes past the drawn range are not worth an upload, until the range grows over them
+            write(a, 12, 13, 200);
+            buffer.draw(10);
+            assertEquals(0, buffer.lastUploaded());
+            buffer.draw(13);
+            assertEquals(13 * 24, buffer.lastUploaded());
+            assertArrayEquals(blocks(a, 13), gpu.drawn(24));
+
+            assertEquals(33 * 24, buffer.uploaded());
+            assertEquals(5, buffer.frames());
+            assertEquals(1, gpu.allocations);
+            for (int[] d : gpu.draws)
+                assertEquals(0, d[0]);
+            buffer.close();
+            assertTrue(gpu.freed);
+        }
+    }
+
+    @Test
+    void testPersistent() {
+        FakeBackend gpu = new FakeBackend();
+        try (VertexArray a = new VertexArray(16, 24)) {
+            RenderBuffer buffer = new RenderBuffer(a, gpu, RenderBuffer.Strategy.PERSISTENT);
+            write(a, 0, 16, 0);
+            // Each region starts out empty and is filled on its first use, as far as it is drawn
+            for (int frame = 0; frame < RenderBuffer.REGIONS; ++frame) {
+                buffer.draw(10);
+                assertEquals(10 * 24, buffer.lastUploaded());
+                assertArrayEquals(new int[] {frame * 16, 10}, gpu.draws.get(frame));
+                assertArrayEquals(blocks(a, 10), gpu.drawn(24));
+            }
+            assertEquals(RenderBuffer.REGIONS, gpu.pending.size());
+            assertEquals(RenderBuffer.REGIONS * 16 * 24, gpu.storage.capacity());
+
+            // Reusing a region waits for the draw that last read it
+            buffer.draw(10);
+            assertEquals(0, buffer.lastUploaded());
+            assertEquals(Arrays.asList(1L), gpu.awaited);
+            assertEquals(0, gpu.draws.get(3)[0]);
+
+            // A change reaches every region once, as each comes around
+            write(a, 2, 5, 100);
+            for (int frame = 0; frame < RenderBuffer.REGIONS; ++frame) {
+                buffer.draw(10);
+                assertEquals(3 * 24, buffer.lastUploaded());
+                assertArrayEquals(blocks(a, 10), gpu.drawn(24));
+            }
+            buffer.draw(10);
+            assertEquals(0, buffer.lastUploaded());
+            assertArrayEquals(blocks(a, 10), gpu.drawn(24));
+
+            // Blocks never drawn before go up once the drawn range reaches them
+            buffer.draw(12);
+            assertEquals(2 * 24, buffer.lastUploaded());
+            assertArrayEquals(blocks(a, 12), gpu.drawn(24));
+            assertEquals(1, gpu.allocations);
+            assertEquals(0, gpu.orphans);
+
+            buffer.close();
+            assertTrue(gpu.pending.isEmpty());
+            assertTrue(gpu.freed);
+        }
+    }
+
+    @Test
+    void testGrowth() {
+        for (RenderBuffer.Strategy strategy : RenderBuffer.Strategy.values()) {
+            FakeBackend gpu = new FakeBackend();
+            try (VertexPoolArray pool = new VertexPoolArray(4, 8)) {
+                RenderBuffer buffer = new RenderBuffer(pool, gpu, strategy);
+                pool.request(4);
+                write(pool, 0, 4, 0);
+                buffer.draw(4);
+                buffer.draw(4);
+
+                // New storage waits out every pending draw and starts over with everything
+                pool.setGrowable(true);
+                pool.request(3);
+                write(pool, 4, 7, 50);
+                buffer.draw(7);
+                assertEquals(2, gpu.allocations, strategy.name());
+                assertEquals(7 * 8, buffer.lastUploaded(), strategy.name());
+                assertArrayEquals(blocks(pool, 7), gpu.drawn(8), strategy.name());
+                buffer.close();
+            }
+        }
+    }
+
+    // Frames handed over from another thread each arrive in an array of their own, holding the same vertices as of
+    // different steps
+    @Test
+    void testSources() {
+        for (RenderBuffer.Strategy strategy : RenderBuffer.Strategy.values()) {
+            FakeBackend gpu = new FakeBackend();
+            try (VertexArray a = new VertexArray(8, 8); VertexArray b = new VertexArray(8, 8)) {
+                RenderBuffer buffer = new RenderBuffer(gpu, strategy);
+                write(a, 0, 8, 0);
+                write(b, 0, 8, 0);
+                // Each array is sent whole the first time, and so is each persistent region
+                int warmup = strategy == RenderBuffer.Strategy.ORPHAN ? 2 : RenderBuffer.REGIONS + 1;
+                for (int frame = 0; frame < warmup; ++frame) {
+                    VertexArray source = frame % 2 == 0 ? a : b;
+                    buffer.draw(source, 6);
+                    assertEquals(6 * 8, buffer.lastUploaded(), strategy.name());
+                    assertArrayEquals(blocks(source, 6), gpu.drawn(8), strategy.name());
+                }
+                buffer.draw(a, 6);
+                buffer.draw(b, 6);
+
+                // Taking turns with nothing changed sends nothing
+                for (int frame = 0; frame < 6; ++frame) {
+                    VertexArray source = frame % 2 == 0 ? a : b;
+                    buffer.draw(source, 6);
+                    assertEquals(0, buffer.lastUploaded(), strategy.name());
+                    assertArrayEquals(blocks(source, 6), gpu.drawn(8), strategy.name());
+                }
+
+                // One block changes, reaching a before it is drawn and b by the time it is. Only that block goes up, to
+                // each region as it comes around after either array brought it, or with the drawn range into fresh
+                // storage once per array
+                write(a, 3, 4, 100);
+                write(b, 3, 4, 100);
+                long[] expected = strategy == RenderBuffer.Strategy.ORPHAN
+                        ? new long[] {6 * 8, 6 * 8, 0, 0, 0, 0}
+                        : new long[] {8, 8, 8, 8, 0, 0};
+                long before = buffer.uploaded();
+                for (int frame = 0; frame < expected.length; ++frame) {
+                    VertexArray source = frame % 2 == 0 ? a : b;
+                    buffer.draw(source, 6);
+                    assertEquals(expected[frame], buffer.lastUploaded(), strategy.name() + " frame " + frame);
+                    assertArrayEquals(blocks(source, 6), gpu.drawn(8), strategy.name());
+                }
+                assertEquals(Arrays.stream(expected).sum(), buffer.uploaded() - before, strategy.name());
+                assertEquals(1, gpu.allocations, strategy.name());
+                buffer.close();
+            }
+        }
+    }
+
+}
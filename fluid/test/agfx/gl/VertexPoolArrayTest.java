@@ -2,6 +2,7 @@ package agfx.gl;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.BitSet;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
@@ -79,4 +80,57 @@ public class VertexPoolArrayTest {
         }
     }
 
+    @Test
+    void testLowestFree() {
+        try (VertexPoolArray pool = new VertexPoolArray(8, 4)) {
+            for (int i = 0; i < 8; ++i)
+                assertEquals(i, pool.request());
+            pool.reclaim(5);
+            pool.reclaim(2);
+            assertEquals(2, pool.request());
+            assertEquals(5, pool.request());
+            assertThrows(NoSuchElementException.class, pool::request);
+        }
+    }
+
+    @Test
+    void testBulk() {
+        try (VertexPoolArray pool = new VertexPoolArray(10, 4)) {
+            assertArrayEquals(new int[] {0, 1, 2, 3}, pool.request(4));
+            pool.reclaim(new int[] {1, 3});
+            assertEquals(2, pool.used());
+            assertArrayEquals(new int[] {1, 3, 4, 5, 6}, pool.request(5));
+
+            // All or nothing
+            assertThrows(NoSuchElementException.class, () -> pool.request(4));
+            assertEquals(7, pool.used());
+            assertThrows(NoSuchElementException.class, () -> pool.reclaim(new int[] {0, 9}));
+            assertEquals(7, pool.used());
+            assertArrayEquals(new int[] {0, 1, 2, 3, 4, 5, 6}, pool.streamUsed().toArray());
+
+            // Even when every index is in use, a repeated one leaves the pool as it was
+            BitSet before = pool.getUsed();
+            assertThrows(NoSuchElementException.class, () -> pool.reclaim(new int[] {2, 3, 3}));
+            assertEquals(7, pool.used());
+            assertEquals(before, pool.getUsed());
+            assertEquals(7, pool.request());
+        }
+    }
+
+    @Test
+    void testGrowth() {
+        try (VertexPoolArray pool = new VertexPoolArray(4, Integer.BYTES)) {
+            pool.setGrowable(true);
+            for (int i = 0; i < 4; ++i)
+                pool.putInt(pool.request(), 0, i);
+            assertEquals(4, pool.request());
+            assertEquals(8, pool.blocks());
+            assertArrayEquals(new int[] {5, 6, 7, 8, 9, 10}, pool.request(6));
+            assertEquals(16, pool.blocks());
+            for (int i = 0; i < 4; ++i)
+                assertEquals(i, pool.getInt(i, 0));
+            assertThrows(IllegalArgumentException.class, () -> pool.resize(8));
+        }
+    }
+
 }